@@ -39,19 +39,19 @@ namespace GenRandFrontend.Data
 		/// </summary>
 		public double AvScore4 { get; }
 		/// <summary>
-		/// Hex ID string for avalanche graph for one round.
+		/// Hex ID string for avalanche graph for one round, or null if no graph was made for this mix.
 		/// </summary>
 		public string AvImage1 { get; }
 		/// <summary>
-		/// Hex ID string for avalanche graph for two rounds.
+		/// Hex ID string for avalanche graph for two rounds, or null if no graph was made for this mix.
 		/// </summary>
 		public string AvImage2 { get; }
 		/// <summary>
-		/// Hex ID string for avalanche graph for three rounds.
+		/// Hex ID string for avalanche graph for three rounds, or null if no graph was made for this mix.
 		/// </summary>
 		public string AvImage3 { get; }
 		/// <summary>
-		/// Hex ID string for avalanche graph for four rounds.
+		/// Hex ID string for avalanche graph for four rounds, or null if no graph was made for this mix.
 		/// </summary>
 		public string AvImage4 { get; }
 
@@ -241,10 +241,11 @@ namespace GenRandFrontend.Data
 		/// <summary>
 		/// Get the image path from an image reference encoded as string, suitable for src.
 		/// </summary>
-		/// <param name="imageRefHex">image ref to decode</param>
-		/// <returns>path to image in the filesystem</returns>
+		/// <param name="imageRefHex">image ref to decode, may be null</param>
+		/// <returns>path to image in the filesystem, or null if there is no image</returns>
 		public static string GetImagePath(string imageRefHex)
 		{
+			if (imageRefHex == null) return null;
 			ulong hexValue = Convert.ToUInt64(imageRefHex, 16);
 			return string.Format("{0}/{1:X3}/{2}.png", IMAGE_PATH_PREFIX, Mix12Bits(hexValue), imageRefHex);
 		}
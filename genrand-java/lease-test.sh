@@ -0,0 +1,86 @@
+#!/usr/bin/env bash
+# Enumerates the 8x2 ARX type with a coordinator and two worker JVMs on this machine, then restarts the coordinator to
+# check that every range was recorded as finished. Everything runs in a fresh directory, so the database, images and
+# scores of a real backend are never touched.
+# Usage: ./lease-test.sh [port] [timeout in seconds]
+set -eu
+cd "$(dirname "$0")"
+
+PORT="${1:-65481}"
+TIMEOUT="${2:-1800}"
+URL="http://localhost:$PORT"
+
+sh ./mvnw -B -q package -DskipTests
+JAR="$(pwd)/$(ls target/genrand-*.jar | head -n 1)"
+WORK="$(mktemp -d)"
+mkdir -p "$WORK/data"
+echo "Running in $WORK"
+
+PIDS=()
+cleanup() {
+	for pid in "${PIDS[@]}"; do
+		kill "$pid" 2>/dev/null || true
+	done
+	wait 2>/dev/null || true
+}
+trap cleanup EXIT
+
+# Start a coordinator for 8x2 only, logging to the given file
+start_coordinator() {
+	(cd "$WORK" && exec java -jar "$JAR" --server.port="$PORT" --genrand.arx.role=coordinator --genrand.arx.types=8x2 \
+		--genrand.arx.lease.size=2048 > "$1" 2>&1) &
+	COORDINATOR=$!
+	PIDS+=("$COORDINATOR")
+	for _ in $(seq 60); do
+		if curl -sf "$URL/arx/lease/finished" > /dev/null; then return 0; fi
+		sleep 1
+	done
+	echo "Coordinator didn't start; see $WORK/$1"
+	exit 1
+}
+
+# Stop a process and wait for it, so a coordinator writes what it still has buffered
+stop() {
+	kill "$1"
+	wait "$1" 2>/dev/null || true
+}
+
+start_coordinator coordinator.log
+WORKERS=()
+for w in 1 2; do
+	(cd "$WORK" && exec java -jar "$JAR" worker "$URL" 2 > "worker$w.log" 2>&1) &
+	WORKERS+=($!)
+	PIDS+=($!)
+done
+
+ELAPSED=0
+until [ "$(curl -sf "$URL/arx/lease/finished")" = "true" ]; do
+	if [ "$ELAPSED" -ge "$TIMEOUT" ]; then
+		echo "8x2 wasn't finished within $TIMEOUT seconds; see $WORK"
+		exit 1
+	fi
+	sleep 5
+	ELAPSED=$((ELAPSED + 5))
+done
+echo "8x2 finished in about $ELAPSED seconds with $(curl -sf "$URL/arx/8x2/count") mixes"
+
+for pid in "${WORKERS[@]}"; do
+	stop "$pid"
+	if ! grep -q "of 8x2 to $pid-" "$WORK/coordinator.log"; then
+		echo "Worker $pid never got a lease; see $WORK"
+		exit 1
+	fi
+done
+if grep -q "can't be taken" "$WORK/coordinator.log"; then
+	echo "The coordinator turned down results; see $WORK/coordinator.log"
+	exit 1
+fi
+stop "$COORDINATOR"
+
+# A coordinator started on the same database has nothing left to hand out only if every range was recorded
+start_coordinator restart.log
+if [ "$(curl -sf "$URL/arx/lease/finished")" != "true" ]; then
+	echo "Ranges of 8x2 were lost; see $WORK/restart.log"
+	exit 1
+fi
+echo "Every range of 8x2 was recorded"
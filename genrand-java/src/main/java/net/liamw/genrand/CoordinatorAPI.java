@@ -0,0 +1,90 @@
+package net.liamw.genrand;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import net.liamw.genrand.function.arx.ARXLeaseCoordinator;
+import net.liamw.genrand.function.arx.ARXResultBatch;
+
+/**
+ * API methods worker processes use to lease ranges from a coordinator and send back their results (see
+ * {@link ARXLeaseCoordinator}). Every method answers 404 unless the backend was started as a coordinator.
+ */
+@RestController
+public class CoordinatorAPI {
+	/**
+	 * Handle to the main logic, which owns the coordinator.
+	 */
+	private final GenrandMain main;
+
+	public CoordinatorAPI(GenrandMain main) {
+		this.main = main;
+	}
+
+	/**
+	 * Tell whether every range has been leased and its results taken. Results are written in batches, so the last of them
+	 * reach the database shortly after.
+	 * @return true if there is nothing left to do
+	 */
+	@GetMapping("/arx/lease/finished")
+	public ResponseEntity<Boolean> finished() {
+		ARXLeaseCoordinator coordinator = main.getCoordinator();
+		if (coordinator == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+		return ResponseEntity.ok(coordinator.isFinished());
+	}
+
+	/**
+	 * Lease the next range to a worker.
+	 * @param worker name of the worker, for the log
+	 * @return the lease, or no content if there is nothing to lease right now
+	 */
+	@PostMapping("/arx/lease")
+	public ResponseEntity<ARXLeaseCoordinator.Lease> lease(@RequestParam("worker") String worker) {
+		ARXLeaseCoordinator coordinator = main.getCoordinator();
+		if (coordinator == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+		ARXLeaseCoordinator.Lease lease = coordinator.lease(worker);
+		if (lease == null) return ResponseEntity.noContent().build();
+		return ResponseEntity.ok(lease);
+	}
+
+	/**
+	 * Renew a lease.
+	 * @param id identifier of the lease
+	 * @return OK, or gone if the lease has already run out
+	 */
+	@PostMapping("/arx/lease/{id}/renew")
+	public ResponseEntity<Void> renew(@PathVariable("id") long id) {
+		ARXLeaseCoordinator coordinator = main.getCoordinator();
+		if (coordinator == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+		return ResponseEntity.status(coordinator.renew(id)? HttpStatus.OK : HttpStatus.GONE).build();
+	}
+
+	/**
+	 * Take the results of a lease, as an {@link ARXResultBatch} in its binary form.
+	 * @param id identifier of the lease
+	 * @param body the results
+	 * @return OK, gone if the lease has already run out, or bad request if the results can't be read or don't match
+	 */
+	@PostMapping(value = "/arx/lease/{id}/results", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public ResponseEntity<Void> results(@PathVariable("id") long id, @RequestBody byte[] body) {
+		ARXLeaseCoordinator coordinator = main.getCoordinator();
+		if (coordinator == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+		try {
+			ARXResultBatch batch = ARXResultBatch.read(new ByteArrayInputStream(body));
+			return ResponseEntity.status(coordinator.complete(id, batch)? HttpStatus.OK : HttpStatus.GONE).build();
+		} catch (IOException | IllegalArgumentException ex) {
+			System.out.println("Results of lease " + id + " can't be taken: " + ex.getMessage());
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+		}
+	}
+}
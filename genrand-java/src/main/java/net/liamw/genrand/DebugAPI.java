@@ -3,16 +3,20 @@ package net.liamw.genrand;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import net.liamw.genrand.function.MixCompiler;
 import net.liamw.genrand.function.arx.ARXMix;
+import net.liamw.genrand.function.arx.ARXMixInfo;
 import net.liamw.genrand.function.arx.MixARX16x2;
 import net.liamw.genrand.function.arx.MixARX16x3;
 import net.liamw.genrand.function.arx.MixARX16x4;
@@ -25,6 +29,9 @@ import net.liamw.genrand.function.arx.MixARX64x4;
 import net.liamw.genrand.function.arx.MixARX8x2;
 import net.liamw.genrand.function.arx.MixARX8x3;
 import net.liamw.genrand.function.arx.MixARX8x4;
+import net.liamw.genrand.util.Avalanche32;
+import net.liamw.genrand.util.Avalanche32.RoundDiffuser;
+import net.liamw.genrand.util.AvalancheResult;
 import net.liamw.genrand.util.Database;
 import net.liamw.genrand.util.Database.ARXMixEntry;
 
@@ -35,9 +42,11 @@ import net.liamw.genrand.util.Database.ARXMixEntry;
 public class DebugAPI {
 	private final ObjectMapper mapper = new ObjectMapper();
 	private final Database database;
+	private final ForkJoinPool avalanchePool;
 	
-	public DebugAPI(Database database) {
+	public DebugAPI(Database database, ForkJoinPool avalanchePool) {
 		this.database = database;
+		this.avalanchePool = avalanchePool;
 	}
 	
 	@GetMapping(value = "/debug/arx/{type}/definition/{definition}", produces = MediaType.TEXT_HTML_VALUE)
@@ -50,42 +59,56 @@ public class DebugAPI {
 			sb.append("not found");
 		} else {
 			ARXMixEntry e = list.get(0);
-			ARXMix<?> mix;
-			switch (e.getType()) {
-				case "8x2": mix = MixARX8x2.unpack(e.getDefinition()); break;
-				case "8x3": mix = MixARX8x3.unpack(e.getDefinition()); break;
-				case "8x4": mix = MixARX8x4.unpack(e.getDefinition()); break;
-				
-				case "16x2": mix = MixARX16x2.unpack(e.getDefinition()); break;
-				case "16x3": mix = MixARX16x3.unpack(e.getDefinition()); break;
-				case "16x4": mix = MixARX16x4.unpack(e.getDefinition()); break;
-				
-				case "32x2": mix = MixARX32x2.unpack(e.getDefinition()); break;
-				case "32x3": mix = MixARX32x3.unpack(e.getDefinition()); break;
-				case "32x4": mix = MixARX32x4.unpack(e.getDefinition()); break;
-				
-				case "64x2": mix = MixARX64x2.unpack(e.getDefinition()); break;
-				case "64x3": mix = MixARX64x3.unpack(e.getDefinition()); break;
-				case "64x4": mix = MixARX64x4.unpack(e.getDefinition()); break;
-				default: mix = null; break;
-			}
+			ARXMix<?> mix = unpackMix(e.getType(), e.getDefinition());
 			
 			sb.append(e.getType()).append("<br>").append(mix.toString());
 			sb.append("<br>");
+			sb.append(String.format("<a href=\"/debug/arx/%s/rescore/%d\">rescore</a><br>",e.getType(),e.getDefinition()));
 			sb.append("<table>");
 			sb.append("<th>defn</th> <th>round1</th> <th>round2</th> <th>round3</th> <th>round4</th>");
 			appendMix(sb, e);
 			sb.append("</table><br>");
-			sb.append("<img src=\"/debug/image/" + toImagePath(e.getAvImage1()) + "\" width=256 height=256 style=\"image-rendering: pixelated;\"><br>");
-			sb.append("<img src=\"/debug/image/" + toImagePath(e.getAvImage2()) + "\" width=256 height=256 style=\"image-rendering: pixelated;\"><br>");
-			sb.append("<img src=\"/debug/image/" + toImagePath(e.getAvImage3()) + "\" width=256 height=256 style=\"image-rendering: pixelated;\"><br>");
-			sb.append("<img src=\"/debug/image/" + toImagePath(e.getAvImage4()) + "\" width=256 height=256 style=\"image-rendering: pixelated;\"><br>");
+			appendImage(sb, e.getAvImage1());
+			appendImage(sb, e.getAvImage2());
+			appendImage(sb, e.getAvImage3());
+			appendImage(sb, e.getAvImage4());
 		}
 		appendEnd(sb);
 		return sb.toString();
 	}
 	
 	
+	@GetMapping(value = "/debug/arx/{type}/rescore/{definition}", produces = MediaType.TEXT_HTML_VALUE)
+	@ResponseBody
+	public String rescoreARX(@PathVariable("type") String type, @PathVariable("definition") long definition,
+			@RequestParam(value = "exhaustive", defaultValue = "false") boolean exhaustive) {
+		StringBuilder sb = new StringBuilder();
+		appendStart(sb);
+		ARXMix<?> mix = unpackMix(type, definition);
+		if (mix == null) {
+			sb.append("not found");
+		} else {
+			ARXMixInfo<?> info = mix.getInfo();
+			int bits = info.getWordBits() * info.getTerms();
+			// Only up to 24 bits can be tested over every input, and that takes a while, so it's only done when asked for
+			boolean canExhaust = bits > Avalanche32.EXHAUSTIVE_BITS && bits <= Avalanche32.MAX_EXHAUSTIVE_BITS;
+			// Test on the shared pool so the page comes back quickly
+			AvalancheResult[] results = exhaustive && canExhaust?
+					Avalanche32.testAvalancheRoundsExhaustive((RoundDiffuser)mix, bits, 4, avalanchePool) : mix.avalancheRounds(4, avalanchePool);
+			sb.append(type).append("<br>").append(mix.toString());
+			sb.append("<br>");
+			if (canExhaust && !exhaustive) {
+				sb.append(String.format("<a href=\"/debug/arx/%s/rescore/%d?exhaustive=true\">rescore over every input</a><br>",type,definition));
+			}
+			sb.append("<table>");
+			sb.append("<th>defn</th> <th>round1</th> <th>round2</th> <th>round3</th> <th>round4</th>");
+			appendMix(sb, new ARXMixEntry(type, definition, results[0].score(), results[1].score(), results[2].score(), results[3].score(), null, null, null, null, mix.getInfo().getClassSize(definition)));
+			sb.append("</table><br>");
+		}
+		appendEnd(sb);
+		return sb.toString();
+	}
+	
 	@GetMapping(value = "/debug/arx/{type}/list/{page}", produces = MediaType.TEXT_HTML_VALUE)
 	@ResponseBody
 	public String getARXList(@PathVariable("type") String type, @PathVariable("page") int page) {
@@ -108,6 +131,22 @@ public class DebugAPI {
 		return sb.toString();
 	}
 	
+	@GetMapping(value = "/debug/mix/classes", produces = MediaType.TEXT_HTML_VALUE)
+	@ResponseBody
+	public String getMixClasses() {
+		// Classes defined for compiled Mix32/Mix64/Mix64C functions, and how many have gone again
+		StringBuilder sb = new StringBuilder();
+		appendStart(sb);
+		sb.append("<table>");
+		sb.append(String.format("<tr><td>defined</td><td>%d</td></tr>",MixCompiler.getDefinedCount()));
+		sb.append(String.format("<tr><td>collected</td><td>%d</td></tr>",MixCompiler.getCollectedCount()));
+		sb.append(String.format("<tr><td>cached</td><td>%d</td></tr>",MixCompiler.getCachedCount()));
+		sb.append(String.format("<tr><td>cache hits</td><td>%d</td></tr>",MixCompiler.getCacheHits()));
+		sb.append("</table>");
+		appendEnd(sb);
+		return sb.toString();
+	}
+	
 	@GetMapping(value = "/debug/image/{path}/{path2}", produces = MediaType.IMAGE_PNG_VALUE)
 	@ResponseBody
 	public byte[] image(@PathVariable("path") String path, @PathVariable("path2") String path2) {
@@ -120,6 +159,27 @@ public class DebugAPI {
 		}
 	}
 	
+	private static ARXMix<?> unpackMix(String type, long definition) {
+		switch (type) {
+			case "8x2": return MixARX8x2.unpack(definition);
+			case "8x3": return MixARX8x3.unpack(definition);
+			case "8x4": return MixARX8x4.unpack(definition);
+			
+			case "16x2": return MixARX16x2.unpack(definition);
+			case "16x3": return MixARX16x3.unpack(definition);
+			case "16x4": return MixARX16x4.unpack(definition);
+			
+			case "32x2": return MixARX32x2.unpack(definition);
+			case "32x3": return MixARX32x3.unpack(definition);
+			case "32x4": return MixARX32x4.unpack(definition);
+			
+			case "64x2": return MixARX64x2.unpack(definition);
+			case "64x3": return MixARX64x3.unpack(definition);
+			case "64x4": return MixARX64x4.unpack(definition);
+			default: return null;
+		}
+	}
+	
 	private static void appendStart(StringBuilder sb) {
 		sb.append("<!DOCTYPE html><html><body>");
 		
@@ -156,6 +216,12 @@ public class DebugAPI {
 		sb.append("</tr>");
 	}
 	
+	private static void appendImage(StringBuilder sb, String snowId) {
+		// Mixes that were screened out of having graphs made have no images
+		if (snowId == null) return;
+		sb.append("<img src=\"/debug/image/" + toImagePath(snowId) + "\" width=256 height=256 style=\"image-rendering: pixelated;\"><br>");
+	}
+	
 	private static String toImagePath(String snowId) {
 		long v = Long.parseLong(snowId, 16);
 		return String.format("%03X/%s", Database.mix12bit(v), snowId);
@@ -1,12 +1,31 @@
 package net.liamw.genrand;
 
+import java.util.concurrent.ForkJoinPool;
+
 import net.liamw.genrand.function.Mix64;
 import net.liamw.genrand.function.Mix64.Operand;
+import net.liamw.genrand.function.PrefixScorer;
 import net.liamw.genrand.util.Avalanche64;
 import net.liamw.genrand.util.Database;
 
 public class Gen64Bit {
 	public static void run(Database database, int optimiseRounds, double threshold, Operand... types) {
+		run(database, optimiseRounds, threshold, 1, null, 0, types);
+	}
+	
+	/**
+	 * Run the hill-climb, trying several copies of the best mix at a time and scoring them at the same time on a pool. Each
+	 * copy counts as one attempt, so the attempt counter means the same however many copies are tried at a time (see
+	 * {@link MutantStep}).
+	 * Given memory for it, copies are scored by a {@link PrefixScorer} on one fixed set of samples, from the first operator
+	 * they don't share with the best mix.
+	 */
+	public static void run(Database database, int optimiseRounds, double threshold, int mutants, ForkJoinPool pool, long cacheBytes, Operand... types) {
+		if (mutants < 1) mutants = 1;
+		// Score copies from the operators they share with the best mix, if there's memory for it
+		final PrefixScorer<Mix64> scorer = cacheBytes > 0? new PrefixScorer<>(64, Mix64.PREFIX_OPERATORS, cacheBytes) : null;
+		final MutantStep.BoundedScorer<Mix64> score = scorer == null? (mix, bound) -> Avalanche64.scoreAvalancheBounded(mix,64,bound)
+				: (mix, bound) -> scorer.score(mix,bound);
 		// Run forever
 		int trial = 0;
 		for (;;) {
@@ -16,31 +35,36 @@ public class Gen64Bit {
 			// Create new mix with one addition operation to start with and score it
 			Mix64 best = new Mix64();
 			best.addRandom(Operand.ADD);
-			double bestScore = Avalanche64.scoreAvalanche(best,64);
+			double bestScore = scorer == null? Avalanche64.scoreAvalanche(best,64) : scorer.rebase(best);
 			// Print
 			System.out.printf("Current: %f\n%s\n",bestScore,best.toString());
 			// Begin trials
 			while (bestScore > threshold) {
 				// Add a random operator and score it
 				best.addRandom(types);
-				bestScore = Avalanche64.scoreAvalanche(best,64);
+				bestScore = scorer == null? Avalanche64.scoreAvalanche(best,64) : scorer.rebase(best);
 				System.out.printf("Adding an operator and rescored: %f\n%s\n",bestScore,best.toString());
 				// Begin optimisation attempts
 				int attempts = optimiseRounds;
 				while (attempts > 0) {
 					System.out.printf("%d operators, optimise phase (%d attempts remain)\n",best.oplen(),attempts);
-					// Copy the mix and modify one operator
-					Mix64 copy = new Mix64(best);
-					copy.replaceRandom(types);
-					double copyScore = Avalanche64.scoreAvalanche(copy,64);
-					// If it is better, save it and restart the attempt counter
-					if (copyScore < bestScore) {
-						best = copy;
-						bestScore = copyScore;
+					// Copy the mix and modify one operator of each copy, never trying more copies than there are attempts left
+					final int count = Math.min(mutants, attempts);
+					final Mix64 base = best;
+					MutantStep.Scored<Mix64> bestCopy = MutantStep.best(count, () -> {
+						Mix64 copy = new Mix64(base);
+						copy.replaceRandom(types);
+						return copy;
+					}, score, bestScore, pool);
+					// If the best copy is better, save it and restart the attempt counter
+					if (bestCopy.score() < bestScore) {
+						best = bestCopy.mix();
+						bestScore = bestCopy.score();
+						if (scorer != null) scorer.rebase(best);
 						attempts = optimiseRounds;
 						System.out.printf("New best: %f\n%s\nRestarted the attempt counter.\n",bestScore,best.toString());
 					} else {
-						attempts--;
+						attempts -= count;
 					}
 				}
 				// Write out best so far
@@ -0,0 +1,453 @@
+package net.liamw.genrand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.random.RandomGenerator;
+
+import net.liamw.genrand.function.Mix32;
+import net.liamw.genrand.function.Mix64;
+import net.liamw.genrand.util.Avalanche32;
+import net.liamw.genrand.util.Avalanche64;
+import net.liamw.genrand.util.Database;
+import net.liamw.genrand.util.LWRand64;
+
+/**
+ * Population search for mix functions, as an alternative to the single line hill-climbs of the Gen* classes, which throw
+ * everything away and start again once they get under the threshold.
+ * <br>
+ * Several islands each keep a population of mixes. Every generation, each island breeds as many children as it has
+ * members, by crossing over the operator lists of two parents chosen by tournament and mutating the result; the children
+ * of every island are scored at the same time on the pool, and each island keeps its best members out of its old
+ * population and its children. Every few generations, each island sends copies of its best members to the next island in
+ * a ring, in place of that island's worst. Every distinct mix that scores under the threshold is written to the database,
+ * and the search goes on from there rather than starting again, favouring shorter mixes among those under the threshold.
+ * @param <M> mix function type
+ * @param <E> operator type of the mix function
+ */
+public abstract class GenIslands<M, E> {
+	/**
+	 * Default number of islands.
+	 */
+	public static final int DEFAULT_ISLANDS = 4;
+	/**
+	 * Default number of mixes on each island.
+	 */
+	public static final int DEFAULT_POPULATION = 16;
+	/**
+	 * Number of generations between migrations.
+	 */
+	public static final int MIGRATION_INTERVAL = 10;
+	/**
+	 * Number of mixes each island sends to the next in a migration.
+	 */
+	public static final int MIGRANTS = 2;
+	/**
+	 * Most operators a mix can grow to.
+	 */
+	public static final int MAX_OPERATORS = 32;
+	/**
+	 * Number of members a parent is chosen from.
+	 */
+	private static final int TOURNAMENT = 3;
+	/**
+	 * Chance of a child being a crossover of two parents rather than a mutated copy of one.
+	 */
+	private static final double CROSSOVER_RATE = 0.5;
+	/**
+	 * Number of written mixes remembered so they aren't written again.
+	 */
+	private static final int MAX_REMEMBERED = 1 << 16;
+
+	/**
+	 * A scored member of an island.
+	 * @param <M> mix function type
+	 * @param mix the mix, which isn't changed once it is a member
+	 * @param score avalanche score of the mix
+	 */
+	private record Member<M>(M mix, double score) {}
+
+	/**
+	 * Score under which mixes are written to the database.
+	 */
+	private final double threshold;
+	/**
+	 * Number of islands.
+	 */
+	private final int islands;
+	/**
+	 * Number of mixes on each island.
+	 */
+	private final int population;
+	/**
+	 * Number of operators that are added, removed, replaced and crossed over together.
+	 */
+	private final int step;
+	/**
+	 * Pool to score children on, or null to score them one at a time.
+	 */
+	private final ForkJoinPool pool;
+	/**
+	 * Source of the mixes written to the database most recently, so each is only written once while the search stays near
+	 * it. Only the last {@link #MAX_REMEMBERED} are kept; a mix found again after it has been forgotten is written again.
+	 */
+	private final Set<String> submitted = Collections.newSetFromMap(new LinkedHashMap<>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_REMEMBERED;
+		}
+	});
+
+	/**
+	 * Create a search.
+	 * @param threshold score under which mixes are written to the database
+	 * @param islands number of islands
+	 * @param population number of mixes on each island
+	 * @param step number of operators that are added, removed, replaced and crossed over together
+	 * @param pool pool to score children on, or null to score them one at a time
+	 */
+	protected GenIslands(double threshold, int islands, int population, int step, ForkJoinPool pool) {
+		if (islands < 1) throw new IllegalArgumentException("there has to be at least one island");
+		if (population < 2) throw new IllegalArgumentException("there have to be at least two mixes on each island");
+		if (step < 1 || MAX_OPERATORS % step != 0) throw new IllegalArgumentException("step has to divide " + MAX_OPERATORS);
+		this.threshold = threshold;
+		this.islands = islands;
+		this.population = population;
+		this.step = step;
+		this.pool = pool;
+	}
+
+	/**
+	 * Return the operators of a mix.
+	 * @param mix the mix
+	 * @return its operators, which are not to be changed
+	 */
+	protected abstract List<E> operands(M mix);
+
+	/**
+	 * Make a mix from a list of operators.
+	 * @param operands operators to apply in order
+	 * @return the mix
+	 */
+	protected abstract M build(List<E> operands);
+
+	/**
+	 * Make a random operator to go at the given position.
+	 * @param index position of the operator in its mix
+	 * @return the operator
+	 */
+	protected abstract E randomEntry(int index);
+
+	/**
+	 * Score a mix for avalanche, stopping early if it is clearly worse than the bound.
+	 * @param mix the mix
+	 * @param bound score to stop early above
+	 * @return the score
+	 */
+	protected abstract double score(M mix, double bound);
+
+	/**
+	 * Write a mix that scored under the threshold to the database.
+	 * @param mix the mix
+	 */
+	protected abstract void submit(M mix);
+
+	/**
+	 * Run the search forever.
+	 */
+	public void run() {
+		// Members under the threshold are good enough, so among them the shorter ones are better
+		final Comparator<Member<M>> byScore = (x, y) -> {
+			if (x.score() < threshold && y.score() < threshold) {
+				int byLength = Integer.compare(operands(x.mix()).size(), operands(y.mix()).size());
+				if (byLength != 0) return byLength;
+			}
+			return Double.compare(x.score(), y.score());
+		};
+		// Start every island with random mixes of two steps each
+		List<List<Member<M>>> world = new ArrayList<>();
+		for (int i = 0; i < islands; i++) {
+			List<M> seeds = new ArrayList<>();
+			for (int j = 0; j < population; j++) {
+				List<E> ops = new ArrayList<>();
+				for (int k = 0; k < 2 * step; k++) {
+					ops.add(randomEntry(k));
+				}
+				seeds.add(build(ops));
+			}
+			double[] scores = scoreAll(seeds, Double.POSITIVE_INFINITY);
+			List<Member<M>> island = new ArrayList<>();
+			for (int j = 0; j < population; j++) {
+				island.add(new Member<>(seeds.get(j), scores[j]));
+			}
+			island.sort(byScore);
+			world.add(island);
+		}
+		long generation = 0;
+		for (;;) {
+			generation++;
+			// Breed children on every island
+			List<List<M>> children = new ArrayList<>();
+			for (List<Member<M>> island : world) {
+				List<M> brood = new ArrayList<>();
+				for (int j = 0; j < population; j++) {
+					List<E> ops = new ArrayList<>(operands(tournament(island, byScore).mix()));
+					if (LWRand64.threadLocal().nextDouble() < CROSSOVER_RATE) {
+						ops = crossover(ops, operands(tournament(island, byScore).mix()));
+					}
+					mutate(ops);
+					brood.add(build(ops));
+				}
+				children.add(brood);
+			}
+			// Score the children of every island at the same time. Children that can't beat the worst member or the threshold
+			// are cut short, so a score under the threshold is always a full one.
+			List<M> all = new ArrayList<>();
+			double[] bounds = new double[islands * population];
+			for (int i = 0; i < islands; i++) {
+				double worst = world.get(i).get(population - 1).score();
+				for (M child : children.get(i)) {
+					bounds[all.size()] = Math.max(worst, threshold);
+					all.add(child);
+				}
+			}
+			double[] scores = scoreAll(all, bounds);
+			// Keep the best distinct mixes of each island, and write out new ones under the threshold
+			for (int i = 0; i < islands; i++) {
+				List<Member<M>> island = world.get(i);
+				for (int j = 0; j < population; j++) {
+					int c = i * population + j;
+					Member<M> child = new Member<>(all.get(c), scores[c]);
+					island.add(child);
+					if (child.score() < threshold && submitted.add(child.mix().toString())) {
+						System.out.printf("Island %d, generation %d, under the threshold: %f\n%s\n",i,generation,child.score(),child.mix().toString());
+						submit(child.mix());
+					}
+				}
+				world.set(i, survivors(island, byScore));
+			}
+			// Send copies of each island's best to the next one, in place of its worst
+			if (generation % MIGRATION_INTERVAL == 0 && islands > 1) {
+				List<List<Member<M>>> migrants = new ArrayList<>();
+				for (List<Member<M>> island : world) {
+					migrants.add(new ArrayList<>(island.subList(0, Math.min(MIGRANTS, population - 1))));
+				}
+				for (int i = 0; i < islands; i++) {
+					List<Member<M>> island = world.get((i + 1) % islands);
+					island.addAll(migrants.get(i));
+					world.set((i + 1) % islands, survivors(island, byScore));
+				}
+			}
+			// Print
+			StringBuilder sb = new StringBuilder();
+			for (List<Member<M>> island : world) {
+				Member<M> best = island.get(0);
+				sb.append(String.format(" %f (%d operators)", best.score(), operands(best.mix()).size()));
+			}
+			System.out.printf("Generation %d, best of each island:%s\n",generation,sb.toString());
+		}
+	}
+
+	/**
+	 * Score mixes against the same bound.
+	 * @param mixes the mixes
+	 * @param bound score to stop early above
+	 * @return the score of each mix
+	 */
+	private double[] scoreAll(List<M> mixes, double bound) {
+		double[] bounds = new double[mixes.size()];
+		Arrays.fill(bounds, bound);
+		return scoreAll(mixes, bounds);
+	}
+
+	/**
+	 * Score mixes at the same time if there's a pool to do it on.
+	 * @param mixes the mixes
+	 * @param bounds score to stop early above, for each mix
+	 * @return the score of each mix
+	 */
+	private double[] scoreAll(List<M> mixes, double[] bounds) {
+		double[] scores = new double[mixes.size()];
+		if (pool == null) {
+			for (int i = 0; i < scores.length; i++) {
+				scores[i] = score(mixes.get(i), bounds[i]);
+			}
+		} else {
+			List<ForkJoinTask<Double>> tasks = new ArrayList<>(scores.length);
+			for (int i = 0; i < scores.length; i++) {
+				final M mix = mixes.get(i);
+				final double bound = bounds[i];
+				tasks.add(pool.submit(() -> score(mix, bound)));
+			}
+			for (int i = 0; i < scores.length; i++) {
+				scores[i] = tasks.get(i).join();
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Keep the best distinct members of an island.
+	 * @param island the members, old and new
+	 * @param byScore order of members, best first
+	 * @return the best population members, best first
+	 */
+	private List<Member<M>> survivors(List<Member<M>> island, Comparator<Member<M>> byScore) {
+		island.sort(byScore);
+		List<Member<M>> kept = new ArrayList<>(population + population);
+		Set<List<E>> seen = new HashSet<>();
+		for (Member<M> member : island) {
+			if (kept.size() == population) break;
+			if (seen.add(operands(member.mix()))) kept.add(member);
+		}
+		// Fill up with duplicates if there weren't enough distinct members
+		for (int i = 0; kept.size() < population; i++) {
+			kept.add(island.get(i));
+		}
+		return kept;
+	}
+
+	/**
+	 * Choose a parent from an island, as the best of a few members picked at random.
+	 * @param island the members
+	 * @param byScore order of members, best first
+	 * @return the parent
+	 */
+	private Member<M> tournament(List<Member<M>> island, Comparator<Member<M>> byScore) {
+		RandomGenerator random = LWRand64.threadLocal();
+		Member<M> best = island.get(random.nextInt(island.size()));
+		for (int i = 1; i < TOURNAMENT; i++) {
+			Member<M> other = island.get(random.nextInt(island.size()));
+			if (byScore.compare(other, best) < 0) best = other;
+		}
+		return best;
+	}
+
+	/**
+	 * Cross over two operator lists at a random step boundary in each: the child takes the start of the first and the end of
+	 * the second.
+	 * @param a first parent's operators
+	 * @param b second parent's operators
+	 * @return the child's operators
+	 */
+	private List<E> crossover(List<E> a, List<E> b) {
+		RandomGenerator random = LWRand64.threadLocal();
+		int cutA = random.nextInt(a.size() / step + 1) * step;
+		int cutB = random.nextInt(b.size() / step + 1) * step;
+		List<E> child = new ArrayList<>(a.subList(0, cutA));
+		child.addAll(b.subList(cutB, b.size()));
+		if (child.isEmpty()) return new ArrayList<>(a);
+		if (child.size() > MAX_OPERATORS) child.subList(MAX_OPERATORS, child.size()).clear();
+		return child;
+	}
+
+	/**
+	 * Mutate an operator list: usually by replacing one step of operators, and sometimes by adding one at the end or removing
+	 * one.
+	 * @param ops the operators to change
+	 */
+	private void mutate(List<E> ops) {
+		RandomGenerator random = LWRand64.threadLocal();
+		int steps = ops.size() / step;
+		int choice = random.nextInt(8);
+		if (choice == 0 && ops.size() + step <= MAX_OPERATORS) {
+			for (int i = 0; i < step; i++) {
+				ops.add(randomEntry(ops.size()));
+			}
+		} else if (choice == 1 && steps > 1) {
+			int at = random.nextInt(steps) * step;
+			ops.subList(at, at + step).clear();
+		} else {
+			int at = random.nextInt(steps) * step;
+			for (int i = 0; i < step; i++) {
+				ops.set(at + i, randomEntry(at + i));
+			}
+		}
+	}
+
+	/**
+	 * Create a search for 64 bit mixes made of pairs of an addition and an xorshift, as {@link Gen64BitAddXorshift} makes.
+	 * @param database handle to database API
+	 * @param threshold score under which mixes are written to the database
+	 * @param islands number of islands
+	 * @param population number of mixes on each island
+	 * @param pool pool to score children on, or null to score them one at a time
+	 * @return the search
+	 */
+	public static GenIslands<Mix64, Mix64.MixEntry> forMix64AddXorshift(Database database, double threshold, int islands, int population, ForkJoinPool pool) {
+		return new GenIslands<>(threshold, islands, population, 2, pool) {
+			@Override
+			protected List<Mix64.MixEntry> operands(Mix64 mix) {
+				return mix.getOperands();
+			}
+
+			@Override
+			protected Mix64 build(List<Mix64.MixEntry> operands) {
+				return new Mix64(operands);
+			}
+
+			@Override
+			protected Mix64.MixEntry randomEntry(int index) {
+				return index % 2 == 0? Mix64.randomMixEntry(Mix64.Operand.ADD) : Mix64.randomMixEntry(Mix64.Operand.XSL,Mix64.Operand.XSR);
+			}
+
+			@Override
+			protected double score(Mix64 mix, double bound) {
+				return Avalanche64.scoreAvalancheBounded(mix,64,bound);
+			}
+
+			@Override
+			protected void submit(Mix64 mix) {
+				database.submit(mix);
+			}
+		};
+	}
+
+	/**
+	 * Create a search for 32 bit mixes made of pairs of an addition and an xorshift, as {@link Gen32BitAddXorshift} makes.
+	 * @param database handle to database API
+	 * @param threshold score under which mixes are written to the database
+	 * @param islands number of islands
+	 * @param population number of mixes on each island
+	 * @param pool pool to score children on, or null to score them one at a time
+	 * @return the search
+	 */
+	public static GenIslands<Mix32, Mix32.MixEntry> forMix32AddXorshift(Database database, double threshold, int islands, int population, ForkJoinPool pool) {
+		return new GenIslands<>(threshold, islands, population, 2, pool) {
+			@Override
+			protected List<Mix32.MixEntry> operands(Mix32 mix) {
+				return mix.getOperands();
+			}
+
+			@Override
+			protected Mix32 build(List<Mix32.MixEntry> operands) {
+				return new Mix32(operands);
+			}
+
+			@Override
+			protected Mix32.MixEntry randomEntry(int index) {
+				return index % 2 == 0? Mix32.randomMixEntry(Mix32.Operand.ADD) : Mix32.randomMixEntry(Mix32.Operand.XSL,Mix32.Operand.XSR);
+			}
+
+			@Override
+			protected double score(Mix32 mix, double bound) {
+				return Avalanche32.scoreAvalancheBounded(mix,32,bound);
+			}
+
+			@Override
+			protected void submit(Mix32 mix) {
+				database.submit(mix);
+			}
+		};
+	}
+}
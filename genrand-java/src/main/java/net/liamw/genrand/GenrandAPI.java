@@ -31,6 +31,8 @@ public class GenrandAPI {
 	
 	/**
 	 * Get an ARX mix by its type and definition. Returns a one-item list with the mix, or an empty list otherwise.
+	 * Types small enough to be in the score store are read from it directly by definition; their scores are single
+	 * precision.
 	 * @param type the type to query
 	 * @param definition the packed definition to query
 	 * @return a one element list containing the mix, or an empty list
@@ -1,20 +1,29 @@
 package net.liamw.genrand;
 
+import java.util.Arrays;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import net.liamw.genrand.function.arx.ARXLeaseWorker;
+
 /**
  * Main entrypoint for the backend.
  */
 @SpringBootApplication
 public class GenrandApplication implements CommandLineRunner {
 	/**
-	 * Main entrypoint.
+	 * Main entrypoint. With "worker" as the first argument, this runs an ARX worker for a coordinator instead of the backend
+	 * (see {@link ARXLeaseWorker}); a worker has no database or web server, so several can run on one machine.
 	 * @param args Any arguments passed on the command line.
 	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("worker")) {
+			ARXLeaseWorker.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		// Called to boot Spring.
 		SpringApplication.run(GenrandApplication.class, args);
 	}
@@ -3,9 +3,11 @@ package net.liamw.genrand;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.sql.DataSource;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -38,4 +40,15 @@ public class GenrandConfiguration {
 		DataSource source = new HikariDataSource(config);
 		return source;
 	}
+	
+	/**
+	 * Declare the pool used for parallel avalanche tests, where a single test needs to finish quickly.
+	 * @param parallelism the number of threads to use; anything below 1 means one per processor
+	 * @return the pool avalanche tests are to be run on
+	 */
+	@Bean
+	public ForkJoinPool getAvalanchePool(@Value("${genrand.avalanche.parallelism:0}") int parallelism) {
+		if (parallelism < 1) parallelism = Runtime.getRuntime().availableProcessors();
+		return new ForkJoinPool(parallelism);
+	}
 }
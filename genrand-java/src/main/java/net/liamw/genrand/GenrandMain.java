@@ -1,21 +1,23 @@
 package net.liamw.genrand;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import net.liamw.genrand.function.arx.ARXMix;
-import net.liamw.genrand.function.arx.MixARX16x2;
-import net.liamw.genrand.function.arx.MixARX16x3;
-import net.liamw.genrand.function.arx.MixARX16x4;
-import net.liamw.genrand.function.arx.MixARX32x2;
-import net.liamw.genrand.function.arx.MixARX32x3;
-import net.liamw.genrand.function.arx.MixARX32x4;
-import net.liamw.genrand.function.arx.MixARX64x2;
-import net.liamw.genrand.function.arx.MixARX64x3;
-import net.liamw.genrand.function.arx.MixARX64x4;
-import net.liamw.genrand.function.arx.MixARX8x2;
-import net.liamw.genrand.function.arx.MixARX8x3;
-import net.liamw.genrand.function.arx.MixARX8x4;
+import jakarta.annotation.PreDestroy;
+
+import net.liamw.genrand.function.MixCompiler;
+import net.liamw.genrand.function.PrefixScorer;
+import net.liamw.genrand.function.arx.ARXLeaseCoordinator;
+import net.liamw.genrand.function.arx.ARXMixInfo;
+import net.liamw.genrand.function.arx.ARXMixTypes;
+import net.liamw.genrand.function.arx.ARXScheduler;
+import net.liamw.genrand.function.arx.ARXScreener;
 import net.liamw.genrand.util.Database;
 
 /**
@@ -26,33 +28,183 @@ public class GenrandMain {
 	@Autowired
 	private Database database;
 	
+	/**
+	 * Pool the hill-climbs' mutants and the population search's children are scored on, sized by
+	 * genrand.avalanche.parallelism (see {@link GenrandConfiguration#getAvalanchePool(int)}).
+	 */
+	@Autowired
+	private ForkJoinPool avalanchePool;
+	
+	/**
+	 * Percentile of each ARX type that goes on from screening to the full test, and from the full test to graphs
+	 * (see {@link ARXScreener}). Both are decided from the round 2 score alone. A screened-out definition gets no full
+	 * scores and no graphs, only its round 2 screening score in mixarxscreened. 0, the default, turns screening off.
+	 */
+	@Value("${genrand.arx.screen.percentile:" + ARXScreener.DEFAULT_PERCENTILE + "}")
+	private double screenPercentile;
+	
+	/**
+	 * Number of workers enumerating ARX types in permuted counter order; anything below 1 means one per processor.
+	 */
+	@Value("${genrand.arx.parallelism:0}")
+	private int parallelism;
+	
+	/**
+	 * Share of the workers each ARX type gets, as type:weight pairs like "8x2:0.5,64x4:4" (see {@link ARXScheduler}).
+	 * Types that aren't listed have a weight of 1.
+	 */
+	@Value("${genrand.arx.weights:}")
+	private String weights;
+	
+	/**
+	 * ARX types to enumerate, as a comma separated list of tags like "8x2,16x2". Empty means every type.
+	 */
+	@Value("${genrand.arx.types:}")
+	private String typeTags;
+	
+	/**
+	 * What this backend does with the ARX types: "local" enumerates them itself, while "coordinator" leases ranges of them
+	 * to worker processes instead (see {@link ARXLeaseCoordinator} and {@link CoordinatorAPI}).
+	 */
+	@Value("${genrand.arx.role:local}")
+	private String role;
+	
+	/**
+	 * Number of counters in each range leased to a worker.
+	 */
+	@Value("${genrand.arx.lease.size:" + ARXLeaseCoordinator.DEFAULT_LEASE_SIZE + "}")
+	private long leaseSize;
+	
+	/**
+	 * Time in milliseconds a lease lasts without being renewed by its worker.
+	 */
+	@Value("${genrand.arx.lease.millis:" + ARXLeaseCoordinator.DEFAULT_LEASE_MILLIS + "}")
+	private long leaseMillis;
+	
+	/**
+	 * How the Mix32 and Mix64 searches run: "climb" runs the hill-climbs, while "islands" runs a population search instead
+	 * (see {@link GenIslands}).
+	 */
+	@Value("${genrand.mix.search:climb}")
+	private String mixSearch;
+	
+	/**
+	 * Number of islands in the population search.
+	 */
+	@Value("${genrand.mix.islands:" + GenIslands.DEFAULT_ISLANDS + "}")
+	private int islands;
+	
+	/**
+	 * Number of mixes on each island of the population search.
+	 */
+	@Value("${genrand.mix.population:" + GenIslands.DEFAULT_POPULATION + "}")
+	private int population;
+	
+	/**
+	 * Number of mutants of the best mix the Mix32 and Mix64 hill-climbs score at a time. Each one counts as an attempt.
+	 */
+	@Value("${genrand.mix.mutants:1}")
+	private int mutants;
+	
+	/**
+	 * Rough memory budget in bytes for the values the hill-climbs keep between the operators of their best mix, so copies
+	 * are only scored from the first operator they change (see {@link PrefixScorer}). 0 scores copies in full, each on
+	 * fresh samples; given a budget, every copy a hill-climb tries is scored on the same samples. A few hundred megabytes
+	 * holds the layers of a typical mix.
+	 */
+	@Value("${genrand.mix.cache.memory:0}")
+	private long mixCacheMemory;
+	
+	/**
+	 * Number of values a Mix32, Mix64 or Mix64C function diffuses interpreted before it is compiled (see {@link MixCompiler}).
+	 */
+	@Value("${genrand.mix.compile.threshold:" + MixCompiler.DEFAULT_COMPILE_THRESHOLD + "}")
+	private long compileThreshold;
+	
+	/**
+	 * Number of compiled functions kept for reuse by functions with the same operators.
+	 */
+	@Value("${genrand.mix.compile.cache:" + MixCompiler.DEFAULT_CACHE_SIZE + "}")
+	private int compileCache;
+	
+	/**
+	 * Coordinator handing out ranges to workers, or null if this backend isn't one.
+	 */
+	private volatile ARXLeaseCoordinator coordinator;
+	
+	/**
+	 * @return the coordinator handing out ranges to workers, or null if this backend isn't one
+	 */
+	public ARXLeaseCoordinator getCoordinator() {
+		return coordinator;
+	}
+	
+	/**
+	 * Scheduler enumerating the ARX types on this backend, or null if it isn't running one.
+	 */
+	private volatile ARXScheduler scheduler;
+	
+	/**
+	 * Stop the ARX workers before the database goes away, so the chunks they finish are written.
+	 */
+	@PreDestroy
+	public void stop() {
+		ARXScheduler running = scheduler;
+		if (running != null) running.close();
+	}
+	
 	public void runMixers() {
 		database.checkAndInitTables();
 		
-		ARXMix.generateInNewThread(database,MixARX8x2.INFO);
-		ARXMix.generateInNewThread(database,MixARX8x3.INFO);
-		ARXMix.generateInNewThread(database,MixARX8x4.INFO);
-		
-		ARXMix.generateInNewThread(database,MixARX16x2.INFO);
-		ARXMix.generateInNewThread(database,MixARX16x3.INFO);
-		ARXMix.generateInNewThread(database,MixARX16x4.INFO);
-		
-		ARXMix.generateInNewThread(database,MixARX32x2.INFO);
-		ARXMix.generateInNewThread(database,MixARX32x3.INFO);
-		ARXMix.generateInNewThread(database,MixARX32x4.INFO);
+		List<ARXMixInfo<?>> types = ARXMixTypes.ALL;
+		if (!typeTags.isBlank()) {
+			types = new ArrayList<>();
+			for (String tag : typeTags.split(",")) {
+				ARXMixInfo<?> type = ARXMixTypes.forTag(tag.trim());
+				if (type == null) throw new IllegalArgumentException("no ARX type " + tag.trim());
+				types.add(type);
+			}
+		}
 		
-		ARXMix.generateInNewThread(database,MixARX64x2.INFO);
-		ARXMix.generateInNewThread(database,MixARX64x3.INFO);
-		ARXMix.generateInNewThread(database,MixARX64x4.INFO);
+		if ("coordinator".equals(role)) {
+			// Workers do the enumeration and send back what they find
+			Map<String, Double> typeWeights = ARXScheduler.parseWeights(weights);
+			ARXLeaseCoordinator leases = new ARXLeaseCoordinator(database,leaseSize,leaseMillis);
+			for (ARXMixInfo<?> type : types) {
+				leases.add(type,typeWeights.getOrDefault(type.getDatabaseTag(),1.0));
+			}
+			coordinator = leases;
+		} else {
+			// Every type shares one pool of workers
+			Map<String, Double> typeWeights = ARXScheduler.parseWeights(weights);
+			ARXScheduler arx = new ARXScheduler(database,parallelism,screenPercentile);
+			for (ARXMixInfo<?> type : types) {
+				arx.add(type,typeWeights.getOrDefault(type.getDatabaseTag(),1.0));
+			}
+			scheduler = arx;
+			arx.start();
+		}
 	}
 
 	public void runMix32() {
 		database.checkAndInitTables();
-		Gen32BitAddXorshift.run(database,64,0.1);
+		MixCompiler.setCompileThreshold(compileThreshold);
+		MixCompiler.setCacheSize(compileCache);
+		if ("islands".equals(mixSearch)) {
+			GenIslands.forMix32AddXorshift(database,0.1,islands,population,avalanchePool).run();
+		} else {
+			Gen32BitAddXorshift.run(database,64,0.1,mutants,mutants > 1? avalanchePool : null,mixCacheMemory);
+		}
 	}
 	
 	public void runMix64() {
 		database.checkAndInitTables();
-		Gen64BitAddXorshift.run(database,64,0.2);
+		MixCompiler.setCompileThreshold(compileThreshold);
+		MixCompiler.setCacheSize(compileCache);
+		if ("islands".equals(mixSearch)) {
+			GenIslands.forMix64AddXorshift(database,0.2,islands,population,avalanchePool).run();
+		} else {
+			Gen64BitAddXorshift.run(database,64,0.2,mutants,mutants > 1? avalanchePool : null,mixCacheMemory);
+		}
 	}
 }
@@ -0,0 +1,74 @@
+package net.liamw.genrand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+/**
+ * The optimise step shared by the Gen* hill-climbs: make several copies of the best mix with one operator changed in each,
+ * score them, at the same time if there's a pool to do it on, and pick the best of them.
+ */
+final class MutantStep {
+	private MutantStep() {}
+
+	/**
+	 * Scores a mix for avalanche, giving up early once it is confidently going to score worse than a bound.
+	 * @param <M> mix function type
+	 */
+	@FunctionalInterface
+	interface BoundedScorer<M> {
+		/**
+		 * Score a mix.
+		 * @param mix the mix
+		 * @param bound the score the mix has to beat to be worth testing fully
+		 * @return the full score, or the score estimated so far if the mix was given up on, which is worse than the bound
+		 */
+		double score(M mix, double bound);
+	}
+
+	/**
+	 * The best copy of a step.
+	 * @param <M> mix function type
+	 * @param mix the copy
+	 * @param score its score
+	 */
+	record Scored<M>(M mix, double score) {}
+
+	/**
+	 * Make copies of the best mix and score them, returning the best copy. The copies are made on the calling thread.
+	 * @param <M> mix function type
+	 * @param count number of copies
+	 * @param copier makes a copy of the best mix with one operator changed
+	 * @param scorer scores a copy
+	 * @param bound score of the best mix, which a copy has to beat
+	 * @param pool pool to score the copies on at the same time, or null to score them one after another
+	 * @return the best copy and its score
+	 */
+	static <M> Scored<M> best(int count, Supplier<M> copier, BoundedScorer<M> scorer, double bound, ForkJoinPool pool) {
+		List<M> copies = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			copies.add(copier.get());
+		}
+		double[] scores = new double[count];
+		if (pool == null || count == 1) {
+			for (int i = 0; i < count; i++) {
+				scores[i] = scorer.score(copies.get(i), bound);
+			}
+		} else {
+			List<ForkJoinTask<Double>> tasks = new ArrayList<>(count);
+			for (M copy : copies) {
+				tasks.add(pool.submit(() -> scorer.score(copy, bound)));
+			}
+			for (int i = 0; i < count; i++) {
+				scores[i] = tasks.get(i).join();
+			}
+		}
+		int best = 0;
+		for (int i = 1; i < count; i++) {
+			if (scores[i] < scores[best]) best = i;
+		}
+		return new Scored<>(copies.get(best), scores[best]);
+	}
+}
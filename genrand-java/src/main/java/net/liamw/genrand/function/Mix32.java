@@ -2,11 +2,14 @@ package net.liamw.genrand.function;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.random.RandomGenerator;
 
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
@@ -57,15 +60,58 @@ public class Mix32 implements Diffuser {
 	public record MixEntry(Operand op, int arg) {};
 	
 	/**
-	 * List of operations to apply in order.
+	 * Operand types by ordinal, for unpacking programs.
 	 */
-	private final List<MixEntry> operands = new ArrayList<MixEntry>();
+	private static final Operand[] OPERANDS = Operand.values();
 	
 	/**
-	 * JIT-compiled function. Null if not compiled yet.
+	 * Number of longs each operator takes in a program.
+	 */
+	private static final int STRIDE = 1;
+	
+	/**
+	 * How a {@link PrefixScorer} reads functions: operators are compared and applied straight from the packed programs.
+	 */
+	public static final PrefixScorer.Operators<Mix32> PREFIX_OPERATORS = new PrefixScorer.Operators<>() {
+		@Override
+		public Mix32 snapshot(Mix32 function) {
+			// Copies share the program, which is never changed once made
+			return new Mix32(function);
+		}
+		
+		@Override
+		public int count(Mix32 function) {
+			return function.oplen();
+		}
+		
+		@Override
+		public boolean same(Mix32 a, Mix32 b, int index) {
+			return a.program[index * STRIDE] == b.program[index * STRIDE];
+		}
+		
+		@Override
+		public void apply(Mix32 function, int index, long[] values, int from, int to) {
+			final long packed = function.program[index * STRIDE];
+			applyBlock(OPERANDS[(int) (packed >>> 32)], (int) packed, values, from, to);
+		}
+	};
+	
+	/**
+	 * Operations to apply in order, packed one long to an operator: the operand's ordinal in the upper 32 bits and its argument in the lower 32 bits. A program is never changed once made, so a copy of a
+	 * function shares its program and every change makes a new one.
+	 */
+	private long[] program = new long[0];
+	
+	/**
+	 * JIT-compiled function. Null if not compiled yet, including while the function runs interpreted.
 	 */
 	private Diffuser compiled = null;
 	
+	/**
+	 * Number of values diffused interpreted since the function last changed.
+	 */
+	private long interpreted = 0;
+	
 	/**
 	 * Construct a function with no operators.
 	 */
@@ -76,48 +122,91 @@ public class Mix32 implements Diffuser {
 	 * @param other function to copy
 	 */
 	public Mix32(Mix32 other) {
-		operands.addAll(other.operands);
+		program = other.program;
 		compiled = other.compiled;
+		interpreted = other.interpreted;
+	}
+	
+	/**
+	 * Construct a function with the given operators.
+	 * @param operands operators to apply in order
+	 */
+	public Mix32(List<MixEntry> operands) {
+		program = new long[operands.size() * STRIDE];
+		for (int index = 0; index < operands.size(); index++) {
+			pack(program, index, operands.get(index));
+		}
 	}
 	
 	@Override
 	public int diffuse(int input) {
-		// If not yet compiled, do so and run the interpreted version this time.
-		if (compiled == null) {
-			compiled = compileClass();
-			// Start with the original value
-			int v = input;
-			// Apply each operation in order
-			for (MixEntry e : operands) {
-				switch (e.op) {
-					case ADD: v += e.arg; break;
-					case XOR: v ^= e.arg; break;
-					case MUL: v *= e.arg; break;
-					case ROL: v = Integer.rotateLeft(v, e.arg); break;
-					case ROR: v = Integer.rotateRight(v, e.arg); break;
-					case XSL: v ^= (v << e.arg); break;
-					case XSR: v ^= (v >>> e.arg); break;
-				}
+		// Run the compiled code version once the function has been used enough to be worth compiling
+		Diffuser c = compiledFor(1);
+		if (c != null) return c.diffuse(input);
+		// Start with the original value
+		int v = input;
+		// Apply each operation in order
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) (program[i] >>> 32)];
+			final int arg = (int) program[i];
+			switch (op) {
+				case ADD: v += arg; break;
+				case XOR: v ^= arg; break;
+				case MUL: v *= arg; break;
+				case ROL: v = Integer.rotateLeft(v, arg); break;
+				case ROR: v = Integer.rotateRight(v, arg); break;
+				case XSL: v ^= (v << arg); break;
+				case XSR: v ^= (v >>> arg); break;
 			}
-			return v;
-		} else {
-			// Run the compiled code version
-			return compiled.diffuse(input);
 		}
+		return v;
+	}
+	
+	@Override
+	public void diffuseBatch(int[] in, int[] out, int n) {
+		// Run the whole block in the compiled code once the function is worth compiling, and one operator at a time until then
+		Diffuser c = compiledFor(n);
+		if (c != null) {
+			c.diffuseBatch(in, out, n);
+			return;
+		}
+		System.arraycopy(in, 0, out, 0, n);
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) (program[i] >>> 32)];
+			final int arg = (int) program[i];
+			applyBlock(op, arg, out, 0, n);
+		}
+	}
+	
+	/**
+	 * Count values about to be diffused, and get the compiled function once enough have been diffused interpreted (see
+	 * {@link MixCompiler}).
+	 * @param n number of values about to be diffused
+	 * @return the compiled function, or null to run interpreted
+	 */
+	private Diffuser compiledFor(int n) {
+		if (compiled == null) {
+			interpreted += n;
+			if (!MixCompiler.isWorthCompiling(interpreted)) return null;
+			compiled = MixCompiler.get(MixCompiler.key(Mix32.class, program), this::compileClass);
+		}
+		return compiled;
 	}
 	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		for (MixEntry e : operands) {
-			switch (e.op) {
-				case ADD: sb.append(String.format("v += 0x%08X;\n", e.arg())); break;
-				case XOR: sb.append(String.format("v ^= 0x%08X;\n", e.arg())); break;
-				case MUL: sb.append(String.format("v *= 0x%08X;\n", e.arg())); break;
-				case ROL: sb.append(String.format("v = Integer.rotateLeft(v,%d);\n", e.arg())); break;
-				case ROR: sb.append(String.format("v = Integer.rotateRight(v,%d);\n", e.arg())); break;
-				case XSL: sb.append(String.format("v ^= v << %d;\n", e.arg())); break;
-				case XSR: sb.append(String.format("v ^= v >>> %d;\n", e.arg())); break;
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) (program[i] >>> 32)];
+			final int arg = (int) program[i];
+			switch (op) {
+				case ADD: sb.append(String.format("v += 0x%08X;\n", arg)); break;
+				case XOR: sb.append(String.format("v ^= 0x%08X;\n", arg)); break;
+				case MUL: sb.append(String.format("v *= 0x%08X;\n", arg)); break;
+				case ROL: sb.append(String.format("v = Integer.rotateLeft(v,%d);\n", arg)); break;
+				case ROR: sb.append(String.format("v = Integer.rotateRight(v,%d);\n", arg)); break;
+				case XSL: sb.append(String.format("v ^= v << %d;\n", arg)); break;
+				case XSR: sb.append(String.format("v ^= v >>> %d;\n", arg)); break;
 			}
 		}
 		return sb.toString();
@@ -128,15 +217,38 @@ public class Mix32 implements Diffuser {
 	 * @return the number of operators
 	 */
 	public int oplen() {
-		return operands.size();
+		return program.length / STRIDE;
 	}
 	
 	/**
-	 * Return the operator list.
+	 * Return the operator list. The list is a read-only view of the operators as they are now, and doesn't follow later
+	 * changes to the function.
 	 * @return the operator list
 	 */
 	public List<MixEntry> getOperands() {
-		return operands;
+		final long[] p = program;
+		return new AbstractList<MixEntry>() {
+			@Override
+			public MixEntry get(int index) {
+				Objects.checkIndex(index, size());
+				return new MixEntry(OPERANDS[(int) (p[index] >>> 32)], (int) p[index]);
+			}
+			
+			@Override
+			public int size() {
+				return p.length / STRIDE;
+			}
+		};
+	}
+	
+	/**
+	 * Write an operator into a program.
+	 * @param program the program
+	 * @param index position of the operator
+	 * @param e the operator
+	 */
+	private static void pack(long[] program, int index, MixEntry e) {
+		program[index] = ((long) e.op().ordinal() << 32) | (e.arg() & 0xFFFFFFFFL);
 	}
 	
 	/**
@@ -169,39 +281,97 @@ public class Mix32 implements Diffuser {
 	 * @param list The list of valid operator types to choose from
 	 */
 	public void addRandom(Operand... list) {
-		operands.add(randomMixEntry(list));
+		long[] p = Arrays.copyOf(program, program.length + STRIDE);
+		pack(p, oplen(), randomMixEntry(list));
+		program = p;
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
 	 * Replace a random operator from this function with another random operator.
 	 */
 	public void replaceRandom(Operand... list) {
-		if (operands.size() == 0) return;
+		if (program.length == 0) return;
 		RandomGenerator tlr = LWRand64.threadLocal();
-		int which = tlr.nextInt(operands.size());
-		operands.set(which, randomMixEntry(list));
+		int which = tlr.nextInt(oplen());
+		long[] p = program.clone();
+		pack(p, which, randomMixEntry(list));
+		program = p;
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
 	 * Replace the operator at this index with another random operator.
 	 */
 	public void replaceRandomAt(int index, Operand... list) {
-		if (operands.size() == 0) return;
-		operands.set(index, randomMixEntry(list));
+		if (program.length == 0) return;
+		long[] p = program.clone();
+		pack(p, index, randomMixEntry(list));
+		program = p;
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
 	 * Remove a random operator.
 	 */
 	public void removeRandom() {
-		if (operands.size() == 0) return;
+		if (program.length == 0) return;
 		RandomGenerator tlr = LWRand64.threadLocal();
-		int which = tlr.nextInt(operands.size());
-		operands.remove(which);
+		int which = tlr.nextInt(oplen());
+		long[] p = new long[program.length - STRIDE];
+		System.arraycopy(program, 0, p, 0, which * STRIDE);
+		System.arraycopy(program, (which + 1) * STRIDE, p, which * STRIDE, p.length - which * STRIDE);
+		program = p;
 		compiled = null;
+		interpreted = 0;
+	}
+	
+	/**
+	 * Apply one unpacked operator to a range of values in place, for scorers that keep the values between operators (see
+	 * {@link PrefixScorer}). Each value is held in the lower 32 bits of a long.
+	 * @param op the operand type
+	 * @param arg the argument
+	 * @param values the values
+	 * @param from index of the first value
+	 * @param to index to stop before
+	 */
+	private static void applyBlock(Operand op, int arg, long[] values, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int v = (int) values[i];
+			switch (op) {
+				case ADD: v += arg; break;
+				case XOR: v ^= arg; break;
+				case MUL: v *= arg; break;
+				case ROL: v = Integer.rotateLeft(v, arg); break;
+				case ROR: v = Integer.rotateRight(v, arg); break;
+				case XSL: v ^= (v << arg); break;
+				case XSR: v ^= (v >>> arg); break;
+			}
+			values[i] = v;
+		}
+	}
+	
+	/**
+	 * Apply one unpacked operator to a range of values in place.
+	 * @param op the operand type
+	 * @param arg the argument
+	 * @param values the values
+	 * @param from index of the first value
+	 * @param to index to stop before
+	 */
+	private static void applyBlock(Operand op, int arg, int[] values, int from, int to) {
+		switch (op) {
+			case ADD: for (int i = from; i < to; i++) values[i] += arg; break;
+			case XOR: for (int i = from; i < to; i++) values[i] ^= arg; break;
+			case MUL: for (int i = from; i < to; i++) values[i] *= arg; break;
+			case ROL: for (int i = from; i < to; i++) values[i] = Integer.rotateLeft(values[i], arg); break;
+			case ROR: for (int i = from; i < to; i++) values[i] = Integer.rotateRight(values[i], arg); break;
+			case XSL: for (int i = from; i < to; i++) values[i] ^= (values[i] << arg); break;
+			case XSR: for (int i = from; i < to; i++) values[i] ^= (values[i] >>> arg); break;
+		}
 	}
 	
 	/**
@@ -240,59 +410,7 @@ public class Mix32 implements Diffuser {
 			mth.visitVarInsn(Opcodes.ISTORE,2);
 			
 			// handle ops
-			
-			for (MixEntry e : operands) {
-				switch (e.op) {
-					case ADD:
-						mth.visitVarInsn(Opcodes.ILOAD,2);
-						mth.visitLdcInsn(e.arg());
-						mth.visitInsn(Opcodes.IADD);
-						mth.visitVarInsn(Opcodes.ISTORE,2);
-						break;
-					case XOR:
-						mth.visitVarInsn(Opcodes.ILOAD,2);
-						mth.visitLdcInsn(e.arg());
-						mth.visitInsn(Opcodes.IXOR);
-						mth.visitVarInsn(Opcodes.ISTORE,2);
-						break;
-					case MUL:
-						mth.visitVarInsn(Opcodes.ILOAD,2);
-						mth.visitLdcInsn(e.arg());
-						mth.visitInsn(Opcodes.IMUL);
-						mth.visitVarInsn(Opcodes.ISTORE,2);
-						break;
-					case ROL:
-						mth.visitVarInsn(Opcodes.ILOAD,2);
-						mth.visitIntInsn(Opcodes.BIPUSH, e.arg());
-						mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
-						mth.visitVarInsn(Opcodes.ISTORE,2);
-						break;
-					case ROR:
-						mth.visitVarInsn(Opcodes.ILOAD,2);
-						mth.visitIntInsn(Opcodes.BIPUSH, e.arg());
-						mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateRight","(II)I", false);
-						mth.visitVarInsn(Opcodes.ISTORE,2);
-						break;
-					case XSL:
-						mth.visitVarInsn(Opcodes.ILOAD,2);
-						mth.visitInsn(Opcodes.DUP);
-						mth.visitIntInsn(Opcodes.BIPUSH, e.arg());
-						mth.visitInsn(Opcodes.ISHL);
-						mth.visitInsn(Opcodes.IXOR);
-						mth.visitVarInsn(Opcodes.ISTORE,2);
-						break;
-					case XSR:
-						mth.visitVarInsn(Opcodes.ILOAD,2);
-						mth.visitInsn(Opcodes.DUP);
-						mth.visitIntInsn(Opcodes.BIPUSH, e.arg());
-						mth.visitInsn(Opcodes.IUSHR);
-						mth.visitInsn(Opcodes.IXOR);
-						mth.visitVarInsn(Opcodes.ISTORE,2);
-						break;
-					default:
-						throw new AssertionError("unimplemented opcode");
-				}
-			}
+			visitOps(mth, 2);
 			
 			// return v;
 			mth.visitVarInsn(Opcodes.ILOAD,2);
@@ -301,6 +419,51 @@ public class Mix32 implements Diffuser {
 			mth.visitMaxs(0, 0);
 			mth.visitEnd();
 		}
+		// void diffuseBatch(int[] in, int[] out, int n)
+		{
+			MethodVisitor mth = writer.visitMethod(Opcodes.ACC_PUBLIC, "diffuseBatch", "([I[II)V", null, null);
+			mth.visitCode();
+			
+			// 0: this
+			// 1: arg in
+			// 2: arg out
+			// 3: arg n
+			// 4: int i
+			// 5: int v
+			Label loop = new Label();
+			Label done = new Label();
+			
+			// for (int i = 0; i < n; i++)
+			mth.visitInsn(Opcodes.ICONST_0);
+			mth.visitVarInsn(Opcodes.ISTORE,4);
+			mth.visitLabel(loop);
+			mth.visitVarInsn(Opcodes.ILOAD,4);
+			mth.visitVarInsn(Opcodes.ILOAD,3);
+			mth.visitJumpInsn(Opcodes.IF_ICMPGE, done);
+			
+			// int v = in[i];
+			mth.visitVarInsn(Opcodes.ALOAD,1);
+			mth.visitVarInsn(Opcodes.ILOAD,4);
+			mth.visitInsn(Opcodes.IALOAD);
+			mth.visitVarInsn(Opcodes.ISTORE,5);
+			
+			// handle ops
+			visitOps(mth, 5);
+			
+			// out[i] = v;
+			mth.visitVarInsn(Opcodes.ALOAD,2);
+			mth.visitVarInsn(Opcodes.ILOAD,4);
+			mth.visitVarInsn(Opcodes.ILOAD,5);
+			mth.visitInsn(Opcodes.IASTORE);
+			
+			mth.visitIincInsn(4, 1);
+			mth.visitJumpInsn(Opcodes.GOTO, loop);
+			mth.visitLabel(done);
+			mth.visitInsn(Opcodes.RETURN);
+			
+			mth.visitMaxs(0, 0);
+			mth.visitEnd();
+		}
 		writer.visitEnd();
 		// Get the classfile bytes and load them
 		byte[] data = writer.toByteArray();
@@ -313,4 +476,66 @@ public class Mix32 implements Diffuser {
 			throw new Error(ex);
 		}
 	}
+	
+	/**
+	 * Emit the operations of this function, applied to the int in the given local variable slot.
+	 * @param mth method to emit into
+	 * @param v local variable slot holding the value
+	 */
+	private void visitOps(MethodVisitor mth, int v) {
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) (program[i] >>> 32)];
+			final int arg = (int) program[i];
+			switch (op) {
+				case ADD:
+					mth.visitVarInsn(Opcodes.ILOAD,v);
+					mth.visitLdcInsn(arg);
+					mth.visitInsn(Opcodes.IADD);
+					mth.visitVarInsn(Opcodes.ISTORE,v);
+					break;
+				case XOR:
+					mth.visitVarInsn(Opcodes.ILOAD,v);
+					mth.visitLdcInsn(arg);
+					mth.visitInsn(Opcodes.IXOR);
+					mth.visitVarInsn(Opcodes.ISTORE,v);
+					break;
+				case MUL:
+					mth.visitVarInsn(Opcodes.ILOAD,v);
+					mth.visitLdcInsn(arg);
+					mth.visitInsn(Opcodes.IMUL);
+					mth.visitVarInsn(Opcodes.ISTORE,v);
+					break;
+				case ROL:
+					mth.visitVarInsn(Opcodes.ILOAD,v);
+					mth.visitIntInsn(Opcodes.BIPUSH, arg);
+					mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
+					mth.visitVarInsn(Opcodes.ISTORE,v);
+					break;
+				case ROR:
+					mth.visitVarInsn(Opcodes.ILOAD,v);
+					mth.visitIntInsn(Opcodes.BIPUSH, arg);
+					mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateRight","(II)I", false);
+					mth.visitVarInsn(Opcodes.ISTORE,v);
+					break;
+				case XSL:
+					mth.visitVarInsn(Opcodes.ILOAD,v);
+					mth.visitInsn(Opcodes.DUP);
+					mth.visitIntInsn(Opcodes.BIPUSH, arg);
+					mth.visitInsn(Opcodes.ISHL);
+					mth.visitInsn(Opcodes.IXOR);
+					mth.visitVarInsn(Opcodes.ISTORE,v);
+					break;
+				case XSR:
+					mth.visitVarInsn(Opcodes.ILOAD,v);
+					mth.visitInsn(Opcodes.DUP);
+					mth.visitIntInsn(Opcodes.BIPUSH, arg);
+					mth.visitInsn(Opcodes.IUSHR);
+					mth.visitInsn(Opcodes.IXOR);
+					mth.visitVarInsn(Opcodes.ISTORE,v);
+					break;
+				default:
+					throw new AssertionError("unimplemented opcode");
+			}
+		}
+	}
 }
@@ -2,11 +2,14 @@ package net.liamw.genrand.function;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.random.RandomGenerator;
 
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
@@ -57,15 +60,59 @@ public class Mix64 implements Diffuser64 {
 	public record MixEntry(Operand op, long arg) {};
 	
 	/**
-	 * List of operations to apply in order.
+	 * Operand types by ordinal, for unpacking programs.
 	 */
-	private List<MixEntry> operands = new ArrayList<MixEntry>();
+	private static final Operand[] OPERANDS = Operand.values();
 	
 	/**
-	 * JIT-compiled function. Null if not compiled yet.
+	 * Number of longs each operator takes in a program.
+	 */
+	private static final int STRIDE = 2;
+	
+	/**
+	 * How a {@link PrefixScorer} reads functions: operators are compared and applied straight from the packed programs.
+	 */
+	public static final PrefixScorer.Operators<Mix64> PREFIX_OPERATORS = new PrefixScorer.Operators<>() {
+		@Override
+		public Mix64 snapshot(Mix64 function) {
+			// Copies share the program, which is never changed once made
+			return new Mix64(function);
+		}
+		
+		@Override
+		public int count(Mix64 function) {
+			return function.oplen();
+		}
+		
+		@Override
+		public boolean same(Mix64 a, Mix64 b, int index) {
+			final int i = index * STRIDE;
+			return a.program[i] == b.program[i] && a.program[i + 1] == b.program[i + 1];
+		}
+		
+		@Override
+		public void apply(Mix64 function, int index, long[] values, int from, int to) {
+			final int i = index * STRIDE;
+			applyBlock(OPERANDS[(int) function.program[i]], function.program[i + 1], values, from, to);
+		}
+	};
+	
+	/**
+	 * Operations to apply in order, packed two longs to an operator: the operand's ordinal, then its argument. A program is never changed once made, so a copy of a
+	 * function shares its program and every change makes a new one.
+	 */
+	private long[] program = new long[0];
+	
+	/**
+	 * JIT-compiled function. Null if not compiled yet, including while the function runs interpreted.
 	 */
 	private Diffuser64 compiled = null;
 	
+	/**
+	 * Number of values diffused interpreted since the function last changed.
+	 */
+	private long interpreted = 0;
+	
 	/**
 	 * Construct a function with no operators.
 	 */
@@ -76,47 +123,90 @@ public class Mix64 implements Diffuser64 {
 	 * @param other function to copy
 	 */
 	public Mix64(Mix64 other) {
-		operands.addAll(other.operands);
+		program = other.program;
 		compiled = other.compiled;
+		interpreted = other.interpreted;
+	}
+	
+	/**
+	 * Construct a function with the given operators.
+	 * @param operands operators to apply in order
+	 */
+	public Mix64(List<MixEntry> operands) {
+		program = new long[operands.size() * STRIDE];
+		for (int index = 0; index < operands.size(); index++) {
+			pack(program, index, operands.get(index));
+		}
 	}
 	
 	@Override
 	public long diffuse(long input) {
-		// If not yet compiled, do so and run the interpreted version this time.
-		if (compiled == null) {
-			compiled = compileClass();
-			// Start with the original value
-			long v = input;
-			// Apply each operation in order
-			for (MixEntry e : operands) {
-				switch (e.op) {
-					case ADD: v += e.arg; break;
-					case XOR: v ^= e.arg; break;
-					case MUL: v *= e.arg; break;
-					case ROL: v = Long.rotateLeft(v, (int) e.arg); break;
-					case ROR: v = Long.rotateRight(v, (int) e.arg); break;
-					case XSL: v ^= (v << ((int) e.arg)); break;
-					case XSR: v ^= (v >>> ((int) e.arg)); break;
-				}
+		// Run the compiled code version once the function has been used enough to be worth compiling
+		Diffuser64 c = compiledFor(1);
+		if (c != null) return c.diffuse(input);
+		// Start with the original value
+		long v = input;
+		// Apply each operation in order
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) program[i]];
+			final long arg = program[i + 1];
+			switch (op) {
+				case ADD: v += arg; break;
+				case XOR: v ^= arg; break;
+				case MUL: v *= arg; break;
+				case ROL: v = Long.rotateLeft(v, (int) arg); break;
+				case ROR: v = Long.rotateRight(v, (int) arg); break;
+				case XSL: v ^= (v << ((int) arg)); break;
+				case XSR: v ^= (v >>> ((int) arg)); break;
 			}
-			return v;
-		} else {
-			// Run the compiled code version
-			return compiled.diffuse(input);
 		}
+		return v;
+	}
+	
+	@Override
+	public void diffuseBatch(long[] in, long[] out, int n) {
+		// Run the whole block in the compiled code once the function is worth compiling, and one operator at a time until then
+		Diffuser64 c = compiledFor(n);
+		if (c != null) {
+			c.diffuseBatch(in, out, n);
+			return;
+		}
+		System.arraycopy(in, 0, out, 0, n);
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) program[i]];
+			final long arg = program[i + 1];
+			applyBlock(op, arg, out, 0, n);
+		}
+	}
+	
+	/**
+	 * Count values about to be diffused, and get the compiled function once enough have been diffused interpreted (see
+	 * {@link MixCompiler}).
+	 * @param n number of values about to be diffused
+	 * @return the compiled function, or null to run interpreted
+	 */
+	private Diffuser64 compiledFor(int n) {
+		if (compiled == null) {
+			interpreted += n;
+			if (!MixCompiler.isWorthCompiling(interpreted)) return null;
+			compiled = MixCompiler.get(MixCompiler.key(Mix64.class, program), this::compileClass);
+		}
+		return compiled;
 	}
 	
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		for (MixEntry e : operands) {
-			switch (e.op) {
-				case ADD: sb.append(String.format("v += 0x%016XL;\n", e.arg())); break;
-				case XOR: sb.append(String.format("v ^= 0x%016XL;\n", e.arg())); break;
-				case MUL: sb.append(String.format("v *= 0x%016XL;\n", e.arg())); break;
-				case ROL: sb.append(String.format("v = Long.rotateLeft(v,%d);\n", e.arg())); break;
-				case ROR: sb.append(String.format("v = Long.rotateRight(v,%d);\n", e.arg())); break;
-				case XSL: sb.append(String.format("v ^= v << %d;\n", e.arg())); break;
-				case XSR: sb.append(String.format("v ^= v >>> %d;\n", e.arg())); break;
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) program[i]];
+			final long arg = program[i + 1];
+			switch (op) {
+				case ADD: sb.append(String.format("v += 0x%016XL;\n", arg)); break;
+				case XOR: sb.append(String.format("v ^= 0x%016XL;\n", arg)); break;
+				case MUL: sb.append(String.format("v *= 0x%016XL;\n", arg)); break;
+				case ROL: sb.append(String.format("v = Long.rotateLeft(v,%d);\n", arg)); break;
+				case ROR: sb.append(String.format("v = Long.rotateRight(v,%d);\n", arg)); break;
+				case XSL: sb.append(String.format("v ^= v << %d;\n", arg)); break;
+				case XSR: sb.append(String.format("v ^= v >>> %d;\n", arg)); break;
 			}
 		}
 		return sb.toString();
@@ -127,15 +217,39 @@ public class Mix64 implements Diffuser64 {
 	 * @return the number of operators
 	 */
 	public int oplen() {
-		return operands.size();
+		return program.length / STRIDE;
 	}
 	
 	/**
-	 * Return the operator list.
+	 * Return the operator list. The list is a read-only view of the operators as they are now, and doesn't follow later
+	 * changes to the function.
 	 * @return the operator list
 	 */
 	public List<MixEntry> getOperands() {
-		return operands;
+		final long[] p = program;
+		return new AbstractList<MixEntry>() {
+			@Override
+			public MixEntry get(int index) {
+				Objects.checkIndex(index, size());
+				return new MixEntry(OPERANDS[(int) p[index * STRIDE]], p[index * STRIDE + 1]);
+			}
+			
+			@Override
+			public int size() {
+				return p.length / STRIDE;
+			}
+		};
+	}
+	
+	/**
+	 * Write an operator into a program.
+	 * @param program the program
+	 * @param index position of the operator
+	 * @param e the operator
+	 */
+	private static void pack(long[] program, int index, MixEntry e) {
+		program[index * STRIDE] = e.op().ordinal();
+		program[index * STRIDE + 1] = e.arg();
 	}
 	
 	/**
@@ -168,39 +282,73 @@ public class Mix64 implements Diffuser64 {
 	 * @param list The list of valid operator types to choose from
 	 */
 	public void addRandom(Operand... list) {
-		operands.add(randomMixEntry(list));
+		long[] p = Arrays.copyOf(program, program.length + STRIDE);
+		pack(p, oplen(), randomMixEntry(list));
+		program = p;
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
 	 * Replace a random operator from this function with another random operator.
 	 */
 	public void replaceRandom(Operand... list) {
-		if (operands.size() == 0) return;
+		if (program.length == 0) return;
 		RandomGenerator tlr = LWRand64.threadLocal();
-		int which = tlr.nextInt(operands.size());
-		operands.set(which, randomMixEntry(list));
+		int which = tlr.nextInt(oplen());
+		long[] p = program.clone();
+		pack(p, which, randomMixEntry(list));
+		program = p;
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
 	 * Replace the operator at this index with another random operator.
 	 */
 	public void replaceRandomAt(int index, Operand... list) {
-		if (operands.size() == 0) return;
-		operands.set(index, randomMixEntry(list));
+		if (program.length == 0) return;
+		long[] p = program.clone();
+		pack(p, index, randomMixEntry(list));
+		program = p;
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
 	 * Remove a random operator.
 	 */
 	public void removeRandom() {
-		if (operands.size() == 0) return;
+		if (program.length == 0) return;
 		RandomGenerator tlr = LWRand64.threadLocal();
-		int which = tlr.nextInt(operands.size());
-		operands.remove(which);
+		int which = tlr.nextInt(oplen());
+		long[] p = new long[program.length - STRIDE];
+		System.arraycopy(program, 0, p, 0, which * STRIDE);
+		System.arraycopy(program, (which + 1) * STRIDE, p, which * STRIDE, p.length - which * STRIDE);
+		program = p;
 		compiled = null;
+		interpreted = 0;
+	}
+	
+	/**
+	 * Apply one unpacked operator to a range of values in place.
+	 * @param op the operand type
+	 * @param arg the argument
+	 * @param values the values
+	 * @param from index of the first value
+	 * @param to index to stop before
+	 */
+	private static void applyBlock(Operand op, long arg, long[] values, int from, int to) {
+		final int shift = (int) arg;
+		switch (op) {
+			case ADD: for (int i = from; i < to; i++) values[i] += arg; break;
+			case XOR: for (int i = from; i < to; i++) values[i] ^= arg; break;
+			case MUL: for (int i = from; i < to; i++) values[i] *= arg; break;
+			case ROL: for (int i = from; i < to; i++) values[i] = Long.rotateLeft(values[i], shift); break;
+			case ROR: for (int i = from; i < to; i++) values[i] = Long.rotateRight(values[i], shift); break;
+			case XSL: for (int i = from; i < to; i++) values[i] ^= (values[i] << shift); break;
+			case XSR: for (int i = from; i < to; i++) values[i] ^= (values[i] >>> shift); break;
+		}
 	}
 	
 	/**
@@ -239,59 +387,7 @@ public class Mix64 implements Diffuser64 {
 			mth.visitVarInsn(Opcodes.LSTORE,3);
 			
 			// handle ops
-			
-			for (MixEntry e : operands) {
-				switch (e.op) {
-					case ADD:
-						mth.visitVarInsn(Opcodes.LLOAD,3);
-						mth.visitLdcInsn(e.arg());
-						mth.visitInsn(Opcodes.LADD);
-						mth.visitVarInsn(Opcodes.LSTORE,3);
-						break;
-					case XOR:
-						mth.visitVarInsn(Opcodes.LLOAD,3);
-						mth.visitLdcInsn(e.arg());
-						mth.visitInsn(Opcodes.LXOR);
-						mth.visitVarInsn(Opcodes.LSTORE,3);
-						break;
-					case MUL:
-						mth.visitVarInsn(Opcodes.LLOAD,3);
-						mth.visitLdcInsn(e.arg());
-						mth.visitInsn(Opcodes.LMUL);
-						mth.visitVarInsn(Opcodes.LSTORE,3);
-						break;
-					case ROL:
-						mth.visitVarInsn(Opcodes.LLOAD,3);
-						mth.visitIntInsn(Opcodes.BIPUSH, (int)e.arg());
-						mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Long", "rotateLeft","(JI)J", false);
-						mth.visitVarInsn(Opcodes.LSTORE,3);
-						break;
-					case ROR:
-						mth.visitVarInsn(Opcodes.LLOAD,3);
-						mth.visitIntInsn(Opcodes.BIPUSH, (int)e.arg());
-						mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Long", "rotateRight","(JI)J", false);
-						mth.visitVarInsn(Opcodes.LSTORE,3);
-						break;
-					case XSL:
-						mth.visitVarInsn(Opcodes.LLOAD,3);
-						mth.visitInsn(Opcodes.DUP2);
-						mth.visitIntInsn(Opcodes.BIPUSH, (int)e.arg());
-						mth.visitInsn(Opcodes.LSHL);
-						mth.visitInsn(Opcodes.LXOR);
-						mth.visitVarInsn(Opcodes.LSTORE,3);
-						break;
-					case XSR:
-						mth.visitVarInsn(Opcodes.LLOAD,3);
-						mth.visitInsn(Opcodes.DUP2);
-						mth.visitIntInsn(Opcodes.BIPUSH, (int)e.arg());
-						mth.visitInsn(Opcodes.LUSHR);
-						mth.visitInsn(Opcodes.LXOR);
-						mth.visitVarInsn(Opcodes.LSTORE,3);
-						break;
-					default:
-						throw new AssertionError("unimplemented opcode");
-				}
-			}
+			visitOps(mth, 3);
 			
 			// return v;
 			mth.visitVarInsn(Opcodes.LLOAD,3);
@@ -300,6 +396,51 @@ public class Mix64 implements Diffuser64 {
 			mth.visitMaxs(0, 0);
 			mth.visitEnd();
 		}
+		// void diffuseBatch(long[] in, long[] out, int n)
+		{
+			MethodVisitor mth = writer.visitMethod(Opcodes.ACC_PUBLIC, "diffuseBatch", "([J[JI)V", null, null);
+			mth.visitCode();
+			
+			// 0: this
+			// 1: arg in
+			// 2: arg out
+			// 3: arg n
+			// 4: int i
+			// 5: long v
+			Label loop = new Label();
+			Label done = new Label();
+			
+			// for (int i = 0; i < n; i++)
+			mth.visitInsn(Opcodes.ICONST_0);
+			mth.visitVarInsn(Opcodes.ISTORE,4);
+			mth.visitLabel(loop);
+			mth.visitVarInsn(Opcodes.ILOAD,4);
+			mth.visitVarInsn(Opcodes.ILOAD,3);
+			mth.visitJumpInsn(Opcodes.IF_ICMPGE, done);
+			
+			// long v = in[i];
+			mth.visitVarInsn(Opcodes.ALOAD,1);
+			mth.visitVarInsn(Opcodes.ILOAD,4);
+			mth.visitInsn(Opcodes.LALOAD);
+			mth.visitVarInsn(Opcodes.LSTORE,5);
+			
+			// handle ops
+			visitOps(mth, 5);
+			
+			// out[i] = v;
+			mth.visitVarInsn(Opcodes.ALOAD,2);
+			mth.visitVarInsn(Opcodes.ILOAD,4);
+			mth.visitVarInsn(Opcodes.LLOAD,5);
+			mth.visitInsn(Opcodes.LASTORE);
+			
+			mth.visitIincInsn(4, 1);
+			mth.visitJumpInsn(Opcodes.GOTO, loop);
+			mth.visitLabel(done);
+			mth.visitInsn(Opcodes.RETURN);
+			
+			mth.visitMaxs(0, 0);
+			mth.visitEnd();
+		}
 		writer.visitEnd();
 		// Get the classfile bytes and load them
 		byte[] data = writer.toByteArray();
@@ -312,6 +453,68 @@ public class Mix64 implements Diffuser64 {
 			throw new Error(ex);
 		}
 	}
+	
+	/**
+	 * Emit the operations of this function, applied to the long in the given local variable slot.
+	 * @param mth method to emit into
+	 * @param v local variable slot holding the value
+	 */
+	private void visitOps(MethodVisitor mth, int v) {
+		for (int i = 0; i < program.length; i += STRIDE) {
+			final Operand op = OPERANDS[(int) program[i]];
+			final long arg = program[i + 1];
+			switch (op) {
+				case ADD:
+					mth.visitVarInsn(Opcodes.LLOAD,v);
+					mth.visitLdcInsn(arg);
+					mth.visitInsn(Opcodes.LADD);
+					mth.visitVarInsn(Opcodes.LSTORE,v);
+					break;
+				case XOR:
+					mth.visitVarInsn(Opcodes.LLOAD,v);
+					mth.visitLdcInsn(arg);
+					mth.visitInsn(Opcodes.LXOR);
+					mth.visitVarInsn(Opcodes.LSTORE,v);
+					break;
+				case MUL:
+					mth.visitVarInsn(Opcodes.LLOAD,v);
+					mth.visitLdcInsn(arg);
+					mth.visitInsn(Opcodes.LMUL);
+					mth.visitVarInsn(Opcodes.LSTORE,v);
+					break;
+				case ROL:
+					mth.visitVarInsn(Opcodes.LLOAD,v);
+					mth.visitIntInsn(Opcodes.BIPUSH, (int)arg);
+					mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Long", "rotateLeft","(JI)J", false);
+					mth.visitVarInsn(Opcodes.LSTORE,v);
+					break;
+				case ROR:
+					mth.visitVarInsn(Opcodes.LLOAD,v);
+					mth.visitIntInsn(Opcodes.BIPUSH, (int)arg);
+					mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Long", "rotateRight","(JI)J", false);
+					mth.visitVarInsn(Opcodes.LSTORE,v);
+					break;
+				case XSL:
+					mth.visitVarInsn(Opcodes.LLOAD,v);
+					mth.visitInsn(Opcodes.DUP2);
+					mth.visitIntInsn(Opcodes.BIPUSH, (int)arg);
+					mth.visitInsn(Opcodes.LSHL);
+					mth.visitInsn(Opcodes.LXOR);
+					mth.visitVarInsn(Opcodes.LSTORE,v);
+					break;
+				case XSR:
+					mth.visitVarInsn(Opcodes.LLOAD,v);
+					mth.visitInsn(Opcodes.DUP2);
+					mth.visitIntInsn(Opcodes.BIPUSH, (int)arg);
+					mth.visitInsn(Opcodes.LUSHR);
+					mth.visitInsn(Opcodes.LXOR);
+					mth.visitVarInsn(Opcodes.LSTORE,v);
+					break;
+				default:
+					throw new AssertionError("unimplemented opcode");
+			}
+		}
+	}
 }
 
 
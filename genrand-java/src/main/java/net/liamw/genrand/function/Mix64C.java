@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.random.RandomGenerator;
 
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
@@ -43,10 +44,40 @@ public class Mix64C implements Diffuser64 {
 	private List<MixEntry> operands = new ArrayList<MixEntry>();
 	
 	/**
-	 * JIT-compiled function. Null if not compiled yet.
+	 * How a {@link PrefixScorer} reads functions: operators are compared and applied straight from the operator lists.
+	 */
+	public static final PrefixScorer.Operators<Mix64C> PREFIX_OPERATORS = new PrefixScorer.Operators<>() {
+		@Override
+		public Mix64C snapshot(Mix64C function) {
+			return new Mix64C(function);
+		}
+		
+		@Override
+		public int count(Mix64C function) {
+			return function.operands.size();
+		}
+		
+		@Override
+		public boolean same(Mix64C a, Mix64C b, int index) {
+			return a.operands.get(index).equals(b.operands.get(index));
+		}
+		
+		@Override
+		public void apply(Mix64C function, int index, long[] values, int from, int to) {
+			applyBlock(function.operands.get(index), values, from, to);
+		}
+	};
+	
+	/**
+	 * JIT-compiled function. Null if not compiled yet, including while the function runs interpreted.
 	 */
 	private Diffuser64 compiled = null;
 	
+	/**
+	 * Number of values diffused interpreted since the function last changed.
+	 */
+	private long interpreted = 0;
+	
 	/**
 	 * Construct a function with no operators.
 	 */
@@ -59,35 +90,69 @@ public class Mix64C implements Diffuser64 {
 	public Mix64C(Mix64C other) {
 		operands.addAll(other.operands);
 		compiled = other.compiled;
+		interpreted = other.interpreted;
+	}
+	
+	/**
+	 * Construct a function with the given operators.
+	 * @param operands operators to apply in order
+	 */
+	public Mix64C(List<MixEntry> operands) {
+		this.operands.addAll(operands);
 	}
 	
 	@Override
 	public long diffuse(long input) {
-		// If not yet compiled, do so and run the interpreted version this time.
-		if (compiled == null) {
-			compiled = compileClass();
-			// Start with the original value
-			long v = input;
-			int a = (int)(v >>> 32);
-			int b = (int)(v);
-			// Apply each operation in order
-			for (MixEntry e : operands) {
-				// apply operation
-				switch (e.op) {
-					case LADDROLR: a += Integer.rotateLeft(b, (int)e.arg); break;
-					case LXORROLR: a ^= Integer.rotateLeft(b, (int)e.arg); break;
-					case LSUBROLR: a -= Integer.rotateLeft(b, (int)e.arg); break;
-				}
-				// swap halves
-				int t = a;
-				a = b;
-				b = t;
+		// Run the compiled code version once the function has been used enough to be worth compiling
+		Diffuser64 c = compiledFor(1);
+		if (c != null) return c.diffuse(input);
+		// Start with the original value
+		long v = input;
+		int a = (int)(v >>> 32);
+		int b = (int)(v);
+		// Apply each operation in order
+		for (MixEntry e : operands) {
+			// apply operation
+			switch (e.op) {
+				case LADDROLR: a += Integer.rotateLeft(b, (int)e.arg); break;
+				case LXORROLR: a ^= Integer.rotateLeft(b, (int)e.arg); break;
+				case LSUBROLR: a -= Integer.rotateLeft(b, (int)e.arg); break;
 			}
-			return ((a & 0xFFFFFFFFL) << 32) | (b & 0xFFFFFFFFL);
-		} else {
-			// Run the compiled code version
-			return compiled.diffuse(input);
+			// swap halves
+			int t = a;
+			a = b;
+			b = t;
 		}
+		return ((a & 0xFFFFFFFFL) << 32) | (b & 0xFFFFFFFFL);
+	}
+	
+	@Override
+	public void diffuseBatch(long[] in, long[] out, int n) {
+		// Run the whole block in the compiled code once the function is worth compiling, and one operator at a time until then
+		Diffuser64 c = compiledFor(n);
+		if (c != null) {
+			c.diffuseBatch(in, out, n);
+			return;
+		}
+		System.arraycopy(in, 0, out, 0, n);
+		for (MixEntry e : operands) {
+			applyBlock(e, out, 0, n);
+		}
+	}
+	
+	/**
+	 * Count values about to be diffused, and get the compiled function once enough have been diffused interpreted (see
+	 * {@link MixCompiler}).
+	 * @param n number of values about to be diffused
+	 * @return the compiled function, or null to run interpreted
+	 */
+	private Diffuser64 compiledFor(int n) {
+		if (compiled == null) {
+			interpreted += n;
+			if (!MixCompiler.isWorthCompiling(interpreted)) return null;
+			compiled = MixCompiler.get(List.copyOf(operands), this::compileClass);
+		}
+		return compiled;
 	}
 	
 	public String toString() {
@@ -141,6 +206,7 @@ public class Mix64C implements Diffuser64 {
 	public void addRandom(Operand... list) {
 		operands.add(randomMixEntry(list));
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
@@ -152,6 +218,7 @@ public class Mix64C implements Diffuser64 {
 		int which = tlr.nextInt(operands.size());
 		operands.set(which, randomMixEntry(list));
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
@@ -161,6 +228,7 @@ public class Mix64C implements Diffuser64 {
 		if (operands.size() == 0) return;
 		operands.set(index, randomMixEntry(list));
 		compiled = null;
+		interpreted = 0;
 	}
 	
 	/**
@@ -172,6 +240,32 @@ public class Mix64C implements Diffuser64 {
 		int which = tlr.nextInt(operands.size());
 		operands.remove(which);
 		compiled = null;
+		interpreted = 0;
+	}
+	
+	/**
+	 * Apply one operator to a range of values in place, for scorers that keep the values between operators (see
+	 * {@link PrefixScorer}). Each value holds the left half in its upper 32 bits and the right half in its lower 32 bits,
+	 * as {@link #diffuse(long)} takes and returns them.
+	 * @param e the operator
+	 * @param values the values
+	 * @param from index of the first value
+	 * @param to index to stop before
+	 */
+	public static void applyBlock(MixEntry e, long[] values, int from, int to) {
+		final int shift = (int) e.arg();
+		for (int i = from; i < to; i++) {
+			int a = (int)(values[i] >>> 32);
+			int b = (int)(values[i]);
+			// apply operation
+			switch (e.op()) {
+				case LADDROLR: a += Integer.rotateLeft(b, shift); break;
+				case LXORROLR: a ^= Integer.rotateLeft(b, shift); break;
+				case LSUBROLR: a -= Integer.rotateLeft(b, shift); break;
+			}
+			// swap halves
+			values[i] = ((b & 0xFFFFFFFFL) << 32) | (a & 0xFFFFFFFFL);
+		}
 	}
 	
 	/**
@@ -210,72 +304,72 @@ public class Mix64C implements Diffuser64 {
 			final int INT_A = 3;
 			final int INT_B = 4;
 			
-			// int a = (int)(c >>> 32);
-			mth.visitVarInsn(Opcodes.LLOAD,ARG_C);
-			mth.visitLdcInsn(32);
-			mth.visitInsn(Opcodes.LUSHR);
-			mth.visitInsn(Opcodes.L2I);
-			mth.visitVarInsn(Opcodes.ISTORE,INT_A);
-			// int b = (int)(c);
-			mth.visitVarInsn(Opcodes.LLOAD,ARG_C);
-			mth.visitInsn(Opcodes.L2I);
-			mth.visitVarInsn(Opcodes.ISTORE,INT_B);
+			// int a = (int)(c >>> 32); int b = (int)(c);
+			visitSplit(mth, ARG_C, INT_A, INT_B);
 			
 			// handle ops
-			
-			for (MixEntry e : operands) {
-				switch (e.op) {
-					case LADDROLR:
-						mth.visitVarInsn(Opcodes.ILOAD,INT_A);
-						mth.visitVarInsn(Opcodes.ILOAD,INT_B);
-						mth.visitIntInsn(Opcodes.BIPUSH,(int)e.arg());
-						mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
-						mth.visitInsn(Opcodes.IADD);
-						mth.visitVarInsn(Opcodes.ISTORE,INT_A);
-						break;
-					case LXORROLR:
-						mth.visitVarInsn(Opcodes.ILOAD,INT_A);
-						mth.visitVarInsn(Opcodes.ILOAD,INT_B);
-						mth.visitIntInsn(Opcodes.BIPUSH,(int)e.arg());
-						mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
-						mth.visitInsn(Opcodes.IXOR);
-						mth.visitVarInsn(Opcodes.ISTORE,INT_A);
-						break;
-					case LSUBROLR:
-						mth.visitVarInsn(Opcodes.ILOAD,INT_A);
-						mth.visitVarInsn(Opcodes.ILOAD,INT_B);
-						mth.visitIntInsn(Opcodes.BIPUSH,(int)e.arg());
-						mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
-						mth.visitInsn(Opcodes.ISUB);
-						mth.visitVarInsn(Opcodes.ISTORE,INT_A);
-						break;
-					default:
-						throw new AssertionError("unimplemented opcode");
-				}
-				
-				// swap A and B - <no direct Java analogue)
-				mth.visitVarInsn(Opcodes.ILOAD,INT_A);
-				mth.visitVarInsn(Opcodes.ILOAD,INT_B);
-				mth.visitVarInsn(Opcodes.ISTORE,INT_A);
-				mth.visitVarInsn(Opcodes.ISTORE,INT_B);
-			}
+			visitOps(mth, INT_A, INT_B);
 			
 			// return ((a & 0xFFFFFFFFL) << 32) | (b & 0xFFFFFFFFL);
-			mth.visitVarInsn(Opcodes.ILOAD,INT_A);
-			mth.visitInsn(Opcodes.I2L);
-			mth.visitLdcInsn(0xFFFFFFFFL);
-			mth.visitInsn(Opcodes.LAND);
-			mth.visitIntInsn(Opcodes.BIPUSH, 32);
-			mth.visitInsn(Opcodes.LSHL);
+			visitJoin(mth, INT_A, INT_B);
+			mth.visitInsn(Opcodes.LRETURN);
 			
-			mth.visitVarInsn(Opcodes.ILOAD,INT_B);
-			mth.visitInsn(Opcodes.I2L);
-			mth.visitLdcInsn(0xFFFFFFFFL);
-			mth.visitInsn(Opcodes.LAND);
+			mth.visitMaxs(0, 0);
+			mth.visitEnd();
+		}
+		// void diffuseBatch(long[] in, long[] out, int n)
+		{
+			MethodVisitor mth = writer.visitMethod(Opcodes.ACC_PUBLIC, "diffuseBatch", "([J[JI)V", null, null);
+			mth.visitCode();
 			
-			mth.visitInsn(Opcodes.LOR);
+			// 0: this
+			// 1: arg in
+			// 2: arg out
+			// 3: arg n
+			// 4: int i
+			// 5: long c
+			// 7: int a
+			// 8: int b
+			final int ARG_IN = 1;
+			final int ARG_OUT = 2;
+			final int ARG_N = 3;
+			final int INT_I = 4;
+			final int LONG_C = 5;
+			final int INT_A = 7;
+			final int INT_B = 8;
+			Label loop = new Label();
+			Label done = new Label();
 			
-			mth.visitInsn(Opcodes.LRETURN);
+			// for (int i = 0; i < n; i++)
+			mth.visitInsn(Opcodes.ICONST_0);
+			mth.visitVarInsn(Opcodes.ISTORE,INT_I);
+			mth.visitLabel(loop);
+			mth.visitVarInsn(Opcodes.ILOAD,INT_I);
+			mth.visitVarInsn(Opcodes.ILOAD,ARG_N);
+			mth.visitJumpInsn(Opcodes.IF_ICMPGE, done);
+			
+			// long c = in[i];
+			mth.visitVarInsn(Opcodes.ALOAD,ARG_IN);
+			mth.visitVarInsn(Opcodes.ILOAD,INT_I);
+			mth.visitInsn(Opcodes.LALOAD);
+			mth.visitVarInsn(Opcodes.LSTORE,LONG_C);
+			
+			// int a = (int)(c >>> 32); int b = (int)(c);
+			visitSplit(mth, LONG_C, INT_A, INT_B);
+			
+			// handle ops
+			visitOps(mth, INT_A, INT_B);
+			
+			// out[i] = ((a & 0xFFFFFFFFL) << 32) | (b & 0xFFFFFFFFL);
+			mth.visitVarInsn(Opcodes.ALOAD,ARG_OUT);
+			mth.visitVarInsn(Opcodes.ILOAD,INT_I);
+			visitJoin(mth, INT_A, INT_B);
+			mth.visitInsn(Opcodes.LASTORE);
+			
+			mth.visitIincInsn(INT_I, 1);
+			mth.visitJumpInsn(Opcodes.GOTO, loop);
+			mth.visitLabel(done);
+			mth.visitInsn(Opcodes.RETURN);
 			
 			mth.visitMaxs(0, 0);
 			mth.visitEnd();
@@ -292,4 +386,91 @@ public class Mix64C implements Diffuser64 {
 			throw new Error(ex);
 		}
 	}
+	
+	/**
+	 * Emit code splitting the long in the given slot into its high half a and low half b.
+	 * @param mth method to emit into
+	 * @param c local variable slot holding the long value
+	 * @param a local variable slot to receive the high half
+	 * @param b local variable slot to receive the low half
+	 */
+	private static void visitSplit(MethodVisitor mth, int c, int a, int b) {
+		// int a = (int)(c >>> 32);
+		mth.visitVarInsn(Opcodes.LLOAD,c);
+		mth.visitLdcInsn(32);
+		mth.visitInsn(Opcodes.LUSHR);
+		mth.visitInsn(Opcodes.L2I);
+		mth.visitVarInsn(Opcodes.ISTORE,a);
+		// int b = (int)(c);
+		mth.visitVarInsn(Opcodes.LLOAD,c);
+		mth.visitInsn(Opcodes.L2I);
+		mth.visitVarInsn(Opcodes.ISTORE,b);
+	}
+	
+	/**
+	 * Emit the operations of this function, applied to the halves in the given local variable slots.
+	 * @param mth method to emit into
+	 * @param a local variable slot holding the high half
+	 * @param b local variable slot holding the low half
+	 */
+	private void visitOps(MethodVisitor mth, int a, int b) {
+		for (MixEntry e : operands) {
+			switch (e.op) {
+				case LADDROLR:
+					mth.visitVarInsn(Opcodes.ILOAD,a);
+					mth.visitVarInsn(Opcodes.ILOAD,b);
+					mth.visitIntInsn(Opcodes.BIPUSH,(int)e.arg());
+					mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
+					mth.visitInsn(Opcodes.IADD);
+					mth.visitVarInsn(Opcodes.ISTORE,a);
+					break;
+				case LXORROLR:
+					mth.visitVarInsn(Opcodes.ILOAD,a);
+					mth.visitVarInsn(Opcodes.ILOAD,b);
+					mth.visitIntInsn(Opcodes.BIPUSH,(int)e.arg());
+					mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
+					mth.visitInsn(Opcodes.IXOR);
+					mth.visitVarInsn(Opcodes.ISTORE,a);
+					break;
+				case LSUBROLR:
+					mth.visitVarInsn(Opcodes.ILOAD,a);
+					mth.visitVarInsn(Opcodes.ILOAD,b);
+					mth.visitIntInsn(Opcodes.BIPUSH,(int)e.arg());
+					mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
+					mth.visitInsn(Opcodes.ISUB);
+					mth.visitVarInsn(Opcodes.ISTORE,a);
+					break;
+				default:
+					throw new AssertionError("unimplemented opcode");
+			}
+			
+			// swap A and B - <no direct Java analogue)
+			mth.visitVarInsn(Opcodes.ILOAD,a);
+			mth.visitVarInsn(Opcodes.ILOAD,b);
+			mth.visitVarInsn(Opcodes.ISTORE,a);
+			mth.visitVarInsn(Opcodes.ISTORE,b);
+		}
+	}
+	
+	/**
+	 * Emit code pushing the long made of the halves in the given local variable slots.
+	 * @param mth method to emit into
+	 * @param a local variable slot holding the high half
+	 * @param b local variable slot holding the low half
+	 */
+	private static void visitJoin(MethodVisitor mth, int a, int b) {
+		mth.visitVarInsn(Opcodes.ILOAD,a);
+		mth.visitInsn(Opcodes.I2L);
+		mth.visitLdcInsn(0xFFFFFFFFL);
+		mth.visitInsn(Opcodes.LAND);
+		mth.visitIntInsn(Opcodes.BIPUSH, 32);
+		mth.visitInsn(Opcodes.LSHL);
+		
+		mth.visitVarInsn(Opcodes.ILOAD,b);
+		mth.visitInsn(Opcodes.I2L);
+		mth.visitLdcInsn(0xFFFFFFFFL);
+		mth.visitInsn(Opcodes.LAND);
+		
+		mth.visitInsn(Opcodes.LOR);
+	}
 }
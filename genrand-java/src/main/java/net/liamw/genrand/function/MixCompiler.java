@@ -0,0 +1,180 @@
+package net.liamw.genrand.function;
+
+import java.lang.ref.Cleaner;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides when {@link Mix64}, {@link Mix32} and {@link Mix64C} functions are compiled into hidden classes, and shares the
+ * classes between functions with the same operators.
+ * <br>
+ * A hill-climb makes a new function for every candidate, and most candidates are only scored once, often only for the
+ * first few thousand samples before they are given up on. Compiling each of them would define a hidden class per
+ * candidate, costing compile time that the candidate never gets back along with metaspace and code cache. So functions
+ * run interpreted, one operator at a time over a whole block of values, until they have diffused enough values for
+ * compiling to pay off, which in practice means the functions that are kept and tested again.
+ * <br>
+ * Compiled functions are kept in a cache keyed by operator list, so a function with the same operators as one compiled
+ * recently reuses its class. Classes that fall out of the cache and are no longer used by any function can be unloaded;
+ * the counts of classes defined and collected show whether that is keeping up.
+ */
+public final class MixCompiler {
+	/**
+	 * Default number of values a function diffuses interpreted before it is compiled, about two full avalanche tests of a
+	 * 64 bit function. Interpreting a block one operator at a time runs at close to compiled speed, while a new class
+	 * costs a compile and then runs slowly until the JIT gets to it, so only functions that are tested again, such as
+	 * the best mix of a climb when it is written out, make compiling pay.
+	 */
+	public static final long DEFAULT_COMPILE_THRESHOLD = 1L << 23;
+	/**
+	 * Default number of compiled functions kept in the cache.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	/**
+	 * Cache key for a packed program, compared by its contents.
+	 * @param type the function class the program belongs to
+	 * @param program the program, which is never changed
+	 */
+	private record Program(Class<?> type, long[] program) {
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Program p && type == p.type && Arrays.equals(program, p.program);
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + Arrays.hashCode(program);
+		}
+	}
+
+	/**
+	 * Counts classes as they are collected.
+	 */
+	private static final Cleaner CLEANER = Cleaner.create();
+	/**
+	 * Number of values a function diffuses interpreted before it is compiled.
+	 */
+	private static volatile long compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+	/**
+	 * Compiled functions by operator list, least recently used first. Guarded by its own lock.
+	 */
+	private static final LinkedHashMap<Object, Object> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+			return size() > cacheSize;
+		}
+	};
+	/**
+	 * Number of compiled functions kept in the cache.
+	 */
+	private static volatile int cacheSize = DEFAULT_CACHE_SIZE;
+	/**
+	 * Number of classes defined.
+	 */
+	private static final AtomicLong DEFINED = new AtomicLong();
+	/**
+	 * Number of classes collected.
+	 */
+	private static final AtomicLong COLLECTED = new AtomicLong();
+	/**
+	 * Number of compiled functions found in the cache.
+	 */
+	private static final AtomicLong HITS = new AtomicLong();
+
+	private MixCompiler() {}
+
+	/**
+	 * Decide whether a function that has diffused the given number of values interpreted should be compiled.
+	 * @param interpreted number of values diffused interpreted since the function last changed
+	 * @return true if the function should be compiled
+	 */
+	public static boolean isWorthCompiling(long interpreted) {
+		return interpreted >= compileThreshold;
+	}
+
+	/**
+	 * Make a cache key for a packed program.
+	 * @param type the function class the program belongs to
+	 * @param program the program, which mustn't be changed afterwards
+	 * @return the key
+	 */
+	static Object key(Class<?> type, long[] program) {
+		return new Program(type, program);
+	}
+
+	/**
+	 * Get the compiled function for an operator list from the cache, compiling it if it isn't there.
+	 * @param <T> compiled function type
+	 * @param key the operators of the function: an unchanging list of operators, or a key from {@link #key(Class, long[])}
+	 * @param compile compiles the function into a new hidden class
+	 * @return the compiled function
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T get(Object key, Supplier<T> compile) {
+		synchronized (CACHE) {
+			Object cached = CACHE.get(key);
+			if (cached != null) {
+				HITS.incrementAndGet();
+				return (T) cached;
+			}
+		}
+		// Compile outside the lock; if two threads compile the same operators at once, the later one wins the cache entry
+		T compiled = compile.get();
+		DEFINED.incrementAndGet();
+		CLEANER.register(compiled.getClass(), COLLECTED::incrementAndGet);
+		synchronized (CACHE) {
+			CACHE.put(key, compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Set the number of values a function diffuses interpreted before it is compiled.
+	 * @param threshold number of values; 0 compiles every function the first time it is used
+	 */
+	public static void setCompileThreshold(long threshold) {
+		compileThreshold = Math.max(0, threshold);
+	}
+
+	/**
+	 * Set the number of compiled functions kept in the cache. A smaller size takes effect as new functions are added.
+	 * @param size number of functions
+	 */
+	public static void setCacheSize(int size) {
+		cacheSize = Math.max(0, size);
+	}
+
+	/**
+	 * @return the number of hidden classes defined for compiled functions
+	 */
+	public static long getDefinedCount() {
+		return DEFINED.get();
+	}
+
+	/**
+	 * @return the number of those classes that have been collected
+	 */
+	public static long getCollectedCount() {
+		return COLLECTED.get();
+	}
+
+	/**
+	 * @return the number of times a compiled function was found in the cache instead of being compiled
+	 */
+	public static long getCacheHits() {
+		return HITS.get();
+	}
+
+	/**
+	 * @return the number of compiled functions in the cache
+	 */
+	public static int getCachedCount() {
+		synchronized (CACHE) {
+			return CACHE.size();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package net.liamw.genrand.function;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+import net.liamw.genrand.util.Avalanche32;
+import net.liamw.genrand.util.Avalanche64;
+import net.liamw.genrand.util.FlipCounter;
+import net.liamw.genrand.util.GroupedFlipCounter;
+
+/**
+ * Avalanche scorer for mix functions of up to 64 bits that only differ from a base function after some point, such as the
+ * copies a hill-climb makes of its best function with one operator replaced or added.
+ * <br>
+ * The scorer tests every function on one fixed set of samples: each input and a copy of it with each bit flipped. It keeps
+ * the values of every sample after each operator of the base function, so a function that shares its first k operators
+ * with the base only has to run its operators from k onwards. Values are kept in longs whatever the width of the function,
+ * and only the low bits are counted. A held layer of values takes a few tens of megabytes, so the number of layers is
+ * limited by a memory budget; when the base is longer than that, the deepest layers are the ones that aren't held, and
+ * functions that differ beyond them run from the deepest held layer.
+ * <br>
+ * Because every function sees the same samples, differences between scores are down to the functions rather than the
+ * inputs drawn. The inputs are drawn the same way as the sampled tests of {@link Avalanche32} and {@link Avalanche64}, and
+ * the scores are on the same scale.
+ * @param <F> mix function type
+ */
+public final class PrefixScorer<F> {
+	/**
+	 * Number of samples, the same as a full avalanche test.
+	 */
+	private static final int SAMPLES = 1 << 16;
+	/**
+	 * Number of samples run through the operators at a time when scoring.
+	 */
+	private static final int BLOCK_SAMPLES = 256;
+	/**
+	 * Number of samples after which a function is first checked against the bound; the count doubles for each check after.
+	 */
+	private static final int FIRST_CHECK = GroupedFlipCounter.CYCLE;
+
+	/**
+	 * Reads the operators of a mix function where they are held, so comparing a function with the base doesn't unpack them.
+	 * @param <F> mix function type
+	 */
+	public interface Operators<F> {
+		/**
+		 * Make a copy of a function that later changes to the function don't affect, to keep as the base.
+		 * @param function the function
+		 * @return the copy
+		 */
+		F snapshot(F function);
+
+		/**
+		 * Get the number of operators of a function.
+		 * @param function the function
+		 * @return the number of operators
+		 */
+		int count(F function);
+
+		/**
+		 * Return true if two functions have the same operator at a position both of them have.
+		 * @param a one function
+		 * @param b the other function
+		 * @param index position of the operator
+		 * @return true if the operators are the same
+		 */
+		boolean same(F a, F b, int index);
+
+		/**
+		 * Apply an operator of a function to a range of values in place. Bits above the width of the function may be left
+		 * with anything.
+		 * @param function the function
+		 * @param index position of the operator
+		 * @param values the values
+		 * @param from index of the first value
+		 * @param to index to stop before
+		 */
+		void apply(F function, int index, long[] values, int from, int to);
+	}
+
+	/**
+	 * Number of bits in the input/output.
+	 */
+	private final int bits;
+	/**
+	 * Number of values per sample: the input followed by a copy with each bit flipped.
+	 */
+	private final int width;
+	/**
+	 * Mask of the bits of a value that are counted.
+	 */
+	private final long mask;
+	/**
+	 * Reads and applies the operators.
+	 */
+	private final Operators<F> operators;
+	/**
+	 * Starting value of each sample.
+	 */
+	private final long[] inputs = new long[SAMPLES];
+	/**
+	 * Values of every sample after 1 to layers.length operators of the base, indexed by [operators-1][sample*width+value].
+	 * Only the first depth are current.
+	 */
+	private final long[][] layers;
+	/**
+	 * The base function, or null before the first one.
+	 */
+	private F base;
+	/**
+	 * Number of layers held for the base.
+	 */
+	private int depth = 0;
+
+	/**
+	 * Create a scorer with a fresh set of samples and an empty base.
+	 * @param bits number of bits in the input/output, up to 64
+	 * @param operators reads and applies the operators of the mix function
+	 * @param memoryBudget rough limit in bytes on the memory held for layers
+	 */
+	public PrefixScorer(int bits, Operators<F> operators, long memoryBudget) {
+		if (bits < 1 || bits > 64) throw new IllegalArgumentException("bits must be from 1 to 64");
+		this.bits = bits;
+		this.width = bits + 1;
+		this.mask = -1L >>> (64 - bits);
+		this.operators = operators;
+		final RandomGenerator random = ThreadLocalRandom.current();
+		for (int i = 0; i < SAMPLES; i++) {
+			inputs[i] = random.nextInt() & mask;
+		}
+		this.layers = new long[(int) Math.min(Integer.MAX_VALUE, Math.max(0, memoryBudget / ((long) SAMPLES * width * Long.BYTES)))][];
+	}
+
+	/**
+	 * Make the given function the base, keeping the layers it shares with the old base and working out the rest, and score it.
+	 * Must not be called while {@link #score(List, double)} is running on another thread.
+	 * @param function the new base
+	 * @return the score of the new base
+	 */
+	public double rebase(F function) {
+		final F snapshot = operators.snapshot(function);
+		final int keep = Math.min(sharedPrefix(snapshot), depth);
+		final int target = Math.min(operators.count(snapshot), layers.length);
+		for (int k = keep; k < target; k++) {
+			if (layers[k] == null) layers[k] = new long[SAMPLES * width];
+			if (k == 0) {
+				fill(0, SAMPLES, layers[0]);
+			} else {
+				System.arraycopy(layers[k - 1], 0, layers[k], 0, SAMPLES * width);
+			}
+			operators.apply(snapshot, k, layers[k], 0, SAMPLES * width);
+		}
+		base = snapshot;
+		depth = target;
+		return score(snapshot, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Score a function for avalanche, giving up early once it is confidently going to score worse than the bound, as
+	 * {@link Avalanche64#scoreAvalancheBounded(Avalanche64.Diffuser64, int, double)} and its 32 bit counterpart do. Only the operators from the first
+	 * one that differs from the base, or past the deepest held layer, are run. May be called from several threads at once.
+	 * @param function the function, which mustn't change while it is scored
+	 * @param bound the score the function has to beat to be worth testing fully
+	 * @return the full score, or the score estimated so far if the function was given up on, which is worse than the bound
+	 */
+	public double score(F function, double bound) {
+		final int from = Math.min(sharedPrefix(function), depth);
+		final int count = operators.count(function);
+		final GroupedFlipCounter counter = new GroupedFlipCounter(bits, bits);
+		final long[] block = new long[BLOCK_SAMPLES * width];
+		int done = 0;
+		int check = FIRST_CHECK;
+		while (done < SAMPLES) {
+			// Start from the deepest held layer the function shares and run the rest of its operators
+			if (from == 0) {
+				fill(done, BLOCK_SAMPLES, block);
+			} else {
+				System.arraycopy(layers[from - 1], done * width, block, 0, BLOCK_SAMPLES * width);
+			}
+			for (int k = from; k < count; k++) {
+				operators.apply(function, k, block, 0, BLOCK_SAMPLES * width);
+			}
+			FlipCounter run = null;
+			for (int s = 0; s < BLOCK_SAMPLES; s++) {
+				if (s % GroupedFlipCounter.RUN == 0) run = counter.nextRun();
+				final long diffused = block[s * width];
+				for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
+					run.add(bitFlipped, 0, (block[s * width + bitFlipped + 1] ^ diffused) & mask);
+				}
+				run.endSample();
+			}
+			done += BLOCK_SAMPLES;
+			if (done == check && done < SAMPLES) {
+				if (counter.isScoreAbove(bound, SAMPLES)) {
+					return counter.getResult().score();
+				}
+				check *= 2;
+			}
+		}
+		return counter.getResult().score();
+	}
+
+	/**
+	 * Return the number of operators a function shares with the base before the first one that differs.
+	 * @param function the function
+	 * @return the length of the shared prefix
+	 */
+	private int sharedPrefix(F function) {
+		if (base == null) return 0;
+		final int n = Math.min(operators.count(function), operators.count(base));
+		int i = 0;
+		while (i < n && operators.same(function, base, i)) i++;
+		return i;
+	}
+
+	/**
+	 * Write the starting values of a run of samples: each input followed by a copy with each bit flipped.
+	 * @param first first sample
+	 * @param count number of samples
+	 * @param values array to write to, from the start
+	 */
+	private void fill(int first, int count, long[] values) {
+		for (int s = 0; s < count; s++) {
+			final long starting = inputs[first + s];
+			values[s * width] = starting;
+			for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
+				values[s * width + bitFlipped + 1] = starting ^ (1L << bitFlipped);
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package net.liamw.genrand.function.arx;
+
+/**
+ * Maps ARX definitions to a canonical representative of the definitions that avalanche exactly the same way.
+ * <br>
+ * The symmetry used is rotating terms of the state. Say every term t is replaced by itself rotated left by c_t. An
+ * operation that XORs a rotated term into another commutes with this, since rotation distributes over XOR: it becomes the
+ * same operation with its rotation changed by c_dst - c_src. Addition doesn't distribute over rotation, so a term that is
+ * ever the target of an add has to keep c_t = 0, but the rotation of the source of an add can still change by -c_src.
+ * Rotating terms only permutes the bits of the input and output, which permutes the avalanche matrix without changing
+ * any entry, so every definition reached this way has the same avalanche score for any number of rounds.
+ * <br>
+ * The representative is the smallest packed definition in the class. The XOR flags are fixed, and the rotations are
+ * packed first operation first, so the smallest is found by going through the operations in order and zeroing each
+ * rotation that is still free to change. The offsets between terms are tracked with a union-find where each node knows
+ * its offset from its parent; an operation between two terms that aren't yet tied together ties them with the offset
+ * that zeroes its rotation, while an operation between tied terms has its rotation forced.
+ */
+public final class ARXCanonicalizer {
+	private ARXCanonicalizer() {}
+
+	/**
+	 * Get the representative of the class of definitions that are equivalent to the given one.
+	 * @param type type of the definition
+	 * @param definition packed definition
+	 * @return the smallest packed definition equivalent to it
+	 */
+	public static long canonicalize(ARXMixInfo<?> type, long definition) {
+		final int wordBits = type.getWordBits();
+		final int terms = type.getTerms();
+		final int ops = 2 * terms;
+		final int rotBits = Integer.numberOfTrailingZeros(wordBits);
+		final int[] rotations = new int[ops];
+		final boolean[] xors = new boolean[ops];
+		type.unpackOperations(definition, rotations, xors);
+
+		// Node t is term t, and node `terms` stands for a rotation of zero. Terms that can't be rotated start tied to it.
+		final int[] parent = new int[terms + 1];
+		final int[] offset = new int[terms + 1];
+		for (int t = 0; t < terms; t++) {
+			parent[t] = isFree(xors, t, terms)? t : terms;
+		}
+		parent[terms] = terms;
+
+		for (int k = 0; k < ops; k++) {
+			final int dst = k % terms;
+			final int src = (k + terms - 1) % terms;
+			final int dstRoot = find(parent, offset, dst, wordBits);
+			final int srcRoot = find(parent, offset, src, wordBits);
+			if (dstRoot != srcRoot) {
+				// Choose the offset between the two groups so this rotation becomes r + c_dst - c_src = 0
+				// The fixed group has to stay the root, as its offsets are absolute
+				if (srcRoot == terms) {
+					parent[dstRoot] = srcRoot;
+					offset[dstRoot] = mod(offset[src] - offset[dst] - rotations[k], wordBits);
+				} else {
+					parent[srcRoot] = dstRoot;
+					offset[srcRoot] = mod(offset[dst] - offset[src] + rotations[k], wordBits);
+				}
+				find(parent, offset, dst, wordBits);
+				find(parent, offset, src, wordBits);
+			}
+			rotations[k] = mod(rotations[k] + offset[dst] - offset[src], wordBits);
+		}
+
+		// Pack back up with the XOR flags first, then the rotations
+		long v = 0;
+		for (int k = 0; k < ops; k++) {
+			v = (v << 1) | (xors[k]? 1L : 0L);
+		}
+		for (int k = 0; k < ops; k++) {
+			v = (v << rotBits) | rotations[k];
+		}
+		return v;
+	}
+
+	/**
+	 * Get the number of definitions in the class of the given definition, including itself.
+	 * <br>
+	 * Each term that is only ever XORed into can be rotated by any of wordBits amounts. Different rotations always give
+	 * different definitions, except that when every term is free, rotating them all by the same amount changes nothing.
+	 * @param type type of the definition
+	 * @param definition packed definition
+	 * @return the size of the class
+	 */
+	public static long getClassSize(ARXMixInfo<?> type, long definition) {
+		final int wordBits = type.getWordBits();
+		final int terms = type.getTerms();
+		final int[] rotations = new int[2 * terms];
+		final boolean[] xors = new boolean[2 * terms];
+		type.unpackOperations(definition, rotations, xors);
+		int free = 0;
+		for (int t = 0; t < terms; t++) {
+			if (isFree(xors, t, terms)) free++;
+		}
+		if (free == terms) free--;
+		long size = 1;
+		for (int i = 0; i < free; i++) {
+			size *= wordBits;
+		}
+		return size;
+	}
+
+	/**
+	 * Return true if a term can be rotated, which is when both operations that update it each round are XOR.
+	 * @param xors the XOR flag of each operation
+	 * @param term the term
+	 * @param terms number of terms
+	 * @return true if the term is only ever XORed into
+	 */
+	private static boolean isFree(boolean[] xors, int term, int terms) {
+		return xors[term] && xors[term + terms];
+	}
+
+	/**
+	 * Find the root of a node, pointing the node straight at the root and setting its offset to be from the root.
+	 * @param parent parent of each node
+	 * @param offset offset of each node from its parent
+	 * @param node the node to look up
+	 * @param wordBits size of each term in bits, which the offsets are taken modulo
+	 * @return the root
+	 */
+	private static int find(int[] parent, int[] offset, int node, int wordBits) {
+		int p = parent[node];
+		if (p == node) return node;
+		int root = find(parent, offset, p, wordBits);
+		offset[node] = mod(offset[node] + offset[p], wordBits);
+		parent[node] = root;
+		return root;
+	}
+
+	/**
+	 * Reduce a value modulo a power of two, giving a non-negative result.
+	 * @param v value
+	 * @param wordBits the modulus, a power of two
+	 * @return v mod wordBits
+	 */
+	private static int mod(int v, int wordBits) {
+		return v & (wordBits - 1);
+	}
+}
@@ -0,0 +1,454 @@
+package net.liamw.genrand.function.arx;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import net.liamw.genrand.util.Avalanche32.RoundDiffuser;
+import net.liamw.genrand.util.Avalanche64.RoundDiffuser64;
+import net.liamw.genrand.util.AvalancheVector.RoundDiffuserVector;
+
+/**
+ * Compiles ARX mix definitions into hidden classes with the operations and rotation constants baked in, in the same way
+ * {@link net.liamw.genrand.function.Mix64} compiles its operations.
+ * <br>
+ * The hand written mixes pick between add and XOR and rotate by an amount held in a field for every operation of every
+ * round. The JIT can't fold these because each mix object only lives for one test, so the compiled kernel emits a plain
+ * add or XOR and a rotate by a constant instead. Compiling costs time up front, so {@link #isWorthCompiling(long)}
+ * decides from measured costs whether a test is long enough for the kernel to pay for itself.
+ */
+public final class ARXCompiler {
+	/**
+	 * Time saved per call to diffuseRounds by a compiled kernel, in nanoseconds. Measured over avalanche tests of 4 rounds,
+	 * the saving ranged from about 2ns for 32x2 up to about 30ns for 8x4, so this is the low end.
+	 */
+	private static final double SAVED_NANOS_PER_CALL = 2.0;
+	/**
+	 * How many times as much time a test has to save as it costs to compile before compiling is worthwhile. The kernel
+	 * starts out interpreted and is only JIT compiled after it has run for a while, which the measured compile time
+	 * doesn't cover, so leave a wide margin.
+	 */
+	private static final double PAYOFF_FACTOR = 4.0;
+
+	/**
+	 * Moving average of the time taken to generate and load a kernel, in nanoseconds. Starts at a pessimistic guess
+	 * until there are measurements.
+	 */
+	private static volatile double compileNanos = 2_000_000.0;
+
+	private ARXCompiler() {}
+
+	/**
+	 * Base class for compiled kernels over more than 64 bits, which supplies the sizes. Compiled subclasses only implement
+	 * {@link #diffuseRounds(int[], int[][])}.
+	 */
+	public abstract static class KernelVector implements RoundDiffuserVector {
+		/**
+		 * The size of the state in bits.
+		 */
+		private final int bits;
+
+		/**
+		 * Create a kernel over the given number of bits.
+		 * @param bits size of the state in bits
+		 */
+		protected KernelVector(int bits) {
+			this.bits = bits;
+		}
+
+		@Override
+		public int inputSize() {
+			return bits;
+		}
+
+		@Override
+		public int outputSize() {
+			return bits;
+		}
+	}
+
+	/**
+	 * Decide whether compiling a kernel is worth it for a test that calls diffuseRounds the given number of times,
+	 * comparing the time the kernel would save against the measured cost of compiling one.
+	 * @param calls number of calls to diffuseRounds the test makes
+	 * @return true if compiling is expected to pay off
+	 */
+	public static boolean isWorthCompiling(long calls) {
+		return calls * SAVED_NANOS_PER_CALL > compileNanos * PAYOFF_FACTOR;
+	}
+
+	/**
+	 * Get the current estimate of the time taken to compile a kernel.
+	 * @return compile time in nanoseconds
+	 */
+	public static double getCompileNanos() {
+		return compileNanos;
+	}
+
+	/**
+	 * Compile a definition of a type of up to 32 bits into a kernel that gives the same outputs as its mix.
+	 * @param type type of the definition
+	 * @param definition packed definition
+	 * @return a kernel for the definition
+	 * @throws IllegalArgumentException if the type is wider than 32 bits
+	 */
+	public static RoundDiffuser compile32(ARXMixInfo<?> type, long definition) {
+		checkBits(type, 1, 32);
+		return (RoundDiffuser) compile(type, definition);
+	}
+
+	/**
+	 * Compile a definition of a type of 33 to 64 bits into a kernel that gives the same outputs as its mix.
+	 * @param type type of the definition
+	 * @param definition packed definition
+	 * @return a kernel for the definition
+	 * @throws IllegalArgumentException if the type isn't 33 to 64 bits wide
+	 */
+	public static RoundDiffuser64 compile64(ARXMixInfo<?> type, long definition) {
+		checkBits(type, 33, 64);
+		return (RoundDiffuser64) compile(type, definition);
+	}
+
+	/**
+	 * Compile a definition of a type of more than 64 bits into a kernel that gives the same outputs as its mix.
+	 * @param type type of the definition
+	 * @param definition packed definition
+	 * @return a kernel for the definition
+	 * @throws IllegalArgumentException if the type isn't wider than 64 bits
+	 */
+	public static KernelVector compileVector(ARXMixInfo<?> type, long definition) {
+		checkBits(type, 65, Integer.MAX_VALUE);
+		return (KernelVector) compile(type, definition);
+	}
+
+	/**
+	 * Check that the state of a type is within the widths a kernel interface covers.
+	 * @param type the type
+	 * @param min fewest bits
+	 * @param max most bits
+	 * @throws IllegalArgumentException if it isn't
+	 */
+	private static void checkBits(ARXMixInfo<?> type, int min, int max) {
+		final int bits = type.getWordBits() * type.getTerms();
+		if (bits < min || bits > max) {
+			throw new IllegalArgumentException("type " + type.getDatabaseTag() + " has " + bits + " bits, not " + min + " to " + max);
+		}
+	}
+
+	/**
+	 * Compile a definition into a kernel, which implements {@link RoundDiffuser} up to 32 bits, {@link RoundDiffuser64} up
+	 * to 64 bits and extends {@link KernelVector} above that, like mixes of the type.
+	 * @param type type of the definition
+	 * @param definition packed definition
+	 * @return a kernel for the definition
+	 */
+	private static Object compile(ARXMixInfo<?> type, long definition) {
+		final long start = System.nanoTime();
+		final int wordBits = type.getWordBits();
+		final int terms = type.getTerms();
+		final int bits = wordBits * terms;
+		final int ops = 2 * terms;
+		final int[] rotations = new int[ops];
+		final boolean[] xors = new boolean[ops];
+		type.unpackOperations(definition, rotations, xors);
+
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+		String packageName = ARXCompiler.class.getPackageName().replace('.', '/');
+		String superName;
+		String[] interfaces;
+		String descriptor;
+		if (bits <= 32) {
+			superName = "java/lang/Object";
+			interfaces = new String[] { "net/liamw/genrand/util/Avalanche32$RoundDiffuser" };
+			descriptor = "(I[I)V";
+		} else if (bits <= 64) {
+			superName = "java/lang/Object";
+			interfaces = new String[] { "net/liamw/genrand/util/Avalanche64$RoundDiffuser64" };
+			descriptor = "(J[J)V";
+		} else {
+			superName = Type.getInternalName(KernelVector.class);
+			interfaces = null;
+			descriptor = "([I[[I)V";
+		}
+		// Create a class with an anonymous name - it'll be loaded as a hidden class so the name isn't important
+		writer.visit(Opcodes.V19, 0, packageName + "/Anon", null, superName, interfaces);
+		// constructor
+		{
+			MethodVisitor ctor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+			ctor.visitCode();
+
+			ctor.visitVarInsn(Opcodes.ALOAD,0);
+			if (bits <= 64) {
+				ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+			} else {
+				pushInt(ctor, bits);
+				ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "(I)V", false);
+			}
+			ctor.visitInsn(Opcodes.RETURN);
+
+			ctor.visitMaxs(0, 0);
+			ctor.visitEnd();
+		}
+		// void diffuseRounds(input, outputs)
+		{
+			MethodVisitor mth = writer.visitMethod(Opcodes.ACC_PUBLIC, "diffuseRounds", descriptor, null, null);
+			mth.visitCode();
+
+			// 0: this
+			// 1: arg input (2 slots if long)
+			// next: arg outputs
+			// next: the terms, 2 slots each if they're longs
+			// next: int i
+			// next: int[] output, for vectors
+			final int outputsSlot = bits <= 32 || bits > 64? 2 : 3;
+			final int termSize = wordBits == 64? 2 : 1;
+			final int firstTerm = outputsSlot + 1;
+			final int iSlot = firstTerm + terms * termSize;
+			final int outputSlot = iSlot + 1;
+
+			// Split the input into terms; term 0 is the most significant
+			for (int t = 0; t < terms; t++) {
+				final int shift = (terms - 1 - t) * wordBits;
+				final int slot = firstTerm + t * termSize;
+				if (bits <= 32) {
+					// v = (input >>> shift) & mask
+					mth.visitVarInsn(Opcodes.ILOAD,1);
+					if (shift > 0) {
+						pushInt(mth, shift);
+						mth.visitInsn(Opcodes.IUSHR);
+					}
+					if (wordBits < 32) {
+						pushInt(mth, (1 << wordBits) - 1);
+						mth.visitInsn(Opcodes.IAND);
+					}
+					mth.visitVarInsn(Opcodes.ISTORE,slot);
+				} else if (bits <= 64) {
+					// v = (int)(input >>> shift) & mask
+					mth.visitVarInsn(Opcodes.LLOAD,1);
+					if (shift > 0) {
+						pushInt(mth, shift);
+						mth.visitInsn(Opcodes.LUSHR);
+					}
+					mth.visitInsn(Opcodes.L2I);
+					if (wordBits < 32) {
+						pushInt(mth, (1 << wordBits) - 1);
+						mth.visitInsn(Opcodes.IAND);
+					}
+					mth.visitVarInsn(Opcodes.ISTORE,slot);
+				} else if (wordBits == 32) {
+					// v = input[word]
+					mth.visitVarInsn(Opcodes.ALOAD,1);
+					pushInt(mth, shift / 32);
+					mth.visitInsn(Opcodes.IALOAD);
+					mth.visitVarInsn(Opcodes.ISTORE,slot);
+				} else {
+					// v = ((input[word+1] & 0xFFFFFFFFL) << 32) | (input[word] & 0xFFFFFFFFL)
+					mth.visitVarInsn(Opcodes.ALOAD,1);
+					pushInt(mth, shift / 32 + 1);
+					mth.visitInsn(Opcodes.IALOAD);
+					mth.visitInsn(Opcodes.I2L);
+					pushInt(mth, 32);
+					mth.visitInsn(Opcodes.LSHL);
+					mth.visitVarInsn(Opcodes.ALOAD,1);
+					pushInt(mth, shift / 32);
+					mth.visitInsn(Opcodes.IALOAD);
+					mth.visitInsn(Opcodes.I2L);
+					mth.visitLdcInsn(0xFFFFFFFFL);
+					mth.visitInsn(Opcodes.LAND);
+					mth.visitInsn(Opcodes.LOR);
+					mth.visitVarInsn(Opcodes.LSTORE,slot);
+				}
+			}
+
+			Label loop = new Label();
+			Label done = new Label();
+
+			// for (int i = 0; i < outputs.length; i++)
+			mth.visitInsn(Opcodes.ICONST_0);
+			mth.visitVarInsn(Opcodes.ISTORE,iSlot);
+			mth.visitLabel(loop);
+			mth.visitVarInsn(Opcodes.ILOAD,iSlot);
+			mth.visitVarInsn(Opcodes.ALOAD,outputsSlot);
+			mth.visitInsn(Opcodes.ARRAYLENGTH);
+			mth.visitJumpInsn(Opcodes.IF_ICMPGE, done);
+
+			// handle ops: operation k updates term k from the term before it
+			for (int k = 0; k < ops; k++) {
+				int dst = firstTerm + (k % terms) * termSize;
+				int src = firstTerm + ((k + terms - 1) % terms) * termSize;
+				visitOp(mth, dst, src, rotations[k], xors[k], wordBits);
+			}
+
+			// record the output after this many rounds
+			if (bits <= 32) {
+				// outputs[i] = (v1 << shift1) | (v2 << shift2) | ...
+				mth.visitVarInsn(Opcodes.ALOAD,outputsSlot);
+				mth.visitVarInsn(Opcodes.ILOAD,iSlot);
+				for (int t = 0; t < terms; t++) {
+					final int shift = (terms - 1 - t) * wordBits;
+					mth.visitVarInsn(Opcodes.ILOAD,firstTerm + t);
+					if (shift > 0) {
+						pushInt(mth, shift);
+						mth.visitInsn(Opcodes.ISHL);
+					}
+					if (t > 0) mth.visitInsn(Opcodes.IOR);
+				}
+				mth.visitInsn(Opcodes.IASTORE);
+			} else if (bits <= 64) {
+				// outputs[i] = ((v1 & mask) << shift1) | ((v2 & mask) << shift2) | ...
+				mth.visitVarInsn(Opcodes.ALOAD,outputsSlot);
+				mth.visitVarInsn(Opcodes.ILOAD,iSlot);
+				for (int t = 0; t < terms; t++) {
+					final int shift = (terms - 1 - t) * wordBits;
+					mth.visitVarInsn(Opcodes.ILOAD,firstTerm + t);
+					mth.visitInsn(Opcodes.I2L);
+					if (wordBits == 32) {
+						mth.visitLdcInsn(0xFFFFFFFFL);
+						mth.visitInsn(Opcodes.LAND);
+					}
+					if (shift > 0) {
+						pushInt(mth, shift);
+						mth.visitInsn(Opcodes.LSHL);
+					}
+					if (t > 0) mth.visitInsn(Opcodes.LOR);
+				}
+				mth.visitInsn(Opcodes.LASTORE);
+			} else {
+				// int[] output = outputs[i];
+				mth.visitVarInsn(Opcodes.ALOAD,outputsSlot);
+				mth.visitVarInsn(Opcodes.ILOAD,iSlot);
+				mth.visitInsn(Opcodes.AALOAD);
+				mth.visitVarInsn(Opcodes.ASTORE,outputSlot);
+				for (int t = 0; t < terms; t++) {
+					final int word = (terms - 1 - t) * wordBits / 32;
+					final int slot = firstTerm + t * termSize;
+					if (wordBits == 32) {
+						// output[word] = v
+						mth.visitVarInsn(Opcodes.ALOAD,outputSlot);
+						pushInt(mth, word);
+						mth.visitVarInsn(Opcodes.ILOAD,slot);
+						mth.visitInsn(Opcodes.IASTORE);
+					} else {
+						// output[word+1] = (int)(v >>> 32); output[word] = (int) v;
+						mth.visitVarInsn(Opcodes.ALOAD,outputSlot);
+						pushInt(mth, word + 1);
+						mth.visitVarInsn(Opcodes.LLOAD,slot);
+						pushInt(mth, 32);
+						mth.visitInsn(Opcodes.LUSHR);
+						mth.visitInsn(Opcodes.L2I);
+						mth.visitInsn(Opcodes.IASTORE);
+						mth.visitVarInsn(Opcodes.ALOAD,outputSlot);
+						pushInt(mth, word);
+						mth.visitVarInsn(Opcodes.LLOAD,slot);
+						mth.visitInsn(Opcodes.L2I);
+						mth.visitInsn(Opcodes.IASTORE);
+					}
+				}
+			}
+
+			mth.visitIincInsn(iSlot, 1);
+			mth.visitJumpInsn(Opcodes.GOTO, loop);
+			mth.visitLabel(done);
+			mth.visitInsn(Opcodes.RETURN);
+
+			mth.visitMaxs(0, 0);
+			mth.visitEnd();
+		}
+		writer.visitEnd();
+		// Get the classfile bytes and load them
+		byte[] data = writer.toByteArray();
+		Object kernel;
+		try {
+			// Define the hidden class and acquire a handle lookup
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(data, true);
+			// Construct the class
+			kernel = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable ex) {
+			throw new Error(ex);
+		}
+		// Fold this compile into the moving average
+		compileNanos = compileNanos * 0.9 + (System.nanoTime() - start) * 0.1;
+		return kernel;
+	}
+
+	/**
+	 * Emit one operation: add or XOR the source term, rotated, into the destination term.
+	 * @param mth method to emit into
+	 * @param dst local variable slot of the destination term
+	 * @param src local variable slot of the source term
+	 * @param rotation rotation amount
+	 * @param xor true for XOR, false for add
+	 * @param wordBits size of each term in bits
+	 */
+	private static void visitOp(MethodVisitor mth, int dst, int src, int rotation, boolean xor, int wordBits) {
+		if (wordBits == 64) {
+			// dst = dst op Long.rotateLeft(src, rotation)
+			mth.visitVarInsn(Opcodes.LLOAD,dst);
+			mth.visitVarInsn(Opcodes.LLOAD,src);
+			if (rotation != 0) {
+				pushInt(mth, rotation);
+				mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Long", "rotateLeft","(JI)J", false);
+			}
+			mth.visitInsn(xor? Opcodes.LXOR : Opcodes.LADD);
+			mth.visitVarInsn(Opcodes.LSTORE,dst);
+		} else if (wordBits == 32) {
+			// dst = dst op Integer.rotateLeft(src, rotation)
+			mth.visitVarInsn(Opcodes.ILOAD,dst);
+			mth.visitVarInsn(Opcodes.ILOAD,src);
+			if (rotation != 0) {
+				pushInt(mth, rotation);
+				mth.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "rotateLeft","(II)I", false);
+			}
+			mth.visitInsn(xor? Opcodes.IXOR : Opcodes.IADD);
+			mth.visitVarInsn(Opcodes.ISTORE,dst);
+		} else {
+			// Terms narrower than an int are always kept masked, so the rotate only needs masking once
+			// dst = (dst op (((src << rotation) | (src >>> (wordBits - rotation))) & mask)) & mask
+			final int mask = (1 << wordBits) - 1;
+			mth.visitVarInsn(Opcodes.ILOAD,dst);
+			mth.visitVarInsn(Opcodes.ILOAD,src);
+			if (rotation != 0) {
+				mth.visitInsn(Opcodes.DUP);
+				pushInt(mth, rotation);
+				mth.visitInsn(Opcodes.ISHL);
+				mth.visitInsn(Opcodes.SWAP);
+				pushInt(mth, wordBits - rotation);
+				mth.visitInsn(Opcodes.IUSHR);
+				mth.visitInsn(Opcodes.IOR);
+				pushInt(mth, mask);
+				mth.visitInsn(Opcodes.IAND);
+			}
+			if (xor) {
+				// XOR of two masked values is already masked
+				mth.visitInsn(Opcodes.IXOR);
+			} else {
+				mth.visitInsn(Opcodes.IADD);
+				pushInt(mth, mask);
+				mth.visitInsn(Opcodes.IAND);
+			}
+			mth.visitVarInsn(Opcodes.ISTORE,dst);
+		}
+	}
+
+	/**
+	 * Emit the shortest instruction that pushes the given int constant.
+	 * @param mth method to emit into
+	 * @param value the constant
+	 */
+	private static void pushInt(MethodVisitor mth, int value) {
+		if (value >= -1 && value <= 5) {
+			mth.visitInsn(Opcodes.ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			mth.visitIntInsn(Opcodes.BIPUSH, value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			mth.visitIntInsn(Opcodes.SIPUSH, value);
+		} else {
+			mth.visitLdcInsn(value);
+		}
+	}
+}
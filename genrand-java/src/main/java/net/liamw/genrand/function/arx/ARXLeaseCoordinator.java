@@ -0,0 +1,277 @@
+package net.liamw.genrand.function.arx;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.liamw.genrand.util.Database;
+
+/**
+ * Hands out ranges of counters of each type to worker processes (see {@link ARXLeaseWorker}) and merges what they send
+ * back into the database, so an enumeration can be spread over several processes or machines.
+ * <br>
+ * A worker asks for a lease, which is a range of counters of one type that it has to finish within the lease time, and
+ * renews the lease while it works. A lease that runs out, because its worker died or lost touch, goes back to the front of
+ * its type and is handed out again; results that arrive for a lease that has run out are dropped, since the range is
+ * someone else's by then. Types are handed out in proportion to their weights, the same way as {@link ARXScheduler}.
+ * <br>
+ * A range is only recorded as finished once its results have been written (see {@link Database.RangeResults}), so after a
+ * restart the coordinator hands out everything that wasn't finished, and nothing that was.
+ */
+public final class ARXLeaseCoordinator {
+	/**
+	 * Default number of counters in a lease.
+	 */
+	public static final long DEFAULT_LEASE_SIZE = 1024;
+	/**
+	 * Default time in milliseconds a lease lasts without being renewed.
+	 */
+	public static final long DEFAULT_LEASE_MILLIS = 60_000;
+
+	/**
+	 * A range of counters leased to a worker.
+	 * @param id identifier of the lease
+	 * @param type type tag
+	 * @param scheme counter permutation scheme of the type's search
+	 * @param start first counter
+	 * @param end counter to stop before
+	 * @param millis time in milliseconds the lease lasts without being renewed
+	 */
+	public record Lease(long id, String type, int scheme, long start, long end, long millis) {}
+
+	/**
+	 * Enumeration progress of one type.
+	 */
+	private static final class TypeState {
+		/**
+		 * Type being enumerated.
+		 */
+		final ARXMixInfo<?> type;
+		/**
+		 * Share of the workers this type gets, relative to the others.
+		 */
+		final double weight;
+		/**
+		 * Counter permutation scheme of the type's search.
+		 */
+		final int scheme;
+		/**
+		 * Counter to stop before.
+		 */
+		final long limit;
+		/**
+		 * First counter not yet handed out.
+		 */
+		long next;
+		/**
+		 * Ranges that had already finished beyond the checkpoint when the type was added, from their start to their end.
+		 */
+		final TreeMap<Long, Long> finishedAhead;
+		/**
+		 * Ranges whose leases ran out, to be handed out again before anything new.
+		 */
+		final ArrayDeque<long[]> returned = new ArrayDeque<>();
+		/**
+		 * Virtual time of the type for stride scheduling; it goes up by 1/weight for each lease handed out.
+		 */
+		double pass;
+
+		TypeState(ARXMixInfo<?> type, double weight, int scheme, long start, TreeMap<Long, Long> finishedAhead) {
+			this.type = type;
+			this.weight = weight;
+			this.scheme = scheme;
+			this.limit = 1L << type.getDefinitionBits();
+			this.next = start;
+			this.finishedAhead = finishedAhead;
+			skipFinished();
+		}
+
+		/**
+		 * Move the next counter past any range that has already finished.
+		 */
+		void skipFinished() {
+			while (!finishedAhead.isEmpty() && finishedAhead.firstKey() <= next) {
+				next = Math.max(next, finishedAhead.pollFirstEntry().getValue());
+			}
+		}
+
+		/**
+		 * Return true if the type has anything left to hand out.
+		 * @return true if there is a range to lease
+		 */
+		boolean hasWork() {
+			return !returned.isEmpty() || next < limit;
+		}
+	}
+
+	/**
+	 * A lease that has been handed out and not yet finished.
+	 * @param lease the lease
+	 * @param state progress of its type
+	 * @param worker name of the worker holding it
+	 * @param expires time in milliseconds the lease runs out at
+	 */
+	private record Held(Lease lease, TypeState state, String worker, long expires) {}
+
+	/**
+	 * Handle to database API.
+	 */
+	private final Database database;
+	/**
+	 * Number of counters in a lease.
+	 */
+	private final long leaseSize;
+	/**
+	 * Time in milliseconds a lease lasts without being renewed.
+	 */
+	private final long leaseMillis;
+	/**
+	 * Every type that has been added.
+	 */
+	private final List<TypeState> states = new ArrayList<>();
+	/**
+	 * Leases that have been handed out and not yet finished, by their identifier.
+	 */
+	private final Map<Long, Held> held = new HashMap<>();
+	/**
+	 * Identifier of the next lease.
+	 */
+	private long nextId = 1;
+
+	/**
+	 * Create a coordinator.
+	 * @param database handle to database API
+	 * @param leaseSize number of counters in a lease
+	 * @param leaseMillis time in milliseconds a lease lasts without being renewed
+	 */
+	public ARXLeaseCoordinator(Database database, long leaseSize, long leaseMillis) {
+		this.database = database;
+		this.leaseSize = leaseSize;
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * Add a type to be handed out, starting from its checkpoint and skipping ranges that finished beyond it.
+	 * @param type type to enumerate
+	 * @param weight share of the workers the type gets, relative to the other types
+	 */
+	public synchronized void add(ARXMixInfo<?> type, double weight) {
+		if (!(weight > 0)) throw new IllegalArgumentException("weight for " + type.getDatabaseTag() + " has to be above zero");
+		final long start = database.getCheckpoint(type.getDatabaseTag());
+		final int scheme = database.getPermutationScheme(type.getDatabaseTag());
+		final TreeMap<Long, Long> finished = database.getCompletedRanges(type.getDatabaseTag());
+		states.add(new TypeState(type, weight, scheme, start, finished));
+	}
+
+	/**
+	 * Lease the next range of the type that is furthest behind its share.
+	 * @param worker name of the worker asking, for the log
+	 * @return the lease, or null if everything has been handed out
+	 */
+	public synchronized Lease lease(String worker) {
+		final long now = System.currentTimeMillis();
+		expire(now);
+		TypeState best = null;
+		for (TypeState state : states) {
+			if (state.hasWork() && (best == null || state.pass < best.pass)) best = state;
+		}
+		if (best == null) return null;
+		long start;
+		long end;
+		if (!best.returned.isEmpty()) {
+			long[] range = best.returned.poll();
+			start = range[0];
+			end = range[1];
+		} else {
+			// Stop short of the next range that has already finished
+			start = best.next;
+			end = Math.min(best.limit, start + leaseSize);
+			if (!best.finishedAhead.isEmpty()) end = Math.min(end, best.finishedAhead.firstKey());
+			best.next = end;
+			best.skipFinished();
+		}
+		best.pass += 1.0 / best.weight;
+		Lease lease = new Lease(nextId++, best.type.getDatabaseTag(), best.scheme, start, end, leaseMillis);
+		held.put(lease.id(), new Held(lease, best, worker, now + leaseMillis));
+		System.out.println("Leased " + start + " to " + (end - 1) + " of " + best.type.getDatabaseTag() + " to " + worker);
+		return lease;
+	}
+
+	/**
+	 * Renew a lease so it lasts another lease time from now.
+	 * @param id identifier of the lease
+	 * @return true if the lease is still held, or false if it had already run out
+	 */
+	public synchronized boolean renew(long id) {
+		final long now = System.currentTimeMillis();
+		expire(now);
+		Held h = held.get(id);
+		if (h == null) return false;
+		held.put(id, new Held(h.lease(), h.state(), h.worker(), now + leaseMillis));
+		return true;
+	}
+
+	/**
+	 * Merge the results of a lease into the database and end the lease. The range is recorded as finished along with the
+	 * results.
+	 * @param id identifier of the lease
+	 * @param batch the results, which have to be for the leased range
+	 * @return true if the results were taken, or false if the lease had already run out
+	 * @throws IllegalArgumentException if the results are for a different range
+	 */
+	public boolean complete(long id, ARXResultBatch batch) {
+		final Held h;
+		synchronized (this) {
+			expire(System.currentTimeMillis());
+			h = held.get(id);
+			if (h == null) return false;
+			final Lease lease = h.lease();
+			if (!lease.type().equals(batch.getType()) || lease.start() != batch.getStart() || lease.end() != batch.getEnd()) {
+				throw new IllegalArgumentException("results for " + batch.getType() + " " + batch.getStart() + " to " + batch.getEnd()
+						+ " don't match lease " + id);
+			}
+			held.remove(id);
+		}
+		// Written outside the lock, so other workers can lease while the batch is merged
+		final ARXMixInfo<?> type = h.state().type;
+		final Database.RangeResults results = database.collectRange();
+		for (ARXResultBatch.Mix mix : batch.getMixes()) {
+			results.submitRemote(type, mix.definition(), mix.scores(), mix.images());
+		}
+		results.submitScreened(batch.getType(), batch.getScreened(), batch.getScreenScores());
+		results.submitRange(batch.getType(), batch.getStart(), batch.getEnd());
+		return true;
+	}
+
+	/**
+	 * Return true if every range of every type has been leased and finished.
+	 * @return true if there is nothing left to do
+	 */
+	public synchronized boolean isFinished() {
+		expire(System.currentTimeMillis());
+		if (!held.isEmpty()) return false;
+		for (TypeState state : states) {
+			if (state.hasWork()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Put the ranges of leases that have run out back to be handed out again.
+	 * @param now the time in milliseconds
+	 */
+	private void expire(long now) {
+		Iterator<Held> it = held.values().iterator();
+		while (it.hasNext()) {
+			Held h = it.next();
+			if (h.expires() > now) continue;
+			it.remove();
+			h.state().returned.add(new long[] {h.lease().start(), h.lease().end()});
+			System.out.println("Lease " + h.lease().id() + " of " + h.lease().type() + " held by " + h.worker() + " ran out");
+		}
+	}
+}
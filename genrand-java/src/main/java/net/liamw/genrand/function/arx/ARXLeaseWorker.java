@@ -0,0 +1,198 @@
+package net.liamw.genrand.function.arx;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Works through ranges leased from a coordinator (see {@link ARXLeaseCoordinator}) over HTTP and sends back what it finds
+ * as {@link ARXResultBatch}es. A worker needs no database of its own, so any number of them can run on one machine next to
+ * the coordinator, or on other machines.
+ * <br>
+ * Each worker thread asks for a lease, enumerates its range the same way local enumeration does, renews the lease every
+ * third of the lease time while it works, and then posts the results. When there's nothing to lease, it waits
+ * {@link #POLL_MILLIS} and asks again, since leases that run out are handed out again. Screening percentiles are kept per
+ * worker process, so they settle separately in each worker.
+ * <br>
+ * Run a worker with the arguments <code>worker &lt;coordinator URL&gt; [threads] [percentile]</code>, for example
+ * <code>java -jar genrand.jar worker http://localhost:65480 4</code>, against a backend started with
+ * <code>--genrand.arx.role=coordinator</code>.
+ */
+public final class ARXLeaseWorker {
+	/**
+	 * Time in milliseconds to wait before asking again when there is nothing to lease or the coordinator can't be reached.
+	 */
+	public static final long POLL_MILLIS = 5000;
+
+	/**
+	 * Base URI of the coordinator.
+	 */
+	private final URI coordinator;
+	/**
+	 * Number of threads working on leases.
+	 */
+	private final int threads;
+	/**
+	 * Percentile of each type that goes on to each next stage of screening.
+	 */
+	private final double percentile;
+	/**
+	 * Client for every request to the coordinator.
+	 */
+	private final HttpClient client = HttpClient.newHttpClient();
+	/**
+	 * Reads leases from JSON.
+	 */
+	private final ObjectMapper mapper = new ObjectMapper();
+	/**
+	 * Screener of each type, shared by every thread.
+	 */
+	private final Map<String, ARXScreener> screeners = new ConcurrentHashMap<>();
+	/**
+	 * Thread that renews leases while they are worked on.
+	 */
+	private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "ARX lease renewer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Create a worker.
+	 * @param coordinator base URI of the coordinator, like http://localhost:65480
+	 * @param threads number of threads working on leases; anything below 1 means one per processor
+	 * @param percentile percentile of each type that goes on to each next stage of screening
+	 */
+	public ARXLeaseWorker(URI coordinator, int threads, double percentile) {
+		this.coordinator = coordinator;
+		this.threads = threads < 1? Runtime.getRuntime().availableProcessors() : threads;
+		this.percentile = percentile;
+	}
+
+	/**
+	 * Start the worker threads. This method returns immediately; the threads run until the process ends.
+	 */
+	public void start() {
+		for (int i = 0; i < threads; i++) {
+			final String name = ProcessHandle.current().pid() + "-" + i;
+			Thread t = new Thread(() -> work(name));
+			t.setName("ARX Lease Worker " + i);
+			t.start();
+		}
+	}
+
+	/**
+	 * Lease and work through ranges, forever.
+	 * @param name name of this thread for the coordinator's log
+	 */
+	private void work(String name) {
+		while (true) {
+			try {
+				ARXLeaseCoordinator.Lease lease = requestLease(name);
+				if (lease == null) {
+					Thread.sleep(POLL_MILLIS);
+					continue;
+				}
+				run(lease);
+			} catch (IOException ex) {
+				System.out.println("Coordinator at " + coordinator + " can't be reached: " + ex);
+				try {
+					Thread.sleep(POLL_MILLIS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			} catch (InterruptedException ex) {
+				return;
+			} catch (RuntimeException ex) {
+				// The lease runs out and goes to another worker
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Work through a lease and post its results.
+	 * @param lease the lease
+	 * @throws IOException if the results can't be posted
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private void run(ARXLeaseCoordinator.Lease lease) throws IOException, InterruptedException {
+		final ARXMixInfo<?> type = ARXMixTypes.forTag(lease.type());
+		if (type == null) throw new IOException("coordinator leased unknown type " + lease.type());
+		final ARXScreener screener = screeners.computeIfAbsent(lease.type(), tag -> new ARXScreener(type, percentile));
+		final long period = Math.max(1, lease.millis() / 3);
+		ScheduledFuture<?> renewal = renewer.scheduleAtFixedRate(() -> renew(lease), period, period, TimeUnit.MILLISECONDS);
+		ARXResultBatch batch = new ARXResultBatch(lease.type(), lease.start(), lease.end());
+		try {
+			ARXMix.generateRange(batch, type, screener, lease.scheme(), lease.start(), lease.end());
+		} finally {
+			renewal.cancel(false);
+		}
+		HttpResponse<Void> response = client.send(HttpRequest.newBuilder(coordinator.resolve("/arx/lease/" + lease.id() + "/results"))
+				.header("Content-Type", "application/octet-stream")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(batch.toBytes()))
+				.build(), HttpResponse.BodyHandlers.discarding());
+		if (response.statusCode() != 200) {
+			System.out.println("Results of lease " + lease.id() + " were refused with status " + response.statusCode());
+		}
+	}
+
+	/**
+	 * Ask the coordinator for a lease.
+	 * @param name name of this thread for the coordinator's log
+	 * @return the lease, or null if there is nothing to lease right now
+	 * @throws IOException if the coordinator can't be reached
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private ARXLeaseCoordinator.Lease requestLease(String name) throws IOException, InterruptedException {
+		HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(coordinator.resolve("/arx/lease?worker=" + name))
+				.POST(HttpRequest.BodyPublishers.noBody())
+				.build(), HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() == 204) return null;
+		if (response.statusCode() != 200) throw new IOException("lease request failed with status " + response.statusCode());
+		return mapper.readValue(response.body(), ARXLeaseCoordinator.Lease.class);
+	}
+
+	/**
+	 * Renew a lease. A lease that has already run out is left to finish anyway, as its results are simply refused.
+	 * @param lease the lease
+	 */
+	private void renew(ARXLeaseCoordinator.Lease lease) {
+		try {
+			HttpResponse<Void> response = client.send(HttpRequest.newBuilder(coordinator.resolve("/arx/lease/" + lease.id() + "/renew"))
+					.POST(HttpRequest.BodyPublishers.noBody())
+					.build(), HttpResponse.BodyHandlers.discarding());
+			if (response.statusCode() != 200) {
+				System.out.println("Lease " + lease.id() + " could not be renewed, status " + response.statusCode());
+			}
+		} catch (IOException ex) {
+			System.out.println("Lease " + lease.id() + " could not be renewed: " + ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run a worker from the command line.
+	 * @param args coordinator URL, then optionally the number of threads and the screening percentile (off by default)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: worker <coordinator URL> [threads] [percentile]");
+			return;
+		}
+		final int threads = args.length > 1? Integer.parseInt(args[1]) : 0;
+		final double percentile = args.length > 2? Double.parseDouble(args[2]) : ARXScreener.DEFAULT_PERCENTILE;
+		new ARXLeaseWorker(URI.create(args[0]), threads, percentile).start();
+	}
+}
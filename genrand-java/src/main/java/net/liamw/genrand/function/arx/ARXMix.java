@@ -5,11 +5,20 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodHandles.Lookup;
 
+import net.liamw.genrand.util.Avalanche32;
+import net.liamw.genrand.util.Avalanche32.RoundDiffuser;
+import net.liamw.genrand.util.Avalanche64;
+import net.liamw.genrand.util.Avalanche64.RoundDiffuser64;
+import net.liamw.genrand.util.AvalancheResult;
+import net.liamw.genrand.util.AvalancheVector;
+import net.liamw.genrand.util.AvalancheVector.RoundDiffuserVector;
 import net.liamw.genrand.util.CounterPermutation;
 import net.liamw.genrand.util.Database;
 
 import java.lang.invoke.MethodType;
 import java.lang.invoke.VolatileCallSite;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Interface for ARX mixes. Mixes are expected to have an additional static method <code>T unpack(long)</code>
@@ -18,6 +27,11 @@ import java.lang.invoke.VolatileCallSite;
  * @param <T> Type of the mix
  */
 public interface ARXMix<T extends ARXMix<T>> {
+	/**
+	 * Number of definitions handled together by {@link #generateRange(ARXResultSink, ARXMixInfo, ARXScreener, int, long, long)}.
+	 */
+	public static final int BATCH_SIZE = 8;
+	
 	/**
 	 * Pack this mix into a 64-bit value that defines it. Note that not all bits may be in use.
 	 * See {@link ARXMixInfo#getDefinitionBits()} to determine how many bits are valid.
@@ -30,15 +44,37 @@ public interface ARXMix<T extends ARXMix<T>> {
 	 */
 	ARXMixInfo<T> getInfo();
 	
+	/**
+	 * Run an avalanche test on this mix for a given number of rounds. The score and graph for that number of
+	 * rounds can both be derived from the result.
+	 */
+	AvalancheResult avalanche(int rounds);
+	
+	/**
+	 * Run avalanche tests on this mix for 1 to the given number of rounds in a single pass over the rounds.
+	 * Element n-1 of the result holds the statistics for n rounds.
+	 */
+	AvalancheResult[] avalancheRounds(int rounds);
+	
+	/**
+	 * Run avalanche tests on this mix for 1 to the given number of rounds, split into chunks run in parallel on the given pool.
+	 * The results do not depend on the number of threads in the pool.
+	 */
+	AvalancheResult[] avalancheRounds(int rounds, ForkJoinPool pool);
+	
 	/**
 	 * Score this mix for a given number of rounds.
 	 */
-	double score(int rounds);
+	default double score(int rounds) {
+		return avalanche(rounds).score();
+	}
 	
 	/**
 	 * Generate an avalanche graph for this mix for a given number of rounds.
 	 */
-	BufferedImage graph(int rounds);
+	default BufferedImage graph(int rounds) {
+		return avalanche(rounds).graph();
+	}
 	
 	/**
 	 * Generically unpack any mix based on the class type by reflectively invoking its static unpack method.
@@ -57,27 +93,90 @@ public interface ARXMix<T extends ARXMix<T>> {
 	}
 	
 	/**
-	 * Start a thread to generate and write mix combinations to the database. This method returns immediately.
-	 * The started thread only terminates once all combinations have been enumerated.
+	 * Run avalanche tests for 1 to the given number of rounds on several mixes of the same type, one after another, with the
+	 * same engine each mix class uses for its own tests. Every definition in the batch is tested over the same inputs, so
+	 * their scores can be compared without sampling noise between them. When the test is long enough to pay for it, each
+	 * definition is run through a kernel from {@link ARXCompiler} rather than the mix class.
+	 * @param <T> Type of the mixes
+	 * @param type the type of every definition
+	 * @param definitions packed definitions to test
+	 * @param rounds the highest number of rounds to test
+	 * @return the avalanche statistics, indexed by [definition][rounds-1]
+	 */
+	public static <T extends ARXMix<T>> AvalancheResult[][] avalancheRounds(ARXMixInfo<T> type, long[] definitions, int rounds) {
+		return avalancheRounds(type, definitions, rounds, 0);
+	}
+	
+	/**
+	 * Run avalanche tests for 1 to the given number of rounds on several mixes of the same type, like
+	 * {@link #avalancheRounds(ARXMixInfo, long[], int)}, but over a given number of random samples. A few samples are
+	 * enough to tell a hopeless definition from a promising one; see {@link ARXScreener}.
+	 * @param <T> Type of the mixes
+	 * @param type the type of every definition
+	 * @param definitions packed definitions to test
+	 * @param rounds the highest number of rounds to test
+	 * @param iterations number of random samples to test; anything below 1 means the full test
+	 * @return the avalanche statistics, indexed by [definition][rounds-1]
+	 */
+	public static <T extends ARXMix<T>> AvalancheResult[][] avalancheRounds(ARXMixInfo<T> type, long[] definitions, int rounds, int iterations) {
+		final int bits = type.getWordBits() * type.getTerms();
+		// The full test takes 65536 samples of the input and each of its bits flipped
+		final long samples = iterations < 1? 1 << 16 : iterations;
+		final boolean compile = ARXCompiler.isWorthCompiling(samples * (bits + 1));
+		final AvalancheResult[][] results = new AvalancheResult[definitions.length][];
+		// Each engine gets one block of inputs for the whole batch
+		if (bits <= Avalanche32.BITS) {
+			// The full test of a small type already walks the same inputs for every definition
+			final int[] inputs = iterations < 1 && bits <= Avalanche32.EXHAUSTIVE_BITS? null : Avalanche32.randomInputs((int)samples);
+			for (int i = 0; i < definitions.length; i++) {
+				RoundDiffuser mix = compile? ARXCompiler.compile32(type, definitions[i]) : (RoundDiffuser)type.unpack(definitions[i]);
+				results[i] = inputs == null? Avalanche32.testAvalancheRounds(mix, bits, rounds) : Avalanche32.testAvalancheRounds(mix, bits, rounds, inputs);
+			}
+		} else if (bits <= Avalanche64.BITS) {
+			final long[] inputs = Avalanche64.randomInputs((int)samples);
+			for (int i = 0; i < definitions.length; i++) {
+				RoundDiffuser64 mix = compile? ARXCompiler.compile64(type, definitions[i]) : (RoundDiffuser64)type.unpack(definitions[i]);
+				results[i] = Avalanche64.testAvalancheRounds(mix, bits, rounds, inputs);
+			}
+		} else {
+			final int[] inputs = AvalancheVector.randomInputs(bits, (int)samples);
+			for (int i = 0; i < definitions.length; i++) {
+				RoundDiffuserVector mix = compile? ARXCompiler.compileVector(type, definitions[i]) : (RoundDiffuserVector)type.unpack(definitions[i]);
+				results[i] = AvalancheVector.testAvalancheRounds(mix, rounds, inputs);
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Start a thread to generate and write mix combinations to the database, screening with the default percentile.
+	 * This method returns immediately.
 	 * @param <T> Type to generate
 	 * @param database handle to database API
 	 * @param type type to generate.
 	 */
 	public static <T extends ARXMix<T>> void generateInNewThread(Database database, ARXMixInfo<T> type) {
+		generateInNewThread(database, type, ARXScreener.DEFAULT_PERCENTILE);
+	}
+	
+	/**
+	 * Start a thread to generate and write mix combinations to the database. This method returns immediately.
+	 * The started thread only terminates once all combinations have been enumerated, with
+	 * {@link #generateRange(Database, ARXMixInfo, ARXScreener, int, long, long)} moving the checkpoint along after every
+	 * batch. {@link ARXScheduler} runs every type on a shared pool instead.
+	 * @param <T> Type to generate
+	 * @param database handle to database API
+	 * @param type type to generate.
+	 * @param percentile percentile of the type that goes on to each next stage of screening
+	 */
+	public static <T extends ARXMix<T>> void generateInNewThread(Database database, ARXMixInfo<T> type, double percentile) {
 		final long START = database.getCheckpoint(type.getDatabaseTag());
+		final int SCHEME = database.getPermutationScheme(type.getDatabaseTag());
 		final long LIMIT = (1L << type.getDefinitionBits());
+		final ARXScreener screener = new ARXScreener(type, percentile);
 		Thread t = new Thread(() -> {
 			try {
-				long c = START;
-				while (c < LIMIT) {
-					System.out.println("Try " + c + " of " + LIMIT + " for " + type.getDatabaseTag());
-					T mix = type.unpack(CounterPermutation.permute(c,LIMIT));
-					c++;
-					final long databaseC = c;
-					database.submit(mix, db -> {
-						database.setCheckpoint(type.getDatabaseTag(),databaseC);
-					});
-				}
+				generateRange(database, type, screener, SCHEME, START, LIMIT);
 			} catch (RuntimeException ex) {
 				ex.printStackTrace();
 			}
@@ -85,6 +184,72 @@ public interface ARXMix<T extends ARXMix<T>> {
 		t.setName("ARX" + type.getDatabaseTag() + " Gen Thread");
 		t.start();
 	}
+	
+	/**
+	 * Generate and write the mixes for a range of counters to the database, on the calling thread; see
+	 * {@link #generateRange(ARXResultSink, ARXMixInfo, ARXScreener, int, long, long)}.
+	 * @param <T> Type to generate
+	 * @param database handle to database API
+	 * @param type type to generate
+	 * @param screener screener for the type, which may be shared with other ranges of the same type
+	 * @param scheme counter permutation scheme, from {@link CounterPermutation}
+	 * @param start first counter
+	 * @param end counter to stop before
+	 */
+	public static <T extends ARXMix<T>> void generateRange(Database database, ARXMixInfo<T> type, ARXScreener screener, int scheme, long start, long end) {
+		generateRange(ARXResultSink.of(database), type, screener, scheme, start, end);
+	}
+	
+	/**
+	 * Generate the mixes for a range of counters and put them in a sink, on the calling thread. Definitions are handled in
+	 * batches of {@link #BATCH_SIZE}. Each batch goes through the stages of an {@link ARXScreener}: the whole batch is
+	 * screened with a short test, the survivors get the full test and are written one by one, with graphs only
+	 * for those that still look good, and the rest are recorded with just their screening scores. The counters of the batch
+	 * are then recorded as finished with {@link ARXResultSink#submitRange(String, long, long)}; the database records them in
+	 * the same transaction as the results, so ranges can be run in any order and none of their work is lost or repeated after
+	 * a crash.
+	 * Only the representative of each class of equivalent definitions (see {@link ARXCanonicalizer}) is handled, and it is
+	 * written along with the size of its class; the others are skipped, as are definitions the sink already has.
+	 * @param <T> Type to generate
+	 * @param sink where the results go
+	 * @param type type to generate
+	 * @param screener screener for the type, which may be shared with other ranges of the same type
+	 * @param scheme counter permutation scheme, from {@link CounterPermutation}
+	 * @param start first counter
+	 * @param end counter to stop before
+	 */
+	public static <T extends ARXMix<T>> void generateRange(ARXResultSink sink, ARXMixInfo<T> type, ARXScreener screener, int scheme, long start, long end) {
+		final long LIMIT = (1L << type.getDefinitionBits());
+		long c = start;
+		while (c < end) {
+			// Gather the next batch of representatives
+			final long first = c;
+			long[] definitions = new long[BATCH_SIZE];
+			int count = 0;
+			while (count < BATCH_SIZE && c < end) {
+				long definition = CounterPermutation.permute(c, LIMIT, scheme);
+				c++;
+				// Definitions that are already written, such as by a run that wrote rows ahead of their range, are only done once
+				if (type.canonicalize(definition) == definition && !sink.isDone(type.getDatabaseTag(), definition)) {
+					definitions[count++] = definition;
+				}
+			}
+			System.out.println("Try " + first + " to " + (c - 1) + " of " + LIMIT + " for " + type.getDatabaseTag());
+			definitions = Arrays.copyOf(definitions, count);
+			// Stage 1: screen the whole batch
+			ARXScreener.Screening screening = screener.partition(definitions);
+			long[] survivors = screening.survivors();
+			// Stage 2: the full test for the survivors
+			AvalancheResult[][] results = avalancheRounds(type, survivors, 4);
+			// Stage 3: graphs only for those that still look good
+			for (int i = 0; i < survivors.length; i++) {
+				T mix = type.unpack(survivors[i]);
+				sink.submit(mix, results[i], screener.passesFull(results[i]));
+			}
+			sink.submitScreened(type.getDatabaseTag(), screening.screened(), screening.screenedScores());
+			sink.submitRange(type.getDatabaseTag(), first, c);
+		}
+	}
 }
 
 /**
@@ -28,6 +28,14 @@ public final class ARXMixInfo<T extends ARXMix<T>> {
 	 * The number of bits used in the mix definition.
 	 */
 	private final int definitionBits;
+	/**
+	 * The size of each term in bits.
+	 */
+	private final int wordBits;
+	/**
+	 * The number of terms in the state.
+	 */
+	private final int terms;
 	/**
 	 * The function that lets mixes be unpacked from a long.
 	 */
@@ -37,11 +45,15 @@ public final class ARXMixInfo<T extends ARXMix<T>> {
 	 * Create an info object with the given values.
 	 * @param databaseTag tag in the database
 	 * @param definitionBits bits used in the packed definition
+	 * @param wordBits size of each term in bits
+	 * @param terms number of terms in the state
 	 * @param unpacker method that unpacks longs
 	 */
-	public ARXMixInfo(String databaseTag, int definitionBits, Unpacker<T> unpacker) {
+	public ARXMixInfo(String databaseTag, int definitionBits, int wordBits, int terms, Unpacker<T> unpacker) {
 		this.databaseTag = databaseTag;
 		this.definitionBits = definitionBits;
+		this.wordBits = wordBits;
+		this.terms = terms;
 		this.unpacker = unpacker;
 	}
 	
@@ -61,6 +73,60 @@ public final class ARXMixInfo<T extends ARXMix<T>> {
 		return definitionBits;
 	}
 	
+	/**
+	 * Get the size of each term of the state in bits.
+	 * @return the term size
+	 */
+	public final int getWordBits() {
+		return wordBits;
+	}
+	
+	/**
+	 * Get the number of terms in the state. Mixes of this type apply twice this many operations per round.
+	 * @return the number of terms
+	 */
+	public final int getTerms() {
+		return terms;
+	}
+	
+	/**
+	 * Get the representative of the definitions that avalanche exactly like the given one. See {@link ARXCanonicalizer}.
+	 * @param definition packed definition
+	 * @return the representative definition
+	 */
+	public final long canonicalize(long definition) {
+		return ARXCanonicalizer.canonicalize(this, definition);
+	}
+	
+	/**
+	 * Get how many definitions avalanche exactly like the given one, including itself. See {@link ARXCanonicalizer}.
+	 * @param definition packed definition
+	 * @return the number of equivalent definitions
+	 */
+	public final long getClassSize(long definition) {
+		return ARXCanonicalizer.getClassSize(this, definition);
+	}
+	
+	/**
+	 * Unpack a packed definition into the rotation and XOR flag of each operation. Most significant first, a definition
+	 * holds the XOR flag of each operation, then the rotations, both in the order the operations are applied.
+	 * @param definition packed definition
+	 * @param rotations array of twice {@link #getTerms()} to receive the rotations
+	 * @param xors array of twice {@link #getTerms()} to receive the XOR flags
+	 */
+	public final void unpackOperations(long definition, int[] rotations, boolean[] xors) {
+		final int rotBits = Integer.numberOfTrailingZeros(wordBits);
+		long v = definition;
+		for (int k = rotations.length - 1; k >= 0; k--) {
+			rotations[k] = (int)(v & (wordBits - 1));
+			v >>>= rotBits;
+		}
+		for (int k = xors.length - 1; k >= 0; k--) {
+			xors[k] = (v & 1L) == 1L;
+			v >>>= 1;
+		}
+	}
+	
 	/**
 	 * Call the unpacker to unpack a packed definition into a mix of this type.
 	 * @param value value to unpack
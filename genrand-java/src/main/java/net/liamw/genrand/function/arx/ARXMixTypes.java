@@ -0,0 +1,31 @@
+package net.liamw.genrand.function.arx;
+
+import java.util.List;
+
+/**
+ * Every ARX mix type there is, so types can be found by their database tag.
+ */
+public final class ARXMixTypes {
+	private ARXMixTypes() {}
+
+	/**
+	 * Every type, smallest first.
+	 */
+	public static final List<ARXMixInfo<?>> ALL = List.of(
+			MixARX8x2.INFO, MixARX8x3.INFO, MixARX8x4.INFO,
+			MixARX16x2.INFO, MixARX16x3.INFO, MixARX16x4.INFO,
+			MixARX32x2.INFO, MixARX32x3.INFO, MixARX32x4.INFO,
+			MixARX64x2.INFO, MixARX64x3.INFO, MixARX64x4.INFO);
+
+	/**
+	 * Find a type by its database tag.
+	 * @param tag the tag, like "16x3"
+	 * @return the type, or null if there is none with that tag
+	 */
+	public static ARXMixInfo<?> forTag(String tag) {
+		for (ARXMixInfo<?> type : ALL) {
+			if (type.getDatabaseTag().equals(tag)) return type;
+		}
+		return null;
+	}
+}
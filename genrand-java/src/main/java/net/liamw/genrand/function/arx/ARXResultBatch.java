@@ -0,0 +1,251 @@
+package net.liamw.genrand.function.arx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import net.liamw.genrand.util.AvalancheResult;
+
+/**
+ * Everything a worker found in one leased range of counters, in a compact binary form to send to the coordinator (see
+ * {@link ARXLeaseCoordinator}). A batch collects results as an {@link ARXResultSink}, so a worker runs the same
+ * {@link ARXMix#generateRange(ARXResultSink, ARXMixInfo, ARXScreener, int, long, long)} as local enumeration does.
+ * <br>
+ * The format is big endian: the magic number {@link #MAGIC}, the type tag, the first counter and the counter the range
+ * stops before, then the number of mixes, each as its definition, its four avalanche scores and its graphs, then the
+ * number of screened out definitions, each as its definition and screening score. Graphs are sent as PNG files, each
+ * preceded by its length, and a mix without graphs has a count of zero.
+ */
+public final class ARXResultBatch implements ARXResultSink {
+	/**
+	 * Magic number at the start of every batch, which is "ARX" and a version number.
+	 */
+	public static final int MAGIC = 0x41525801;
+
+	/**
+	 * A fully tested mix.
+	 * @param definition packed definition
+	 * @param scores avalanche scores for 1 to 4 rounds
+	 * @param images avalanche graphs for 1 to 4 rounds as PNG files, or null if it has none
+	 */
+	public record Mix(long definition, double[] scores, byte[][] images) {}
+
+	/**
+	 * Type tag of the range.
+	 */
+	private final String type;
+	/**
+	 * First counter of the range.
+	 */
+	private final long start;
+	/**
+	 * Counter the range stops before.
+	 */
+	private final long end;
+	/**
+	 * Fully tested mixes.
+	 */
+	private final List<Mix> mixes = new ArrayList<>();
+	/**
+	 * Screened out definitions.
+	 */
+	private long[] screened = new long[16];
+	/**
+	 * Screening score of each screened out definition.
+	 */
+	private double[] screenScores = new double[16];
+	/**
+	 * Number of screened out definitions.
+	 */
+	private int screenedCount;
+
+	/**
+	 * Create an empty batch for a range.
+	 * @param type type tag of the range
+	 * @param start first counter of the range
+	 * @param end counter the range stops before
+	 */
+	public ARXResultBatch(String type, long start, long end) {
+		this.type = type;
+		this.start = start;
+		this.end = end;
+	}
+
+	@Override
+	public void submit(ARXMix<?> mix, AvalancheResult[] results, boolean images) {
+		double[] scores = new double[4];
+		for (int r = 0; r < 4; r++) {
+			scores[r] = results[r].score();
+		}
+		byte[][] graphs = null;
+		if (images) {
+			graphs = new byte[4][];
+			for (int r = 0; r < 4; r++) {
+				ByteArrayOutputStream png = new ByteArrayOutputStream();
+				try {
+					ImageIO.write(results[r].graph(), "PNG", png);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+				graphs[r] = png.toByteArray();
+			}
+		}
+		mixes.add(new Mix(mix.pack(), scores, graphs));
+	}
+
+	@Override
+	public void submitScreened(String type, long[] definitions, double[] screenScores) {
+		for (int i = 0; i < definitions.length; i++) {
+			if (screenedCount == screened.length) {
+				screened = Arrays.copyOf(screened, screenedCount * 2);
+				this.screenScores = Arrays.copyOf(this.screenScores, screenedCount * 2);
+			}
+			screened[screenedCount] = definitions[i];
+			this.screenScores[screenedCount++] = screenScores[i];
+		}
+	}
+
+	@Override
+	public void submitRange(String ident, long start, long end) {
+		// The whole range is recorded by the coordinator once the batch arrives
+	}
+
+	/**
+	 * @return the type tag of the range
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return the first counter of the range
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the counter the range stops before
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the fully tested mixes
+	 */
+	public List<Mix> getMixes() {
+		return mixes;
+	}
+
+	/**
+	 * @return the screened out definitions
+	 */
+	public long[] getScreened() {
+		return Arrays.copyOf(screened, screenedCount);
+	}
+
+	/**
+	 * @return the screening score of each screened out definition
+	 */
+	public double[] getScreenScores() {
+		return Arrays.copyOf(screenScores, screenedCount);
+	}
+
+	/**
+	 * Write the batch in its binary form.
+	 * @param out stream to write to
+	 * @throws IOException if writing fails
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeUTF(type);
+		data.writeLong(start);
+		data.writeLong(end);
+		data.writeInt(mixes.size());
+		for (Mix mix : mixes) {
+			data.writeLong(mix.definition());
+			for (int r = 0; r < 4; r++) {
+				data.writeDouble(mix.scores()[r]);
+			}
+			if (mix.images() == null) {
+				data.writeByte(0);
+			} else {
+				data.writeByte(mix.images().length);
+				for (byte[] image : mix.images()) {
+					data.writeInt(image.length);
+					data.write(image);
+				}
+			}
+		}
+		data.writeInt(screenedCount);
+		for (int i = 0; i < screenedCount; i++) {
+			data.writeLong(screened[i]);
+			data.writeDouble(screenScores[i]);
+		}
+		data.flush();
+	}
+
+	/**
+	 * Get the binary form of the batch.
+	 * @return the batch as bytes
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(out);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Read a batch from its binary form.
+	 * @param in stream to read from
+	 * @return the batch
+	 * @throws IOException if reading fails or the data isn't a batch
+	 */
+	public static ARXResultBatch read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) throw new IOException("not an ARX result batch");
+		ARXResultBatch batch = new ARXResultBatch(data.readUTF(), data.readLong(), data.readLong());
+		final int mixCount = data.readInt();
+		for (int i = 0; i < mixCount; i++) {
+			long definition = data.readLong();
+			double[] scores = new double[4];
+			for (int r = 0; r < 4; r++) {
+				scores[r] = data.readDouble();
+			}
+			final int imageCount = data.readUnsignedByte();
+			byte[][] images = null;
+			if (imageCount != 0) {
+				if (imageCount != 4) throw new IOException("a mix has " + imageCount + " graphs rather than 4");
+				images = new byte[4][];
+				for (int r = 0; r < 4; r++) {
+					final int length = data.readInt();
+					if (length < 0) throw new IOException("a graph has a length of " + length);
+					images[r] = data.readNBytes(length);
+					if (images[r].length != length) throw new EOFException("a graph stops " + images[r].length + " bytes into " + length);
+				}
+			}
+			batch.mixes.add(new Mix(definition, scores, images));
+		}
+		final int screenedCount = data.readInt();
+		for (int i = 0; i < screenedCount; i++) {
+			batch.submitScreened(batch.type, new long[] {data.readLong()}, new double[] {data.readDouble()});
+		}
+		return batch;
+	}
+}
@@ -0,0 +1,76 @@
+package net.liamw.genrand.function.arx;
+
+import net.liamw.genrand.util.AvalancheResult;
+import net.liamw.genrand.util.Database;
+
+/**
+ * Where {@link ARXMix#generateRange(ARXResultSink, ARXMixInfo, ARXScreener, int, long, long)} puts what it finds: the
+ * database when enumerating locally, or a batch to send to the coordinator when working for one (see
+ * {@link ARXResultBatch}).
+ */
+public interface ARXResultSink {
+	/**
+	 * Take a fully tested mix.
+	 * @param mix the mix
+	 * @param results avalanche results for the mix for 1 to 4 rounds
+	 * @param images true if the avalanche graphs should be kept
+	 */
+	void submit(ARXMix<?> mix, AvalancheResult[] results, boolean images);
+
+	/**
+	 * Take definitions that were screened out before the full test.
+	 * @param type mix type
+	 * @param definitions packed definitions
+	 * @param screenScores the screening score of each definition
+	 */
+	void submitScreened(String type, long[] definitions, double[] screenScores);
+
+	/**
+	 * Take note that a range of counters has been finished, after everything found in it.
+	 * @param ident mix type
+	 * @param start first counter of the range
+	 * @param end counter the range stops before
+	 */
+	void submitRange(String ident, long start, long end);
+
+	/**
+	 * Return true if a definition is already known to be done, so it can be skipped. Sinks that can't tell say no.
+	 * @param ident mix type
+	 * @param definition packed definition
+	 * @return true if the definition is done
+	 */
+	default boolean isDone(String ident, long definition) {
+		return false;
+	}
+
+	/**
+	 * Get a sink that writes to the database. Results are held until their range is submitted and then written along with
+	 * it (see {@link Database.RangeResults}), so the sink is for one thread.
+	 * @param database handle to database API
+	 * @return the sink
+	 */
+	static ARXResultSink of(Database database) {
+		final Database.RangeResults range = database.collectRange();
+		return new ARXResultSink() {
+			@Override
+			public void submit(ARXMix<?> mix, AvalancheResult[] results, boolean images) {
+				range.submit(mix, results, images);
+			}
+
+			@Override
+			public void submitScreened(String type, long[] definitions, double[] screenScores) {
+				range.submitScreened(type, definitions, screenScores);
+			}
+
+			@Override
+			public void submitRange(String ident, long start, long end) {
+				range.submitRange(ident, start, end);
+			}
+
+			@Override
+			public boolean isDone(String ident, long definition) {
+				return database.isARXDone(ident, definition);
+			}
+		};
+	}
+}
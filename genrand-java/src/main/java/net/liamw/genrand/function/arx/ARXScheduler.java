@@ -0,0 +1,254 @@
+package net.liamw.genrand.function.arx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import net.liamw.genrand.util.Database;
+
+/**
+ * Runs the enumeration of several ARX types on one shared pool of workers, rather than one thread per type.
+ * <br>
+ * Each type's counter range is split into chunks of {@link #CHUNK_SIZE} counters. The pool always has
+ * {@link #CHUNKS_PER_WORKER} chunks per worker in hand, so each worker has one running and about one waiting; whenever a
+ * chunk finishes, the worker that ran it picks the next chunk and pushes it onto its own queue, where an idle worker can
+ * steal it. A worker whose chunk finishes early takes a waiting one rather than sitting idle until the others finish. Small
+ * types simply run out of chunks and leave the pool to the rest.
+ * <br>
+ * The next chunk comes from the type that is furthest behind its share of the chunks handed out so far, where each type's
+ * share is in proportion to its weight (stride scheduling). A type with weight 2 gets twice the chunks of a type with
+ * weight 1 while both still have work, so weights control how the workers are shared.
+ * <br>
+ * Chunks of a type finish out of order. Every batch of a chunk is recorded as finished along with its results (see
+ * {@link Database#completeRange(String, long, long)}), and the checkpoint only moves up to the end of the batches that
+ * have all finished. After a restart the chunks are handed out from the checkpoint again, skipping the ranges that
+ * finished beyond it, so no work is lost or repeated.
+ */
+public final class ARXScheduler {
+	/**
+	 * Number of counters in a chunk.
+	 */
+	public static final long CHUNK_SIZE = 256;
+	/**
+	 * Number of chunks per worker kept on the pool.
+	 */
+	public static final int CHUNKS_PER_WORKER = 2;
+	/**
+	 * Longest time in seconds {@link #close()} waits for the running chunks to finish.
+	 */
+	private static final long CLOSE_WAIT_SECONDS = 30;
+
+	/**
+	 * Enumeration progress of one type.
+	 */
+	private static final class TypeState {
+		/**
+		 * Type being enumerated.
+		 */
+		final ARXMixInfo<?> type;
+		/**
+		 * Share of the workers this type gets, relative to the others.
+		 */
+		final double weight;
+		/**
+		 * Counter permutation scheme of the type's search.
+		 */
+		final int scheme;
+		/**
+		 * Counter to stop before.
+		 */
+		final long limit;
+		/**
+		 * Screener shared by every chunk of the type.
+		 */
+		final ARXScreener screener;
+		/**
+		 * First counter not yet handed out.
+		 */
+		long next;
+		/**
+		 * Ranges that had already finished beyond the checkpoint when the type was added, from their start to their end.
+		 */
+		final TreeMap<Long, Long> finishedAhead;
+		/**
+		 * Virtual time of the type for stride scheduling; it goes up by 1/weight for each chunk handed out.
+		 */
+		double pass;
+
+		TypeState(ARXMixInfo<?> type, double weight, int scheme, long start, TreeMap<Long, Long> finishedAhead, ARXScreener screener) {
+			this.type = type;
+			this.weight = weight;
+			this.scheme = scheme;
+			this.limit = 1L << type.getDefinitionBits();
+			this.screener = screener;
+			this.next = start;
+			this.finishedAhead = finishedAhead;
+			skipFinished();
+		}
+
+		/**
+		 * Move the next counter past any range that has already finished.
+		 */
+		void skipFinished() {
+			while (!finishedAhead.isEmpty() && finishedAhead.firstKey() <= next) {
+				next = Math.max(next, finishedAhead.pollFirstEntry().getValue());
+			}
+		}
+	}
+
+	/**
+	 * A range of counters of one type.
+	 */
+	private record Chunk(TypeState state, long start, long end) {}
+
+	/**
+	 * Handle to database API.
+	 */
+	private final Database database;
+	/**
+	 * Pool the chunks run on.
+	 */
+	private final ForkJoinPool pool;
+	/**
+	 * Percentile of each type that goes on to each next stage of screening.
+	 */
+	private final double percentile;
+	/**
+	 * Types that still have chunks to hand out.
+	 */
+	private final List<TypeState> active = new ArrayList<>();
+	/**
+	 * Set once the scheduler has been closed, after which no more chunks are run.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Create a scheduler with its own pool of workers.
+	 * @param database handle to database API
+	 * @param parallelism number of workers; anything below 1 means one per processor
+	 * @param percentile percentile of each type that goes on to each next stage of screening
+	 */
+	public ARXScheduler(Database database, int parallelism, double percentile) {
+		if (parallelism < 1) parallelism = Runtime.getRuntime().availableProcessors();
+		this.database = database;
+		this.percentile = percentile;
+		// Chunks are run in the order they were pushed, so the oldest waiting chunk is the next to be run or stolen
+		this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+	}
+
+	/**
+	 * Add a type to be enumerated, starting from its checkpoint and skipping ranges that finished beyond it. Types have to be
+	 * added before {@link #start()}.
+	 * @param type type to enumerate
+	 * @param weight share of the workers the type gets, relative to the other types
+	 */
+	public synchronized void add(ARXMixInfo<?> type, double weight) {
+		if (!(weight > 0)) throw new IllegalArgumentException("weight for " + type.getDatabaseTag() + " has to be above zero");
+		final long start = database.getCheckpoint(type.getDatabaseTag());
+		final int scheme = database.getPermutationScheme(type.getDatabaseTag());
+		final TreeMap<Long, Long> finished = database.getCompletedRanges(type.getDatabaseTag());
+		TypeState state = new TypeState(type, weight, scheme, start, finished, new ARXScreener(type, percentile));
+		if (state.next < state.limit) active.add(state);
+	}
+
+	/**
+	 * Start running the types that have been added. This method returns immediately.
+	 */
+	public void start() {
+		for (int i = 0; i < pool.getParallelism() * CHUNKS_PER_WORKER; i++) {
+			scheduleNext();
+		}
+	}
+
+	/**
+	 * Stop running chunks and shut the pool down. Chunks that haven't started are dropped, and the running ones are given up
+	 * to {@link #CLOSE_WAIT_SECONDS} to finish so their results are written; whatever doesn't finish is run again after
+	 * the next restart.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			pool.shutdown();
+		}
+		try {
+			if (!pool.awaitTermination(CLOSE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				System.out.println("ARX chunks still running after " + CLOSE_WAIT_SECONDS + " seconds are run again after restart");
+				pool.shutdownNow();
+			}
+		} catch (InterruptedException ex) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Pick the next chunk, if any are left, and put it on the pool.
+	 */
+	private synchronized void scheduleNext() {
+		final Chunk chunk = nextChunk();
+		if (chunk == null) return;
+		pool.execute(() -> {
+			if (closed) return;
+			try {
+				run(chunk);
+			} catch (RuntimeException ex) {
+				// The rest of the chunk never counts as finished, so it is run again after the next restart
+				ex.printStackTrace();
+			}
+			scheduleNext();
+		});
+	}
+
+	/**
+	 * Hand out the next chunk of the type that is furthest behind its share. Call with the scheduler's lock held.
+	 * @return the chunk, or null if every chunk has been handed out or the scheduler is closed
+	 */
+	private Chunk nextChunk() {
+		if (closed) return null;
+		TypeState best = null;
+		for (TypeState state : active) {
+			if (best == null || state.pass < best.pass) best = state;
+		}
+		if (best == null) return null;
+		final long start = best.next;
+		// Stop short of the next range that has already finished
+		long end = Math.min(best.limit, start + CHUNK_SIZE);
+		if (!best.finishedAhead.isEmpty()) end = Math.min(end, best.finishedAhead.firstKey());
+		best.next = end;
+		best.skipFinished();
+		best.pass += 1.0 / best.weight;
+		if (best.next >= best.limit) active.remove(best);
+		return new Chunk(best, start, end);
+	}
+
+	/**
+	 * Run a chunk. Its batches record themselves as finished, which moves the checkpoint when they join on to it.
+	 * @param chunk the chunk to run
+	 */
+	private void run(Chunk chunk) {
+		final TypeState state = chunk.state();
+		ARXMix.generateRange(database, state.type, state.screener, state.scheme, chunk.start(), chunk.end());
+	}
+
+	/**
+	 * Parse per type weights written as a comma separated list of type:weight pairs, like "8x2:0.5,64x4:4".
+	 * Types that aren't listed have a weight of 1.
+	 * @param weights the weights to parse, which may be empty
+	 * @return the weight for each listed type tag
+	 */
+	public static Map<String, Double> parseWeights(String weights) {
+		Map<String, Double> map = new HashMap<>();
+		for (String entry : weights.split(",")) {
+			if (entry.isBlank()) continue;
+			String[] parts = entry.split(":");
+			if (parts.length != 2) throw new IllegalArgumentException("weight should be type:weight, not " + entry.trim());
+			map.put(parts[0].trim(), Double.parseDouble(parts[1].trim()));
+		}
+		return map;
+	}
+}
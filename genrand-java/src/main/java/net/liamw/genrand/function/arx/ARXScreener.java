@@ -0,0 +1,197 @@
+package net.liamw.genrand.function.arx;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.liamw.genrand.util.AvalancheResult;
+
+/**
+ * Decides how much work each enumerated ARX definition is worth, so hopeless definitions don't get the same full test and
+ * graphs as promising ones.
+ * <br>
+ * There are three stages. Every definition is first screened with a short test of {@link #SCREEN_SAMPLES} samples, scored
+ * at {@link #SCREEN_ROUND} rounds only. Definitions whose screening score is within the configured percentile of the
+ * screening scores seen so far for the type go on to the full test of 1 to 4 rounds. Only definitions whose full score at
+ * {@link #SCREEN_ROUND} rounds is also within the percentile of the full scores seen so far get avalanche graphs. Lower
+ * scores are better, so a percentile of 25 lets through the best quarter. Both decisions are made from the score at
+ * {@link #SCREEN_ROUND} rounds alone, so a definition that is poor at two rounds but good at four is screened out.
+ * <br>
+ * A definition screened out in the first stage gets no full scores and no graphs: all that is kept of it is its screening
+ * score, in the mixarxscreened table. Screening is off by default.
+ * <br>
+ * Each stage lets everything through until it has seen enough scores to place the percentile. The scores seen are kept as
+ * a uniform sample, so the percentile follows the whole enumeration rather than just its start. A screener can be shared by
+ * threads working on different parts of the same type.
+ */
+public final class ARXScreener {
+	/**
+	 * Default percentile of each type that goes on to the next stage, which turns screening off.
+	 */
+	public static final double DEFAULT_PERCENTILE = 0.0;
+	/**
+	 * Number of samples in the screening test.
+	 */
+	public static final int SCREEN_SAMPLES = 1 << 12;
+	/**
+	 * Number of rounds the screening is scored at. One round hardly mixes anything, while most definitions look alike after
+	 * three or four, so two rounds tells the most definitions apart.
+	 */
+	public static final int SCREEN_ROUND = 2;
+	/**
+	 * Number of scores kept to place the percentile.
+	 */
+	private static final int RESERVOIR_SIZE = 1024;
+	/**
+	 * Number of scores a stage has to see before it screens anything out.
+	 */
+	private static final int WARMUP = 64;
+
+	/**
+	 * A batch of definitions split by the screening stage.
+	 * @param survivors definitions that go on to the full test
+	 * @param screened definitions that were screened out
+	 * @param screenedScores screening score of each definition screened out
+	 */
+	public record Screening(long[] survivors, long[] screened, double[] screenedScores) {}
+
+	/**
+	 * Type being screened.
+	 */
+	private final ARXMixInfo<?> type;
+	/**
+	 * Percentile that goes on to the next stage, from 0 to 100.
+	 */
+	private final double percentile;
+	/**
+	 * Screening scores seen so far.
+	 */
+	private final Reservoir screenScores = new Reservoir();
+	/**
+	 * Full scores seen so far.
+	 */
+	private final Reservoir fullScores = new Reservoir();
+
+	/**
+	 * Create a screener for a type.
+	 * @param type type being screened
+	 * @param percentile percentile of the type that goes on to each next stage; 0 or below, or 100 or more, lets
+	 * everything through
+	 */
+	public ARXScreener(ARXMixInfo<?> type, double percentile) {
+		this.type = type;
+		this.percentile = percentile;
+	}
+
+	/**
+	 * Return true if this screener screens anything out. If it doesn't, there's no need to run the screening test at all.
+	 * @return true if the percentile is above 0 and below 100
+	 */
+	public boolean isEnabled() {
+		return percentile > 0.0 && percentile < 100.0;
+	}
+
+	/**
+	 * Run the screening test on several definitions of the type at once.
+	 * @param definitions packed definitions to screen
+	 * @return the screening score of each definition
+	 */
+	public double[] screen(long[] definitions) {
+		AvalancheResult[][] results = ARXMix.avalancheRounds(type, definitions, SCREEN_ROUND, SCREEN_SAMPLES);
+		double[] scores = new double[definitions.length];
+		for (int i = 0; i < definitions.length; i++) {
+			scores[i] = results[i][SCREEN_ROUND - 1].score();
+		}
+		return scores;
+	}
+
+	/**
+	 * Screen several definitions of the type at once and split them into those that go on to the full test and those that
+	 * are screened out. If this screener is not enabled, the screening test is skipped and every definition survives.
+	 * @param definitions packed definitions to screen
+	 * @return the definitions split by the screening
+	 */
+	public Screening partition(long[] definitions) {
+		if (!isEnabled()) {
+			return new Screening(definitions, new long[0], new double[0]);
+		}
+		final double[] scores = screen(definitions);
+		long[] survivors = new long[definitions.length];
+		long[] screened = new long[definitions.length];
+		double[] screenedScores = new double[definitions.length];
+		int surviving = 0;
+		int screenedOut = 0;
+		for (int i = 0; i < definitions.length; i++) {
+			if (passesScreen(scores[i])) {
+				survivors[surviving++] = definitions[i];
+			} else {
+				screened[screenedOut] = definitions[i];
+				screenedScores[screenedOut++] = scores[i];
+			}
+		}
+		return new Screening(Arrays.copyOf(survivors, surviving), Arrays.copyOf(screened, screenedOut), Arrays.copyOf(screenedScores, screenedOut));
+	}
+
+	/**
+	 * Record a screening score and return true if the definition should get the full test.
+	 * @param score the screening score
+	 * @return true if the definition passes the screening
+	 */
+	public synchronized boolean passesScreen(double score) {
+		return !isEnabled() || screenScores.admit(score);
+	}
+
+	/**
+	 * Record the full test results of a definition and return true if it should get avalanche graphs.
+	 * @param results the avalanche results for 1 to 4 rounds
+	 * @return true if the definition's graphs should be made
+	 */
+	public synchronized boolean passesFull(AvalancheResult[] results) {
+		return !isEnabled() || fullScores.admit(results[SCREEN_ROUND - 1].score());
+	}
+
+	/**
+	 * A uniform sample of the scores seen by one stage, kept with reservoir sampling.
+	 */
+	private final class Reservoir {
+		/**
+		 * Scores kept.
+		 */
+		private final double[] scores = new double[RESERVOIR_SIZE];
+		/**
+		 * Number of scores kept.
+		 */
+		private int size;
+		/**
+		 * Number of scores seen.
+		 */
+		private long seen;
+
+		/**
+		 * Record a score and return true if it is within the percentile of the scores seen before it.
+		 * @param score the score
+		 * @return true if the score passes
+		 */
+		boolean admit(double score) {
+			final boolean pass = size < WARMUP || score <= quantile();
+			// Every score seen has the same chance of being kept
+			seen++;
+			if (size < scores.length) {
+				scores[size++] = score;
+			} else {
+				long j = ThreadLocalRandom.current().nextLong(seen);
+				if (j < scores.length) scores[(int) j] = score;
+			}
+			return pass;
+		}
+
+		/**
+		 * Get the score at the percentile of the kept scores.
+		 * @return the score
+		 */
+		private double quantile() {
+			double[] sorted = Arrays.copyOf(scores, size);
+			Arrays.sort(sorted);
+			return sorted[(int) Math.min(size - 1, Math.floor(percentile / 100.0 * size))];
+		}
+	}
+}
@@ -1,14 +1,16 @@
 package net.liamw.genrand.function.arx;
 
-import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
 import net.liamw.genrand.util.Avalanche32;
 import net.liamw.genrand.util.Avalanche32.Diffuser;
+import net.liamw.genrand.util.Avalanche32.RoundDiffuser;
+import net.liamw.genrand.util.AvalancheResult;
 
 /**
  * Mixing function using 4 add/xor Feistel-like operations on rotated values.
  */
-public class MixARX16x2 implements Diffuser, ARXMix<MixARX16x2> {
+public class MixARX16x2 implements Diffuser, RoundDiffuser, ARXMix<MixARX16x2> {
 	private static final int ROT_BITS = 4; // bits needed to define a rotation
 	private static final int ROT_MASK = (1 << ROT_BITS) - 1; // bit mask for rotation constants
 	private static final long ROT_MASK_LONG = (long) ROT_MASK; // long version
@@ -18,7 +20,7 @@ public class MixARX16x2 implements Diffuser, ARXMix<MixARX16x2> {
 	/**
 	 * Info on this mix.
 	 */
-	public static final ARXMixInfo<MixARX16x2> INFO = new ARXMixInfo<MixARX16x2>("16x2", DEFINITION_BITS, MixARX16x2::unpack);
+	public static final ARXMixInfo<MixARX16x2> INFO = new ARXMixInfo<MixARX16x2>("16x2", DEFINITION_BITS, 16, TERMS, MixARX16x2::unpack);
 	
 	// Rotation constants
 	private final int a;
@@ -94,13 +96,18 @@ public class MixARX16x2 implements Diffuser, ARXMix<MixARX16x2> {
 	}
 	
 	@Override
-	public double score(int rounds) {
-		return Avalanche32.scoreAvalanche(v -> diffuse(v,rounds),32);
+	public AvalancheResult avalanche(int rounds) {
+		return Avalanche32.testAvalanche(v -> diffuse(v,rounds),32);
 	}
 	
 	@Override
-	public BufferedImage graph(int rounds) {
-		return Avalanche32.createAvalancheGraph(v -> diffuse(v,rounds),32);
+	public AvalancheResult[] avalancheRounds(int rounds) {
+		return Avalanche32.testAvalancheRounds(this,32,rounds);
+	}
+	
+	@Override
+	public AvalancheResult[] avalancheRounds(int rounds, ForkJoinPool pool) {
+		return Avalanche32.testAvalancheRounds(this,32,rounds,pool);
 	}
 
 	@Override
@@ -128,6 +135,27 @@ public class MixARX16x2 implements Diffuser, ARXMix<MixARX16x2> {
 		return (v1 << 16) | v2;
 	}
 	
+	/**
+	 * Perform diffuse operation for successive rounds, storing the output after each round.
+	 * @param input the input value
+	 * @param outputs array to receive the output after 1 to outputs.length rounds
+	 */
+	@Override
+	public void diffuseRounds(int input, int[] outputs) {
+		int v1 = (input >>> 16);
+		int v2 = (input & 0xFFFF);
+		
+		for (int i = 0; i < outputs.length; i++) {
+			v1 = xora? (v1 ^ rot16(v2,a)) & 0xFFFF : (v1 + rot16(v2,a)) & 0xFFFF;
+			v2 = xorb? (v2 ^ rot16(v1,b)) & 0xFFFF : (v2 + rot16(v1,b)) & 0xFFFF;
+			v1 = xorc? (v1 ^ rot16(v2,c)) & 0xFFFF : (v1 + rot16(v2,c)) & 0xFFFF;
+			v2 = xord? (v2 ^ rot16(v1,d)) & 0xFFFF : (v2 + rot16(v1,d)) & 0xFFFF;
+			
+			// record the output after this many rounds
+			outputs[i] = (v1 << 16) | v2;
+		}
+	}
+	
 	private static int rot16(int v, int r) {
 		return ((v & 0xFFFF) << r) | ((v & 0xFFFF) >>> (16-r));
 	}
@@ -1,14 +1,16 @@
 package net.liamw.genrand.function.arx;
 
-import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
 import net.liamw.genrand.util.Avalanche64;
 import net.liamw.genrand.util.Avalanche64.Diffuser64;
+import net.liamw.genrand.util.Avalanche64.RoundDiffuser64;
+import net.liamw.genrand.util.AvalancheResult;
 
 /**
  * Mixing function using 8 add/xor Feistel-like operations on rotated values iterating through 4 terms.
  */
-public class MixARX16x4 implements Diffuser64, ARXMix<MixARX16x4> {
+public class MixARX16x4 implements Diffuser64, RoundDiffuser64, ARXMix<MixARX16x4> {
 	private static final int ROT_BITS = 4; // bits needed to define a rotation
 	private static final int ROT_MASK = (1 << ROT_BITS) - 1; // bit mask for rotation constants
 	private static final long ROT_MASK_LONG = (long) ROT_MASK; // long version
@@ -18,7 +20,7 @@ public class MixARX16x4 implements Diffuser64, ARXMix<MixARX16x4> {
 	/**
 	 * Info on this mix.
 	 */
-	public static final ARXMixInfo<MixARX16x4> INFO = new ARXMixInfo<MixARX16x4>("16x4", DEFINITION_BITS, MixARX16x4::unpack);
+	public static final ARXMixInfo<MixARX16x4> INFO = new ARXMixInfo<MixARX16x4>("16x4", DEFINITION_BITS, 16, TERMS, MixARX16x4::unpack);
 	
 	// Rotation constants
 	private final int a;
@@ -134,13 +136,18 @@ public class MixARX16x4 implements Diffuser64, ARXMix<MixARX16x4> {
 	}
 	
 	@Override
-	public double score(int rounds) {
-		return Avalanche64.scoreAvalanche(v -> diffuse(v,rounds),64);
+	public AvalancheResult avalanche(int rounds) {
+		return Avalanche64.testAvalanche(v -> diffuse(v,rounds),64);
 	}
 	
 	@Override
-	public BufferedImage graph(int rounds) {
-		return Avalanche64.createAvalancheGraph(v -> diffuse(v,rounds),64);
+	public AvalancheResult[] avalancheRounds(int rounds) {
+		return Avalanche64.testAvalancheRounds(this,64,rounds);
+	}
+	
+	@Override
+	public AvalancheResult[] avalancheRounds(int rounds, ForkJoinPool pool) {
+		return Avalanche64.testAvalancheRounds(this,64,rounds,pool);
 	}
 
 	@Override
@@ -179,6 +186,38 @@ public class MixARX16x4 implements Diffuser64, ARXMix<MixARX16x4> {
 		return v;
 	}
 	
+	/**
+	 * Perform diffuse operation for successive rounds, storing the output after each round.
+	 * @param input the input value
+	 * @param outputs array to receive the output after 1 to outputs.length rounds
+	 */
+	@Override
+	public void diffuseRounds(long input, long[] outputs) {
+		int v1 = (int)((input >>> 48) & 0xFFFFL);
+		int v2 = (int)((input >>> 32) & 0xFFFFL);
+		int v3 = (int)((input >>> 16) & 0xFFFFL);
+		int v4 = (int)(input & 0xFFFF);
+		
+		for (int i = 0; i < outputs.length; i++) {
+			v1 = xora? (v1 ^ rot16(v4,a)) & 0xFFFF : (v1 + rot16(v4,a)) & 0xFFFF;
+			v2 = xorb? (v2 ^ rot16(v1,b)) & 0xFFFF : (v2 + rot16(v1,b)) & 0xFFFF;
+			v3 = xorc? (v3 ^ rot16(v2,c)) & 0xFFFF : (v3 + rot16(v2,c)) & 0xFFFF;
+			v4 = xord? (v4 ^ rot16(v3,d)) & 0xFFFF : (v4 + rot16(v3,d)) & 0xFFFF;
+			v1 = xore? (v1 ^ rot16(v4,e)) & 0xFFFF : (v1 + rot16(v4,e)) & 0xFFFF;
+			v2 = xorf? (v2 ^ rot16(v1,f)) & 0xFFFF : (v2 + rot16(v1,f)) & 0xFFFF;
+			v3 = xorg? (v3 ^ rot16(v2,g)) & 0xFFFF : (v3 + rot16(v2,g)) & 0xFFFF;
+			v4 = xorh? (v4 ^ rot16(v3,h)) & 0xFFFF : (v4 + rot16(v3,h)) & 0xFFFF;
+			
+			// record the output after this many rounds
+			long v = 0;
+			v = (v << 16) | (v1 & 0xFFFFL);
+			v = (v << 16) | (v2 & 0xFFFFL);
+			v = (v << 16) | (v3 & 0xFFFFL);
+			v = (v << 16) | (v4 & 0xFFFFL);
+			outputs[i] = v;
+		}
+	}
+	
 	private static int rot16(int v, int r) {
 		return ((v & 0xFFFF) << r) | ((v & 0xFFFF) >>> (16-r));
 	}
@@ -1,16 +1,18 @@
 package net.liamw.genrand.function.arx;
 
-import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
 import net.liamw.genrand.util.Avalanche64;
 import net.liamw.genrand.util.Avalanche64.Diffuser64;
+import net.liamw.genrand.util.Avalanche64.RoundDiffuser64;
 import net.liamw.genrand.util.CounterPermutation;
 import net.liamw.genrand.util.Database;
+import net.liamw.genrand.util.AvalancheResult;
 
 /**
  * Mixing function using 4 add/xor Feistel-like operations on rotated values.
  */
-public class MixARX32x2 implements Diffuser64, ARXMix<MixARX32x2> {
+public class MixARX32x2 implements Diffuser64, RoundDiffuser64, ARXMix<MixARX32x2> {
 	private static final int ROT_BITS = 5; // bits needed to define a rotation
 	private static final int ROT_MASK = (1 << ROT_BITS) - 1; // bit mask for rotation constants
 	private static final long ROT_MASK_LONG = (long) ROT_MASK; // long version
@@ -20,7 +22,7 @@ public class MixARX32x2 implements Diffuser64, ARXMix<MixARX32x2> {
 	/**
 	 * Info on this mix.
 	 */
-	public static final ARXMixInfo<MixARX32x2> INFO = new ARXMixInfo<MixARX32x2>("32x2", DEFINITION_BITS, MixARX32x2::unpack);
+	public static final ARXMixInfo<MixARX32x2> INFO = new ARXMixInfo<MixARX32x2>("32x2", DEFINITION_BITS, 32, TERMS, MixARX32x2::unpack);
 	
 	// Rotation constants
 	private final int a;
@@ -96,13 +98,18 @@ public class MixARX32x2 implements Diffuser64, ARXMix<MixARX32x2> {
 	}
 	
 	@Override
-	public double score(int rounds) {
-		return Avalanche64.scoreAvalanche(v -> diffuse(v,rounds),64);
+	public AvalancheResult avalanche(int rounds) {
+		return Avalanche64.testAvalanche(v -> diffuse(v,rounds),64);
 	}
 	
 	@Override
-	public BufferedImage graph(int rounds) {
-		return Avalanche64.createAvalancheGraph(v -> diffuse(v,rounds),64);
+	public AvalancheResult[] avalancheRounds(int rounds) {
+		return Avalanche64.testAvalancheRounds(this,64,rounds);
+	}
+	
+	@Override
+	public AvalancheResult[] avalancheRounds(int rounds, ForkJoinPool pool) {
+		return Avalanche64.testAvalancheRounds(this,64,rounds,pool);
 	}
 
 	@Override
@@ -130,6 +137,27 @@ public class MixARX32x2 implements Diffuser64, ARXMix<MixARX32x2> {
 		return ((v1 & 0xFFFFFFFFL) << 32) | (v2 & 0xFFFFFFFFL);
 	}
 	
+	/**
+	 * Perform diffuse operation for successive rounds, storing the output after each round.
+	 * @param input the input value
+	 * @param outputs array to receive the output after 1 to outputs.length rounds
+	 */
+	@Override
+	public void diffuseRounds(long input, long[] outputs) {
+		int v1 = (int)(input >>> 32);
+		int v2 = (int)(input & 0xFFFFFFFFL);
+		
+		for (int i = 0; i < outputs.length; i++) {
+			v1 = xora? (v1 ^ rot32(v2,a)) : (v1 + rot32(v2,a));
+			v2 = xorb? (v2 ^ rot32(v1,b)) : (v2 + rot32(v1,b));
+			v1 = xorc? (v1 ^ rot32(v2,c)) : (v1 + rot32(v2,c));
+			v2 = xord? (v2 ^ rot32(v1,d)) : (v2 + rot32(v1,d));
+			
+			// record the output after this many rounds
+			outputs[i] = ((v1 & 0xFFFFFFFFL) << 32) | (v2 & 0xFFFFFFFFL);
+		}
+	}
+	
 	private static int rot32(int v, int r) {
 		return Integer.rotateLeft(v, r);
 	}
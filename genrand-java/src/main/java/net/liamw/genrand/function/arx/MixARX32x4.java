@@ -1,12 +1,14 @@
 package net.liamw.genrand.function.arx;
 
-import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
 import net.liamw.genrand.util.AvalancheVector.DiffuserVector;
+import net.liamw.genrand.util.AvalancheVector.RoundDiffuserVector;
 import net.liamw.genrand.util.AvalancheVector;
 import net.liamw.genrand.util.BitVector;
+import net.liamw.genrand.util.AvalancheResult;
 
-public class MixARX32x4 implements DiffuserVector, ARXMix<MixARX32x4> {
+public class MixARX32x4 implements DiffuserVector, RoundDiffuserVector, ARXMix<MixARX32x4> {
 	private static final int ROT_BITS = 5; // bits needed to define a rotation
 	private static final int ROT_MASK = (1 << ROT_BITS) - 1; // bit mask for rotation constants
 	private static final long ROT_MASK_LONG = (long) ROT_MASK; // long version
@@ -16,7 +18,7 @@ public class MixARX32x4 implements DiffuserVector, ARXMix<MixARX32x4> {
 	/**
 	 * Info on this mix.
 	 */
-	public static final ARXMixInfo<MixARX32x4> INFO = new ARXMixInfo<MixARX32x4>("32x4", DEFINITION_BITS, MixARX32x4::unpack);
+	public static final ARXMixInfo<MixARX32x4> INFO = new ARXMixInfo<MixARX32x4>("32x4", DEFINITION_BITS, 32, TERMS, MixARX32x4::unpack);
 	
 	// Rotation constants
 	private final int a;
@@ -132,13 +134,18 @@ public class MixARX32x4 implements DiffuserVector, ARXMix<MixARX32x4> {
 	}
 	
 	@Override
-	public double score(int rounds) {
-		return AvalancheVector.scoreAvalanche(roundDiffuser(rounds));
+	public AvalancheResult avalanche(int rounds) {
+		return AvalancheVector.testAvalanche(roundDiffuser(rounds));
 	}
 	
 	@Override
-	public BufferedImage graph(int rounds) {
-		return AvalancheVector.createAvalancheGraph(roundDiffuser(rounds));
+	public AvalancheResult[] avalancheRounds(int rounds) {
+		return AvalancheVector.testAvalancheRounds(this,rounds);
+	}
+	
+	@Override
+	public AvalancheResult[] avalancheRounds(int rounds, ForkJoinPool pool) {
+		return AvalancheVector.testAvalancheRounds(this,rounds,pool);
 	}
 
 	@Override
@@ -146,6 +153,11 @@ public class MixARX32x4 implements DiffuserVector, ARXMix<MixARX32x4> {
 		return diffuse(input,1);
 	}
 	
+	@Override
+	public void diffuse(int[] input, int[] output) {
+		diffuse(input,output,1);
+	}
+	
 	/**
 	 * Perform diffuse operation for given number of rounds.
 	 * @param input the input value
@@ -153,10 +165,26 @@ public class MixARX32x4 implements DiffuserVector, ARXMix<MixARX32x4> {
 	 * @return the output value
 	 */
 	public BitVector diffuse(BitVector input, int rounds) {
-		int v1 = input.get32BitsAlignedAt(3);
-		int v2 = input.get32BitsAlignedAt(2);
-		int v3 = input.get32BitsAlignedAt(1);
-		int v4 = input.get32BitsAlignedAt(0);
+		int[] words = new int[input.getWordCount()];
+		input.getWords(words);
+		diffuse(words, words, rounds);
+		BitVector output = new BitVector(128);
+		output.setWords(words);
+		return output;
+	}
+	
+	/**
+	 * Perform diffuse operation for given number of rounds on 32 bit words laid out as in {@link BitVector},
+	 * without allocating.
+	 * @param input the input words
+	 * @param output array to receive the output words
+	 * @param rounds number of times to run through the operations
+	 */
+	public void diffuse(int[] input, int[] output, int rounds) {
+		int v1 = input[3];
+		int v2 = input[2];
+		int v3 = input[1];
+		int v4 = input[0];
 		
 		for (int i = 0; i < rounds; i++) {
 			v1 = xora? (v1 ^ rot32(v4,a)) : (v1 + rot32(v4,a));
@@ -169,12 +197,26 @@ public class MixARX32x4 implements DiffuserVector, ARXMix<MixARX32x4> {
 			v4 = xorh? (v4 ^ rot32(v3,h)) : (v4 + rot32(v3,h));
 		}
 		
-		BitVector output = new BitVector(128);
-		output.set32BitsAlignedAt(3, v1);
-		output.set32BitsAlignedAt(2, v2);
-		output.set32BitsAlignedAt(1, v3);
-		output.set32BitsAlignedAt(0, v4);
-		return output;
+		output[3] = v1;
+		output[2] = v2;
+		output[1] = v3;
+		output[0] = v4;
+	}
+	
+	/**
+	 * Perform diffuse operation for successive rounds on 32 bit words laid out as in {@link BitVector}, storing the output
+	 * after each round without allocating.
+	 * @param input the input words
+	 * @param outputs arrays to receive the output words after 1 to outputs.length rounds
+	 */
+	@Override
+	public void diffuseRounds(int[] input, int[][] outputs) {
+		int[] state = input;
+		for (int[] output : outputs) {
+			// carry on from the output of the round before
+			diffuse(state, output, 1);
+			state = output;
+		}
 	}
 	
 	private static int rot32(int v, int r) {
@@ -208,6 +250,11 @@ public class MixARX32x4 implements DiffuserVector, ARXMix<MixARX32x4> {
 			public BitVector diffuse(BitVector input) {
 				return MixARX32x4.this.diffuse(input, rounds);
 			}
+			
+			@Override
+			public void diffuse(int[] input, int[] output) {
+				MixARX32x4.this.diffuse(input, output, rounds);
+			}
 		};
 	}
 	
@@ -1,12 +1,14 @@
 package net.liamw.genrand.function.arx;
 
-import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
 import net.liamw.genrand.util.AvalancheVector.DiffuserVector;
+import net.liamw.genrand.util.AvalancheVector.RoundDiffuserVector;
 import net.liamw.genrand.util.AvalancheVector;
 import net.liamw.genrand.util.BitVector;
+import net.liamw.genrand.util.AvalancheResult;
 
-public class MixARX64x4 implements DiffuserVector, ARXMix<MixARX64x4> {
+public class MixARX64x4 implements DiffuserVector, RoundDiffuserVector, ARXMix<MixARX64x4> {
 	private static final int ROT_BITS = 6; // bits needed to define a rotation
 	private static final int ROT_MASK = (1 << ROT_BITS) - 1; // bit mask for rotation constants
 	private static final long ROT_MASK_LONG = (long) ROT_MASK; // long version
@@ -16,7 +18,7 @@ public class MixARX64x4 implements DiffuserVector, ARXMix<MixARX64x4> {
 	/**
 	 * Info on this mix.
 	 */
-	public static final ARXMixInfo<MixARX64x4> INFO = new ARXMixInfo<MixARX64x4>("64x4", DEFINITION_BITS, MixARX64x4::unpack);
+	public static final ARXMixInfo<MixARX64x4> INFO = new ARXMixInfo<MixARX64x4>("64x4", DEFINITION_BITS, 64, TERMS, MixARX64x4::unpack);
 	
 	// Rotation constants
 	private final int a;
@@ -132,13 +134,18 @@ public class MixARX64x4 implements DiffuserVector, ARXMix<MixARX64x4> {
 	}
 	
 	@Override
-	public double score(int rounds) {
-		return AvalancheVector.scoreAvalanche(roundDiffuser(rounds));
+	public AvalancheResult avalanche(int rounds) {
+		return AvalancheVector.testAvalanche(roundDiffuser(rounds));
 	}
 	
 	@Override
-	public BufferedImage graph(int rounds) {
-		return AvalancheVector.createAvalancheGraph(roundDiffuser(rounds));
+	public AvalancheResult[] avalancheRounds(int rounds) {
+		return AvalancheVector.testAvalancheRounds(this,rounds);
+	}
+	
+	@Override
+	public AvalancheResult[] avalancheRounds(int rounds, ForkJoinPool pool) {
+		return AvalancheVector.testAvalancheRounds(this,rounds,pool);
 	}
 
 	@Override
@@ -146,6 +153,11 @@ public class MixARX64x4 implements DiffuserVector, ARXMix<MixARX64x4> {
 		return diffuse(input,1);
 	}
 	
+	@Override
+	public void diffuse(int[] input, int[] output) {
+		diffuse(input,output,1);
+	}
+	
 	/**
 	 * Perform diffuse operation for given number of rounds.
 	 * @param input the input value
@@ -153,10 +165,26 @@ public class MixARX64x4 implements DiffuserVector, ARXMix<MixARX64x4> {
 	 * @return the output value
 	 */
 	public BitVector diffuse(BitVector input, int rounds) {
-		long v1 = ((input.get32BitsAlignedAt(7) & 0xFFFFFFFFL) << 32) | (input.get32BitsAlignedAt(6) & 0xFFFFFFFFL);
-		long v2 = ((input.get32BitsAlignedAt(5) & 0xFFFFFFFFL) << 32) | (input.get32BitsAlignedAt(4) & 0xFFFFFFFFL);
-		long v3 = ((input.get32BitsAlignedAt(3) & 0xFFFFFFFFL) << 32) | (input.get32BitsAlignedAt(2) & 0xFFFFFFFFL);
-		long v4 = ((input.get32BitsAlignedAt(1) & 0xFFFFFFFFL) << 32) | (input.get32BitsAlignedAt(0) & 0xFFFFFFFFL);
+		int[] words = new int[input.getWordCount()];
+		input.getWords(words);
+		diffuse(words, words, rounds);
+		BitVector output = new BitVector(256);
+		output.setWords(words);
+		return output;
+	}
+	
+	/**
+	 * Perform diffuse operation for given number of rounds on 32 bit words laid out as in {@link BitVector},
+	 * without allocating.
+	 * @param input the input words
+	 * @param output array to receive the output words
+	 * @param rounds number of times to run through the operations
+	 */
+	public void diffuse(int[] input, int[] output, int rounds) {
+		long v1 = ((input[7] & 0xFFFFFFFFL) << 32) | (input[6] & 0xFFFFFFFFL);
+		long v2 = ((input[5] & 0xFFFFFFFFL) << 32) | (input[4] & 0xFFFFFFFFL);
+		long v3 = ((input[3] & 0xFFFFFFFFL) << 32) | (input[2] & 0xFFFFFFFFL);
+		long v4 = ((input[1] & 0xFFFFFFFFL) << 32) | (input[0] & 0xFFFFFFFFL);
 		
 		for (int i = 0; i < rounds; i++) {
 			v1 = xora? (v1 ^ rot64(v4,a)) : (v1 + rot64(v4,a));
@@ -169,16 +197,30 @@ public class MixARX64x4 implements DiffuserVector, ARXMix<MixARX64x4> {
 			v4 = xorh? (v4 ^ rot64(v3,h)) : (v4 + rot64(v3,h));
 		}
 		
-		BitVector output = new BitVector(256);
-		output.set32BitsAlignedAt(7, (int)(v1 >>> 32));
-		output.set32BitsAlignedAt(6, (int)(v1 >>> 0));
-		output.set32BitsAlignedAt(5, (int)(v2 >>> 32));
-		output.set32BitsAlignedAt(4, (int)(v2 >>> 0));
-		output.set32BitsAlignedAt(3, (int)(v3 >>> 32));
-		output.set32BitsAlignedAt(2, (int)(v3 >>> 0));
-		output.set32BitsAlignedAt(1, (int)(v4 >>> 32));
-		output.set32BitsAlignedAt(0, (int)(v4 >>> 0));
-		return output;
+		output[7] = (int)(v1 >>> 32);
+		output[6] = (int)(v1 >>> 0);
+		output[5] = (int)(v2 >>> 32);
+		output[4] = (int)(v2 >>> 0);
+		output[3] = (int)(v3 >>> 32);
+		output[2] = (int)(v3 >>> 0);
+		output[1] = (int)(v4 >>> 32);
+		output[0] = (int)(v4 >>> 0);
+	}
+	
+	/**
+	 * Perform diffuse operation for successive rounds on 32 bit words laid out as in {@link BitVector}, storing the output
+	 * after each round without allocating.
+	 * @param input the input words
+	 * @param outputs arrays to receive the output words after 1 to outputs.length rounds
+	 */
+	@Override
+	public void diffuseRounds(int[] input, int[][] outputs) {
+		int[] state = input;
+		for (int[] output : outputs) {
+			// carry on from the output of the round before
+			diffuse(state, output, 1);
+			state = output;
+		}
 	}
 	
 	private static long rot64(long v, int r) {
@@ -212,6 +254,11 @@ public class MixARX64x4 implements DiffuserVector, ARXMix<MixARX64x4> {
 			public BitVector diffuse(BitVector input) {
 				return MixARX64x4.this.diffuse(input, rounds);
 			}
+			
+			@Override
+			public void diffuse(int[] input, int[] output) {
+				MixARX64x4.this.diffuse(input, output, rounds);
+			}
 		};
 	}
 	
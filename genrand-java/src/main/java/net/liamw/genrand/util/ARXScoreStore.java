@@ -0,0 +1,358 @@
+package net.liamw.genrand.util;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import net.liamw.genrand.function.arx.ARXMixInfo;
+
+/**
+ * Keeps the avalanche scores of ARX types small enough to enumerate fully in memory mapped files, one per type, indexed
+ * directly by definition. Looking up a definition, or whether it has been done at all, is then a read from an array rather
+ * than a search of the database.
+ * <br>
+ * Each definition has a record of {@link #RECORD_SIZE} bytes at definition * {@link #RECORD_SIZE}: the four avalanche
+ * scores as floats, then an int holding the class size shifted left by three and the {@link #FLAG_DONE},
+ * {@link #FLAG_IMAGES} and {@link #FLAG_SCREENED} flags. Definitions that haven't been done are all zeroes, so a new file
+ * costs next to nothing on disk until it fills up. The database stays the record of everything; the store is a copy of
+ * the scores that can be deleted and rebuilt from it, and it is only written once the database has the scores, so it
+ * never claims a definition is done when the database doesn't have it.
+ * <br>
+ * Records are written by one thread at a time and read by any. The int with the flags is written last with release
+ * semantics and read first with acquire semantics, so a reader that sees a definition as done also sees its scores.
+ */
+public final class ARXScoreStore {
+	/**
+	 * Most definition bits a type can have to be kept in the store, which makes the largest file 320MB.
+	 */
+	public static final int MAX_DEFINITION_BITS = 24;
+	/**
+	 * Size of the record of each definition in bytes.
+	 */
+	private static final int RECORD_SIZE = 20;
+	/**
+	 * Flag set once the definition has been done.
+	 */
+	private static final int FLAG_DONE = 1;
+	/**
+	 * Flag set if the definition has avalanche graphs, which are only in the database.
+	 */
+	private static final int FLAG_IMAGES = 2;
+	/**
+	 * Flag set if the definition was screened out before the full test, which leaves it without scores.
+	 */
+	private static final int FLAG_SCREENED = 4;
+	/**
+	 * Number of bits of the int with the flags that are taken by the flags.
+	 */
+	private static final int FLAG_BITS = 3;
+	/**
+	 * View of the int with the flags in a mapped file. Records are 4 byte aligned and mappings start on a page, so the
+	 * release and acquire access modes can be used.
+	 */
+	private static final VarHandle META = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Scores of a definition that has been done.
+	 * @param avScore1 one round avalanche score
+	 * @param avScore2 two round avalanche score
+	 * @param avScore3 three round avalanche score
+	 * @param avScore4 four round avalanche score
+	 * @param classSize number of equivalent definitions the definition stands for
+	 * @param images true if the definition has avalanche graphs in the database
+	 */
+	public record Scores(double avScore1, double avScore2, double avScore3, double avScore4, long classSize, boolean images) {}
+
+	/**
+	 * Takes what is already in the database for a type while its file is being created.
+	 */
+	public interface Fill {
+		/**
+		 * Write the scores of a definition; see {@link ARXScoreStore#put}.
+		 * @param definition packed definition
+		 * @param scores avalanche scores for 1 to 4 rounds
+		 * @param classSize number of equivalent definitions the definition stands for
+		 * @param images true if the definition has avalanche graphs in the database
+		 */
+		void put(long definition, double[] scores, long classSize, boolean images);
+
+		/**
+		 * Record that a definition was screened out; see {@link ARXScoreStore#putScreened}.
+		 * @param definition packed definition
+		 */
+		void putScreened(long definition);
+	}
+
+	/**
+	 * Directory the files are kept in.
+	 */
+	private final Path directory;
+	/**
+	 * Mapped file of each type that has been opened.
+	 */
+	private final Map<String, MappedByteBuffer> stores = new ConcurrentHashMap<>();
+	/**
+	 * Types whose files have been written since the last {@link #force()}.
+	 */
+	private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Create a store that keeps its files in the given directory.
+	 * @param directory directory for the files
+	 */
+	public ARXScoreStore(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Return true if the type is small enough to be kept in the store.
+	 * @param type the type
+	 * @return true if the store can hold every definition of the type
+	 */
+	public static boolean isDense(ARXMixInfo<?> type) {
+		return type.getDefinitionBits() <= MAX_DEFINITION_BITS;
+	}
+
+	/**
+	 * Return true if the store has a file for the type, in which case it knows about every definition of the type that has
+	 * been written.
+	 * @param type type tag
+	 * @return true if the type is kept in the store
+	 */
+	public boolean covers(String type) {
+		return open(type) != null;
+	}
+
+	/**
+	 * Return true if the definition has been done, either fully tested or screened out.
+	 * @param type type tag
+	 * @param definition packed definition
+	 * @return true if the definition is in the store
+	 */
+	public boolean isDone(String type, long definition) {
+		MappedByteBuffer store = open(type);
+		if (store == null || !inRange(store, definition)) return false;
+		return ((int) META.getAcquire(store, offset(definition) + 16) & (FLAG_DONE | FLAG_SCREENED)) != 0;
+	}
+
+	/**
+	 * Get the scores of a definition.
+	 * @param type type tag
+	 * @param definition packed definition
+	 * @return the scores, or null if the definition hasn't been fully tested or the type isn't kept in the store
+	 */
+	public Scores get(String type, long definition) {
+		MappedByteBuffer store = open(type);
+		if (store == null || !inRange(store, definition)) return null;
+		final int offset = offset(definition);
+		final int meta = (int) META.getAcquire(store, offset + 16);
+		if ((meta & FLAG_DONE) == 0) return null;
+		return new Scores(store.getFloat(offset), store.getFloat(offset + 4), store.getFloat(offset + 8), store.getFloat(offset + 12),
+				meta >>> FLAG_BITS, (meta & FLAG_IMAGES) != 0);
+	}
+
+	/**
+	 * Create the file of a type if it doesn't exist yet, and fill it with what has already been written for the type. The
+	 * file is filled under a temporary name and only used once it is full, so neither a reader nor a later start ever sees
+	 * one that is partly filled.
+	 * @param type the type, which has to be dense
+	 * @param fill writes everything already done for the type into the new file
+	 */
+	public synchronized void create(ARXMixInfo<?> type, Consumer<Fill> fill) {
+		final String tag = type.getDatabaseTag();
+		if (open(tag) != null) return;
+		try {
+			Files.createDirectories(directory);
+			Path temporary = directory.resolve(tag + ".scores.tmp");
+			Files.deleteIfExists(temporary);
+			final MappedByteBuffer store = map(temporary, (long) RECORD_SIZE << type.getDefinitionBits());
+			fill.accept(new Fill() {
+				@Override
+				public void put(long definition, double[] scores, long classSize, boolean images) {
+					write(store, definition, scores, classSize, images);
+				}
+
+				@Override
+				public void putScreened(long definition) {
+					writeScreened(store, definition);
+				}
+			});
+			// The file only gets its real name once it is on disk, and the mapping stays valid when it is renamed
+			store.force();
+			Files.move(temporary, path(tag), StandardCopyOption.ATOMIC_MOVE);
+			stores.put(tag, store);
+		} catch (IOException ex) {
+			System.out.println("Creating the score store failed for type " + tag);
+			ex.printStackTrace(System.out);
+		}
+	}
+
+	/**
+	 * Write the scores of a definition. Writes to a type without a file are ignored.
+	 * @param type type tag
+	 * @param definition packed definition
+	 * @param scores avalanche scores for 1 to 4 rounds
+	 * @param classSize number of equivalent definitions the definition stands for
+	 * @param images true if the definition has avalanche graphs in the database
+	 */
+	public void put(String type, long definition, double[] scores, long classSize, boolean images) {
+		MappedByteBuffer store = open(type);
+		if (store == null) return;
+		write(store, definition, scores, classSize, images);
+		dirty.add(type);
+	}
+
+	/**
+	 * Record that a definition was screened out before the full test. Writes to a type without a file are ignored, as are
+	 * definitions that have been fully tested.
+	 * @param type type tag
+	 * @param definition packed definition
+	 */
+	public void putScreened(String type, long definition) {
+		MappedByteBuffer store = open(type);
+		if (store == null) return;
+		writeScreened(store, definition);
+		dirty.add(type);
+	}
+
+	/**
+	 * Write what has been written to the files since the last call out to disk, rather than whenever the operating system
+	 * gets round to it, so the store keeps up with the database if the machine goes down.
+	 */
+	public void force() {
+		for (Iterator<String> it = dirty.iterator(); it.hasNext();) {
+			String type = it.next();
+			// A write after this is marked again, so it is forced by the next call
+			it.remove();
+			MappedByteBuffer store = stores.get(type);
+			if (store != null) store.force();
+		}
+	}
+
+	/**
+	 * Write the scores of a definition into a mapped file.
+	 * @param store the mapped file
+	 * @param definition packed definition
+	 * @param scores avalanche scores for 1 to 4 rounds
+	 * @param classSize number of equivalent definitions the definition stands for
+	 * @param images true if the definition has avalanche graphs in the database
+	 */
+	private static void write(MappedByteBuffer store, long definition, double[] scores, long classSize, boolean images) {
+		if (!inRange(store, definition)) return;
+		final int offset = offset(definition);
+		for (int r = 0; r < 4; r++) {
+			store.putFloat(offset + 4 * r, (float) scores[r]);
+		}
+		// The release store keeps the scores from being seen after the flags
+		META.setRelease(store, offset + 16, (int) (classSize << FLAG_BITS) | FLAG_DONE | (images? FLAG_IMAGES : 0));
+	}
+
+	/**
+	 * Record that a definition was screened out in a mapped file.
+	 * @param store the mapped file
+	 * @param definition packed definition
+	 */
+	private static void writeScreened(MappedByteBuffer store, long definition) {
+		if (!inRange(store, definition)) return;
+		final int offset = offset(definition);
+		// Writes come from one thread at a time, so nothing can set the done flag between the check and the write
+		if (((int) META.getAcquire(store, offset + 16) & FLAG_DONE) != 0) return;
+		META.setRelease(store, offset + 16, FLAG_SCREENED);
+	}
+
+	/**
+	 * Forget a type and delete its file.
+	 * @param type type tag
+	 */
+	public synchronized void delete(String type) {
+		stores.remove(type);
+		try {
+			Files.deleteIfExists(path(type));
+			Files.deleteIfExists(directory.resolve(type + ".scores.tmp"));
+		} catch (IOException ex) {
+			ex.printStackTrace(System.out);
+		}
+	}
+
+	/**
+	 * Get the mapped file of a type, mapping it if it exists but hasn't been opened yet.
+	 * @param type type tag
+	 * @return the mapped file, or null if there is none
+	 */
+	private MappedByteBuffer open(String type) {
+		MappedByteBuffer store = stores.get(type);
+		if (store != null) return store;
+		// Tags come from request paths, so anything that isn't a plain tag can't name a file
+		if (!type.matches("[0-9A-Za-z]+")) return null;
+		Path path = path(type);
+		if (!Files.isRegularFile(path)) return null;
+		synchronized (this) {
+			store = stores.get(type);
+			if (store != null) return store;
+			try {
+				store = map(path, Files.size(path));
+			} catch (IOException ex) {
+				ex.printStackTrace(System.out);
+				return null;
+			}
+			stores.put(type, store);
+			return store;
+		}
+	}
+
+	/**
+	 * Map a file, creating it and growing it to the given size if needed.
+	 * @param path path of the file
+	 * @param size size of the file in bytes
+	 * @return the mapped file
+	 * @throws IOException if the file can't be opened or mapped
+	 */
+	private static MappedByteBuffer map(Path path, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// The mapping stays valid after the channel is closed
+			MappedByteBuffer store = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			store.order(ByteOrder.LITTLE_ENDIAN);
+			return store;
+		}
+	}
+
+	/**
+	 * Get the path of the file of a type.
+	 * @param type type tag
+	 * @return the path
+	 */
+	private Path path(String type) {
+		return directory.resolve(type + ".scores");
+	}
+
+	/**
+	 * Return true if a definition has a record in the file.
+	 * @param store the mapped file
+	 * @param definition packed definition
+	 * @return true if the definition is in range
+	 */
+	private static boolean inRange(MappedByteBuffer store, long definition) {
+		return definition >= 0 && definition < store.capacity() / RECORD_SIZE;
+	}
+
+	/**
+	 * Get the offset of the record of a definition.
+	 * @param definition packed definition
+	 * @return the offset in bytes
+	 */
+	private static int offset(long definition) {
+		return (int) definition * RECORD_SIZE;
+	}
+}
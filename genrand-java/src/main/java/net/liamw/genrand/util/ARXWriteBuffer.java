@@ -0,0 +1,263 @@
+package net.liamw.genrand.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import net.liamw.genrand.function.arx.ARXMixInfo;
+
+/**
+ * Collects ARX results from every generator thread and writes them to the database together, so a whole batch of mixes
+ * costs one transaction rather than one each.
+ * <br>
+ * A batch is written once it holds {@link #MAX_ROWS} rows, by the thread that filled it, or once it is
+ * {@link #MAX_DELAY_MILLIS} old, by a timer thread. Only one batch is written at a time, so a thread that fills a batch
+ * while the last one is still being written waits for it, which keeps the generators from running far ahead of the
+ * database. Everything in a batch is written in the order it was added, and finished ranges are merged before being
+ * recorded, so each type usually gets one checkpoint write per batch.
+ * <br>
+ * A range is added in one go with the rows it covers, so they always end up in the same batch and a range is never
+ * recorded without its rows. A batch that fails is tried once more on its own at the next flush, and if that fails too it
+ * is dropped: its ranges aren't recorded, so they are enumerated again on the next start, and later batches are written
+ * as usual.
+ */
+final class ARXWriteBuffer {
+	/**
+	 * Number of rows that makes a batch get written straight away.
+	 */
+	static final int MAX_ROWS = 512;
+	/**
+	 * Longest time in milliseconds rows wait to be written.
+	 */
+	static final long MAX_DELAY_MILLIS = 2000;
+
+	/**
+	 * A fully tested mix waiting to be written.
+	 * @param type mix type, which the score store needs as well as the tag
+	 * @param definition packed definition
+	 * @param scores avalanche scores for 1 to 4 rounds
+	 * @param images avalanche graph snowflakes for 1 to 4 rounds, each zero if there is no graph
+	 * @param classSize number of equivalent definitions the mix stands for
+	 */
+	record MixRow(ARXMixInfo<?> type, long definition, double[] scores, long[] images, long classSize) {}
+
+	/**
+	 * A screened out definition waiting to be written.
+	 * @param type mix type
+	 * @param definition packed definition
+	 * @param screenScore the screening score
+	 */
+	record ScreenedRow(String type, long definition, double screenScore) {}
+
+	/**
+	 * A finished range of a search waiting to be recorded.
+	 * @param ident mix type
+	 * @param start first value of the range
+	 * @param end value the range stops before
+	 */
+	record Range(String ident, long start, long end) {}
+
+	/**
+	 * Everything written in one transaction.
+	 * @param mixes mixes to write
+	 * @param screened screened out definitions to write
+	 * @param ranges finished ranges to record
+	 * @param actions actions to execute after the rows are written
+	 */
+	private record Batch(List<MixRow> mixes, List<ScreenedRow> screened, List<Range> ranges, List<Consumer<Database>> actions) {}
+
+	/**
+	 * Database the batches are written to.
+	 */
+	private final Database database;
+	/**
+	 * Held while a batch is written, so batches are written one at a time and in order.
+	 */
+	private final Object writeLock = new Object();
+	/**
+	 * Mixes waiting to be written.
+	 */
+	private List<MixRow> mixes = new ArrayList<>();
+	/**
+	 * Screened out definitions waiting to be written.
+	 */
+	private List<ScreenedRow> screened = new ArrayList<>();
+	/**
+	 * Finished ranges waiting to be recorded.
+	 */
+	private List<Range> ranges = new ArrayList<>();
+	/**
+	 * Actions to execute in the transaction after the rows are written.
+	 */
+	private List<Consumer<Database>> actions = new ArrayList<>();
+	/**
+	 * Thread that writes batches that have waited too long, started along with the first batch.
+	 */
+	private ScheduledExecutorService timer;
+	/**
+	 * Set once the buffer has been closed, after which nothing more is written.
+	 */
+	private boolean closed;
+	/**
+	 * A batch that failed to be written and is tried once more at the next flush, or null. Guarded by the write lock.
+	 */
+	private Batch retry;
+
+	/**
+	 * Create a buffer that writes to the given database.
+	 * @param database database to write to
+	 */
+	ARXWriteBuffer(Database database) {
+		this.database = database;
+	}
+
+	/**
+	 * Add a mix to be written.
+	 * @param row the mix
+	 * @param postAction action to execute in the transaction that writes it, or null
+	 */
+	void addMix(MixRow row, Consumer<Database> postAction) {
+		boolean full;
+		synchronized (this) {
+			if (closed) return;
+			startTimer();
+			mixes.add(row);
+			if (postAction != null) actions.add(postAction);
+			full = size() >= MAX_ROWS;
+		}
+		if (full) flush();
+	}
+
+	/**
+	 * Add a finished range to be recorded along with the mixes and screened out definitions found in it, which always go
+	 * in the same batch as the range.
+	 * @param mixRows the mixes
+	 * @param screenedRows the screened out definitions
+	 * @param range the range, or null if there is only rows to write
+	 */
+	void addRange(List<MixRow> mixRows, List<ScreenedRow> screenedRows, Range range) {
+		boolean full;
+		synchronized (this) {
+			if (closed) return;
+			startTimer();
+			mixes.addAll(mixRows);
+			screened.addAll(screenedRows);
+			if (range != null) ranges.add(range);
+			full = size() >= MAX_ROWS;
+		}
+		if (full) flush();
+	}
+
+	/**
+	 * Write everything added so far, after trying a batch that failed last time once more. Failures are logged rather than
+	 * thrown.
+	 */
+	void flush() {
+		synchronized (writeLock) {
+			if (retry != null) {
+				Batch failed = retry;
+				retry = null;
+				write(failed, false);
+			}
+			final Batch batch;
+			synchronized (this) {
+				if (mixes.isEmpty() && screened.isEmpty() && ranges.isEmpty() && actions.isEmpty()) return;
+				batch = new Batch(mixes, screened, mergeRanges(ranges), actions);
+				mixes = new ArrayList<>();
+				screened = new ArrayList<>();
+				ranges = new ArrayList<>();
+				actions = new ArrayList<>();
+			}
+			write(batch, true);
+		}
+	}
+
+	/**
+	 * Stop the timer and write everything added so far, including one more try of a batch that failed. Anything added
+	 * afterwards is dropped, along with its range, so it is enumerated again on the next start.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			if (timer != null) timer.shutdown();
+		}
+		flush();
+		// A batch that failed in the last flush has no later flush to be tried in
+		flush();
+	}
+
+	/**
+	 * Write a batch. Call with the write lock held.
+	 * @param batch the batch
+	 * @param again true to keep the batch to try again at the next flush if it fails, false to drop it
+	 */
+	private void write(Batch batch, boolean again) {
+		try {
+			database.writeBatch(batch.mixes(), batch.screened(), batch.ranges(), batch.actions());
+		} catch (RuntimeException ex) {
+			ex.printStackTrace(System.out);
+			if (again) {
+				System.out.println("Trying the batch again at the next flush");
+				retry = batch;
+			} else {
+				System.out.println("Dropped the batch; these ranges are enumerated again on the next start: " + batch.ranges());
+			}
+		}
+	}
+
+	/**
+	 * Get the number of rows waiting to be written.
+	 * @return the number of rows
+	 */
+	private int size() {
+		return mixes.size() + screened.size();
+	}
+
+	/**
+	 * Start the timer thread if it isn't already running.
+	 */
+	private void startTimer() {
+		if (timer != null) return;
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ARX write buffer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.scheduleWithFixedDelay(this::flush, MAX_DELAY_MILLIS, MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Merge ranges of the same type that touch or overlap, since workers usually finish a run of batches one after another.
+	 * @param ranges the ranges
+	 * @return the merged ranges
+	 */
+	private static List<Range> mergeRanges(List<Range> ranges) {
+		if (ranges.size() < 2) return ranges;
+		TreeMap<String, TreeMap<Long, Long>> byType = new TreeMap<>();
+		for (Range range : ranges) {
+			byType.computeIfAbsent(range.ident(), k -> new TreeMap<>()).merge(range.start(), range.end(), Math::max);
+		}
+		List<Range> merged = new ArrayList<>();
+		byType.forEach((ident, starts) -> {
+			long start = starts.firstKey();
+			long end = starts.firstEntry().getValue();
+			for (Map.Entry<Long, Long> entry : starts.tailMap(start, false).entrySet()) {
+				if (entry.getKey() <= end) {
+					end = Math.max(end, entry.getValue());
+				} else {
+					merged.add(new Range(ident, start, end));
+					start = entry.getKey();
+					end = entry.getValue();
+				}
+			}
+			merged.add(new Range(ident, start, end));
+		});
+		return merged;
+	}
+}
@@ -2,7 +2,9 @@ package net.liamw.genrand.util;
 
 import java.awt.image.BufferedImage;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
 
 /**
  * Class for testing avalanche properties over 16/24/32 bit functions intended to be pseudorandom permutations.
@@ -12,6 +14,23 @@ public class Avalanche32 {
 	 * The number of bits in a 32 bit value
 	 */
 	public static final int BITS = 32;
+	/**
+	 * Functions up to this many bits are tested over every possible input instead of random samples, giving exact flip
+	 * counts and scores that don't change between runs. At 16 bits that is the same number of inputs as a sampled test.
+	 */
+	public static final int EXHAUSTIVE_BITS = 16;
+	/**
+	 * The widest function {@link #testAvalancheRoundsExhaustive(RoundDiffuser, int, int, ForkJoinPool)} takes. At 24 bits
+	 * that is 256 times the inputs of a sampled test, so it is only run when asked for.
+	 */
+	public static final int MAX_EXHAUSTIVE_BITS = 24;
+	/**
+	 * The number of iterations a sampled test runs for.
+	 * More iterations mean a value closer to the real value, down to a noise floor beyond which values are meaningless
+	 * 65536 iterations is a good tradeoff between accuracy/speed
+	 * Noise floor -> 0.06 @ 65536 iters
+	 */
+	private static final int SAMPLED_ITERATIONS = 1 << 16;
 	
 	/**
 	 * Function interface for 32 bit functions.
@@ -24,6 +43,19 @@ public class Avalanche32 {
 		 */
 		public int diffuse(int input);
 		
+		/**
+		 * Map a block of 32 bit values to other 32 bit values. Compiled functions override this to run the whole block
+		 * without an interface call per value.
+		 * @param in the input values
+		 * @param out array to receive the output values
+		 * @param n the number of values to map
+		 */
+		public default void diffuseBatch(int[] in, int[] out, int n) {
+			for (int i = 0; i < n; i++) {
+				out[i] = diffuse(in[i]);
+			}
+		}
+		
 		/**
 		 * Create a counter-based PRNG from this function. (If the function is less than 32 bit, this will not work)
 		 * @return a random number generator constructed from this function
@@ -48,66 +80,311 @@ public class Avalanche32 {
 		}
 	}
 	
+	/**
+	 * Function interface for 32 bit functions made of repeated rounds, where the output after each round can be recorded.
+	 */
+	public static interface RoundDiffuser {
+		/**
+		 * Map a 32 bit value through successive rounds, storing the value after each round.
+		 * @param input the input value
+		 * @param outputs array to receive the output after 1 to outputs.length rounds
+		 */
+		public void diffuseRounds(int input, int[] outputs);
+	}
+	
 	/**
 	 * Perform an avalanche test on the given function for a given number of iterations and store the statistics into the given array.
-	 * @param flipStatistics the array that statistics will be written into
+	 * @param counter the counter that statistics will be added into
 	 * @param diffuser the function under test
+	 * @param inputs source of inputs, either random or walking through every input
 	 * @param iterations number of iterations to run the test for
 	 * @param bits number of bits in the input/output
 	 */
-	private static void doAvalancheTest(int[][] flipStatistics, Diffuser diffuser, int iterations, int bits) {
-		Random random = ThreadLocalRandom.current();
+	private static void doAvalancheTest(FlipCounter counter, Diffuser diffuser, IntSupplier inputs, int iterations, int bits) {
+		// Each sample is diffused as one block: the starting value followed by a copy with each bit flipped.
+		final int[] block = new int[bits + 1];
+		final int[] diffused = new int[bits + 1];
 		for (int i = 0; i < iterations; i++) {
-			// Start with a random integer x and find f(x).
-			int starting = random.nextInt();
-			int diffused = diffuser.diffuse(starting);
-			// For each of the 32 bit positions, try flipping the bit in that position.
+			// Start with an integer x, and set up x with each of the bit positions flipped.
+			int starting = inputs.getAsInt();
+			block[0] = starting;
+			for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
+				block[bitFlipped + 1] = starting ^ (1 << bitFlipped);
+			}
+			// Find f(x) for the whole block in one call.
+			diffuser.diffuseBatch(block, diffused, bits + 1);
 			for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
 				// Determine what bits changed in f(x) when the given bit was flipped.
-				int res = testDiffuse(starting, bitFlipped, diffused, diffuser);
-				// Check each bit in the output result to see if it flipped.
-				// Increment the appropriate input/output bit statistic in the array if it did.
-				for (int bitTested = 0; bitTested < bits; bitTested++) {
-					if (testBit(res, bitTested)) {
-						flipStatistics[bitFlipped][bitTested]++;
-					}
+				int res = diffused[bitFlipped + 1] ^ diffused[0];
+				// Add each flipped output bit to the appropriate input/output bit statistic, all in one go.
+				counter.add(bitFlipped, 0, res & 0xFFFFFFFFL);
+			}
+			counter.endSample();
+		}
+	}
+	
+	/**
+	 * Run an avalanche test on the given function and return the gathered statistics.
+	 * The score and graph can both be derived from the result without running the test again.
+	 * Functions up to {@link #EXHAUSTIVE_BITS} bits are tested over every input.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @return the avalanche statistics for this function
+	 */
+	public static AvalancheResult testAvalanche(Diffuser diffuser, int bits) {
+		final FlipCounter counter = new FlipCounter(bits, bits);
+		final boolean exhaustive = bits <= EXHAUSTIVE_BITS;
+		final int ITERATIONS = exhaustive? 1 << bits : SAMPLED_ITERATIONS;
+		final IntSupplier inputs = exhaustive? sequence(0) : ThreadLocalRandom.current()::nextInt;
+		// Run the test to gain statistics
+		doAvalancheTest(counter, diffuser, inputs, ITERATIONS, bits);
+		return new AvalancheResult(counter.getTotals(), ITERATIONS);
+	}
+	
+	/**
+	 * Perform an avalanche test on the given function for a given number of iterations for several round counts at once,
+	 * storing the statistics for each round count into the given array. The rounds are run once per input, and the difference
+	 * after each round is recorded, so testing 1 to n rounds costs n round evaluations per input rather than 1+2+...+n.
+	 * @param counters the counters that statistics will be added into, one for each round count
+	 * @param diffuser the function under test
+	 * @param inputs source of inputs, either random or walking through every input
+	 * @param iterations number of iterations to run the test for
+	 * @param bits number of bits in the input/output
+	 */
+	private static void doAvalancheRoundsTest(FlipCounter[] counters, RoundDiffuser diffuser, IntSupplier inputs, int iterations, int bits) {
+		final int rounds = counters.length;
+		final int[] diffused = new int[rounds];
+		final int[] flipped = new int[rounds];
+		for (int i = 0; i < iterations; i++) {
+			// Start with an integer x and find f(x) for every round count.
+			int starting = inputs.getAsInt();
+			diffuser.diffuseRounds(starting, diffused);
+			// For each of the bit positions, try flipping the bit in that position.
+			for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
+				diffuser.diffuseRounds(flipBit(starting, bitFlipped), flipped);
+				for (int r = 0; r < rounds; r++) {
+					// Determine what bits changed in f(x) after this many rounds when the given bit was flipped.
+					int res = diffused[r] ^ flipped[r];
+					// Add each flipped output bit to the appropriate input/output bit statistic, all in one go.
+					counters[r].add(bitFlipped, 0, res & 0xFFFFFFFFL);
 				}
 			}
+			for (FlipCounter counter : counters) {
+				counter.endSample();
+			}
 		}
 	}
 	
 	/**
-	 * Produce an avalanche graph for the given function.
+	 * Run an avalanche test on the given function for 1 to the given number of rounds in a single pass.
+	 * Functions up to {@link #EXHAUSTIVE_BITS} bits are tested over every input.
 	 * @param diffuser the function under test
 	 * @param bits number of bits in the input/output
-	 * @return an image showing how the bits flip
+	 * @param rounds the highest number of rounds to test
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
 	 */
-	public static BufferedImage createAvalancheGraph(Diffuser diffuser, int bits) {
-		final int[][] flipStatistics = new int[bits][bits];
-		final int ITERATIONS = 1 << 16;
-		BufferedImage bimg = new BufferedImage(bits, bits, BufferedImage.TYPE_INT_RGB);
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser diffuser, int bits, int rounds) {
+		if (bits <= EXHAUSTIVE_BITS) {
+			return testAvalancheRounds(diffuser, bits, rounds, sequence(0), 1 << bits);
+		}
+		return testAvalancheRounds(diffuser, bits, rounds, SAMPLED_ITERATIONS);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds over a given number of random inputs,
+	 * even for functions small enough to be tested over every input. Fewer iterations give a rougher result sooner, which is
+	 * enough to screen out functions before testing them fully.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param rounds the highest number of rounds to test
+	 * @param iterations number of random inputs to test
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser diffuser, int bits, int rounds, int iterations) {
+		return testAvalancheRounds(diffuser, bits, rounds, ThreadLocalRandom.current()::nextInt, iterations);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds over the given inputs. Functions
+	 * tested over the same inputs are compared on the same samples, so the difference between their scores comes from the
+	 * functions alone.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param rounds the highest number of rounds to test
+	 * @param inputs the inputs to test, e.g. from {@link #randomInputs(int)}
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser diffuser, int bits, int rounds, int[] inputs) {
+		int[] next = { 0 };
+		return testAvalancheRounds(diffuser, bits, rounds, () -> inputs[next[0]++], inputs.length);
+	}
+	
+	/**
+	 * Draw random inputs for {@link #testAvalancheRounds(RoundDiffuser, int, int, int[])}.
+	 * @param iterations number of inputs
+	 * @return the inputs
+	 */
+	public static int[] randomInputs(int iterations) {
+		return ThreadLocalRandom.current().ints(iterations).toArray();
+	}
+	
+	private static AvalancheResult[] testAvalancheRounds(RoundDiffuser diffuser, int bits, int rounds, IntSupplier inputs, int iterations) {
+		final FlipCounter[] counters = new FlipCounter[rounds];
+		for (int r = 0; r < rounds; r++) {
+			counters[r] = new FlipCounter(bits, bits);
+		}
 		// Run the test to gain statistics
-		doAvalancheTest(flipStatistics, diffuser, ITERATIONS, bits);
-		// Write out the image
-		// For each row and column...
-		for (int i = 0; i < bits; i++) {
-			for (int j = 0; j < bits; j++) {
-				// i = input bit flipped, along the x
-				// j = output bit tested, along the y
-				// get the numerator (number of flips)
-				double num = flipStatistics[i][j];
-				// denominator is the number of iterations total
-				double denom = ITERATIONS;
-				// calculate value as a fraction, then scale value from 0-255
-				double val = num/denom * 255;
-				// the output colour is a shade from black (0) to white (255)
-				int ival = (int) val;
-				int col = ival | ival << 8 | ival << 16;
-				// set the pixel
-				bimg.setRGB(i, j, col);
+		doAvalancheRoundsTest(counters, diffuser, inputs, iterations, bits);
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), iterations);
+		}
+		return results;
+	}
+	
+	/**
+	 * Run an avalanche test on the given function in parallel on the given pool and return the gathered statistics.
+	 * The iterations are split into fixed chunks, each with its own statistics and random stream chosen by the chunk index,
+	 * so the result is the same no matter how many threads the pool has. Functions up to {@link #EXHAUSTIVE_BITS} bits
+	 * are tested over every input.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param pool the pool to run the test on
+	 * @return the avalanche statistics for this function
+	 */
+	public static AvalancheResult testAvalanche(Diffuser diffuser, int bits, ForkJoinPool pool) {
+		final boolean exhaustive = bits <= EXHAUSTIVE_BITS;
+		final int ITERATIONS = exhaustive? 1 << bits : SAMPLED_ITERATIONS;
+		FlipCounter[] counters = pool.invoke(new AvalancheChunkTask(ITERATIONS, (random, start, iterations) -> {
+			FlipCounter counter = new FlipCounter(bits, bits);
+			// Exhaustive chunks each walk their own slice of the inputs
+			IntSupplier inputs = exhaustive? sequence(start) : random::nextInt;
+			doAvalancheTest(counter, diffuser, inputs, iterations, bits);
+			return new FlipCounter[] { counter };
+		}));
+		return new AvalancheResult(counters[0].getTotals(), ITERATIONS);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds in a single pass, in parallel on the
+	 * given pool. The result is the same no matter how many threads the pool has. Functions up to {@link #EXHAUSTIVE_BITS}
+	 * bits are tested over every input.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param rounds the highest number of rounds to test
+	 * @param pool the pool to run the test on
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser diffuser, int bits, int rounds, ForkJoinPool pool) {
+		return testAvalancheRounds(diffuser, bits, rounds, pool, bits <= EXHAUSTIVE_BITS);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds over every input, in parallel on the
+	 * given pool, even if the function is wider than {@link #EXHAUSTIVE_BITS}. The scores are exact, but the test takes
+	 * 2^bits inputs: at 24 bits that is about 43 seconds on a small machine.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output, up to {@link #MAX_EXHAUSTIVE_BITS}
+	 * @param rounds the highest number of rounds to test
+	 * @param pool the pool to run the test on
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 * @throws IllegalArgumentException if the function is wider than {@link #MAX_EXHAUSTIVE_BITS}
+	 */
+	public static AvalancheResult[] testAvalancheRoundsExhaustive(RoundDiffuser diffuser, int bits, int rounds, ForkJoinPool pool) {
+		if (bits > MAX_EXHAUSTIVE_BITS) {
+			throw new IllegalArgumentException("Can't test " + bits + " bits over every input");
+		}
+		return testAvalancheRounds(diffuser, bits, rounds, pool, true);
+	}
+	
+	private static AvalancheResult[] testAvalancheRounds(RoundDiffuser diffuser, int bits, int rounds, ForkJoinPool pool, boolean exhaustive) {
+		final int ITERATIONS = exhaustive? 1 << bits : SAMPLED_ITERATIONS;
+		FlipCounter[] counters = pool.invoke(new AvalancheChunkTask(ITERATIONS, (random, start, iterations) -> {
+			FlipCounter[] chunkCounters = new FlipCounter[rounds];
+			for (int r = 0; r < rounds; r++) {
+				chunkCounters[r] = new FlipCounter(bits, bits);
 			}
+			// Exhaustive chunks each walk their own slice of the inputs
+			IntSupplier inputs = exhaustive? sequence(start) : random::nextInt;
+			doAvalancheRoundsTest(chunkCounters, diffuser, inputs, iterations, bits);
+			return chunkCounters;
+		}));
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), ITERATIONS);
+		}
+		return results;
+	}
+	
+	/**
+	 * Create a source of inputs counting up from the given value.
+	 * @param start the first input
+	 * @return a source giving start, start+1, start+2, ...
+	 */
+	private static IntSupplier sequence(int start) {
+		int[] next = { start };
+		return () -> next[0]++;
+	}
+	
+	/**
+	 * Test the function for avalanche like {@link #scoreAvalanche(Diffuser, int)}, but give up early once the function is
+	 * confidently going to score worse than the bound. Samples are taken in doubling batches, checking against the bound
+	 * after each one, so a function that is much worse than the bound only costs a small part of a full test.
+	 * <br>
+	 * If the test runs to completion, the full score is returned. Otherwise the score estimated so far is returned,
+	 * which is worse than the bound. Functions small enough to be tested exhaustively always get their exact score.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param bound the score the function has to beat to be worth testing fully
+	 * @return a value describing the avalanche performance of this function
+	 */
+	public static double scoreAvalancheBounded(Diffuser diffuser, int bits, double bound) {
+		if (bits <= EXHAUSTIVE_BITS) {
+			return scoreAvalanche(diffuser, bits);
 		}
-		return bimg;
+		return scoreAvalancheBounded(diffuser, bits, bound, ThreadLocalRandom.current()::nextInt);
+	}
+	
+	/**
+	 * The sampled part of {@link #scoreAvalancheBounded(Diffuser, int, double)}, taking its inputs from the given source
+	 * so a test can be repeated on the same inputs.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param bound the score the function has to beat to be worth testing fully
+	 * @param inputs source of the inputs
+	 * @return a value describing the avalanche performance of this function
+	 */
+	static double scoreAvalancheBounded(Diffuser diffuser, int bits, double bound, IntSupplier inputs) {
+		final GroupedFlipCounter counter = new GroupedFlipCounter(bits, bits);
+		final int ITERATIONS = SAMPLED_ITERATIONS;
+		// Start with a batch big enough for the estimate to mean something, then double the sample count each time
+		int done = 0;
+		int batch = GroupedFlipCounter.CYCLE;
+		while (done + batch < ITERATIONS) {
+			for (int run = 0; run < batch; run += GroupedFlipCounter.RUN) {
+				doAvalancheTest(counter.nextRun(), diffuser, inputs, GroupedFlipCounter.RUN, bits);
+			}
+			done += batch;
+			if (counter.isScoreAbove(bound, ITERATIONS)) {
+				return counter.getResult().score();
+			}
+			batch = done;
+		}
+		// Not rejected, so finish the test
+		for (int run = done; run < ITERATIONS; run += GroupedFlipCounter.RUN) {
+			doAvalancheTest(counter.nextRun(), diffuser, inputs, GroupedFlipCounter.RUN, bits);
+		}
+		return counter.getResult().score();
+	}
+	
+	/**
+	 * Produce an avalanche graph for the given function.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @return an image showing how the bits flip
+	 */
+	public static BufferedImage createAvalancheGraph(Diffuser diffuser, int bits) {
+		return testAvalanche(diffuser, bits).graph();
 	}
 	
 	/**
@@ -118,34 +395,19 @@ public class Avalanche32 {
 	 * @return a value describing the avalanche performance of this function
 	 */
 	public static double scoreAvalanche(Diffuser diffuser, int bits) {
-		final int[][] flipStatistics = new int[bits][bits];
-		// More iterations mean a value closer to the real value, down to a noise floor beyond which values are meaningless
-		// 65536 iterations is a good tradeoff between accuracy/speed
-		// Noise floor -> 0.06 @ 65536 iters
-		final int ITERATIONS = 1 << 16;
-		// Run the test to gain statistics
-		doAvalancheTest(flipStatistics, diffuser, ITERATIONS, bits);
-		// The ideal is every output bit has a 50% chance of flipping when any input bit is flipped
-		// Therefore, compare the observed values to this ideal 0.5.
-		// Effectively, we want to calculate the Pythagorean distance between two 32x32 value vectors.
-		double sum = 0.0;
-		for (int i = 0; i < bits; i++) {
-			for (int j = 0; j < bits; j++) {
-				// i = bit flipped
-				// j = bit tested
-				double num = flipStatistics[i][j];
-				double denom = ITERATIONS;
-				// Calculate observed value for this input/output position
-				double val = num/denom;
-				// Calculate squared error from ideal 0.5
-				double sqerr = (0.5 - val);
-				sqerr *= sqerr;
-				// add to sum
-				sum += sqerr;
-			}
-		}
-		// Run square root to get final distance
-		return Math.sqrt(sum);
+		return testAvalanche(diffuser, bits).score();
+	}
+	
+	/**
+	 * Test the function for avalanche in parallel on the given pool and return a value describing its deviation from the ideal.
+	 * Values closer to zero mean better avalanching properties.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param pool the pool to run the test on
+	 * @return a value describing the avalanche performance of this function
+	 */
+	public static double scoreAvalanche(Diffuser diffuser, int bits, ForkJoinPool pool) {
+		return testAvalanche(diffuser, bits, pool).score();
 	}
 	
 	/**
@@ -167,18 +429,4 @@ public class Avalanche32 {
 	public static boolean testBit(int input, int which) {
 		return (input & (1 << which)) != 0;
 	}
-	
-	/**
-	 * Return what output bits changed based on the input when a given bit is flipped.
-	 * The diffused input is expected to match diffuser.diffuse(input).
-	 * @param input Input to test
-	 * @param whichBit the bit to flip
-	 * @param diffusedInput diffused input, expected to be cached by caller
-	 * @param diffuser function to use
-	 * @return The bits that changed when the given bit was flipped
-	 */
-	private static int testDiffuse(int input, int whichBit, int diffusedInput, Diffuser diffuser) {
-		int flipped = diffuser.diffuse(flipBit(input, whichBit));
-		return diffusedInput ^ flipped;
-	}
 }
@@ -2,7 +2,10 @@ package net.liamw.genrand.util;
 
 import java.awt.image.BufferedImage;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+import java.util.random.RandomGenerator;
 
 /**
  * Class for testing avalanche properties over 64 bit functions intended to be pseudorandom permutations.
@@ -24,6 +27,19 @@ public class Avalanche64 {
 		 */
 		public long diffuse(long input);
 		
+		/**
+		 * Map a block of 64 bit values to other 64 bit values. Compiled functions override this to run the whole block
+		 * without an interface call per value.
+		 * @param in the input values
+		 * @param out array to receive the output values
+		 * @param n the number of values to map
+		 */
+		public default void diffuseBatch(long[] in, long[] out, int n) {
+			for (int i = 0; i < n; i++) {
+				out[i] = diffuse(in[i]);
+			}
+		}
+		
 		/**
 		 * Create a counter-based PRNG from this function. (If the function is less than 64 bit, this will not work)
 		 * @return a random number generator constructed from this function
@@ -99,101 +115,293 @@ public class Avalanche64 {
 		}
 	}
 	
+	/**
+	 * Function interface for 64 bit functions made of repeated rounds, where the output after each round can be recorded.
+	 */
+	public static interface RoundDiffuser64 {
+		/**
+		 * Map a 64 bit value through successive rounds, storing the value after each round.
+		 * @param input the input value
+		 * @param outputs array to receive the output after 1 to outputs.length rounds
+		 */
+		public void diffuseRounds(long input, long[] outputs);
+	}
+	
 	/**
 	 * Perform an avalanche test on the given function for a given number of iterations and store the statistics into the given array.
-	 * @param flipStatistics the 64x64 array that statistics will be written into
+	 * @param counter the counter that statistics will be added into
 	 * @param diffuser the function under test
+	 * @param random source of random inputs
 	 * @param iterations number of iterations to run the test for
 	 * @param bits number of bits in the input/output
 	 */
-	private static void doAvalancheTest(int[][] flipStatistics, Diffuser64 diffuser, int iterations, int bits) {
-		Random random = ThreadLocalRandom.current();
+	private static void doAvalancheTest(FlipCounter counter, Diffuser64 diffuser, RandomGenerator random, int iterations, int bits) {
+		// Each sample is diffused as one block: the starting value followed by a copy with each bit flipped.
+		final long[] block = new long[bits + 1];
+		final long[] diffused = new long[bits + 1];
 		for (int i = 0; i < iterations; i++) {
-			// Start with a random integer x and find f(x).
+			// Start with a random integer x, and set up x with each of the bit positions flipped.
 			long starting = random.nextInt();
-			long diffused = diffuser.diffuse(starting);
-			// For each of the 32 bit positions, try flipping the bit in that position.
+			block[0] = starting;
+			for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
+				block[bitFlipped + 1] = starting ^ (1L << bitFlipped);
+			}
+			// Find f(x) for the whole block in one call.
+			diffuser.diffuseBatch(block, diffused, bits + 1);
 			for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
 				// Determine what bits changed in f(x) when the given bit was flipped.
-				long res = testDiffuse(starting, bitFlipped, diffused, diffuser);
-				// Check each bit in the output result to see if it flipped.
-				// Increment the appropriate input/output bit statistic in the array if it did.
-				for (int bitTested = 0; bitTested < bits; bitTested++) {
-					if (testBit(res, bitTested)) {
-						flipStatistics[bitFlipped][bitTested]++;
-					}
-				}
+				long res = diffused[bitFlipped + 1] ^ diffused[0];
+				// Add each flipped output bit to the appropriate input/output bit statistic, all in one go.
+				counter.add(bitFlipped, 0, res);
 			}
+			counter.endSample();
 		}
 	}
 	
 	/**
-	 * Produce an avalanche graph for the given function.
+	 * Run an avalanche test on the given function and return the gathered statistics.
+	 * The score and graph can both be derived from the result without running the test again.
 	 * @param diffuser the function under test
 	 * @param bits number of bits in the input/output
-	 * @return a 64x64 image showing how the bits flip
+	 * @return the avalanche statistics for this function
 	 */
-	public static BufferedImage createAvalancheGraph(Diffuser64 diffuser, int bits) {
-		final int[][] flipStatistics = new int[bits][bits];
+	public static AvalancheResult testAvalanche(Diffuser64 diffuser, int bits) {
+		final FlipCounter counter = new FlipCounter(bits, bits);
+		// More iterations mean a value closer to the real value, down to a noise floor beyond which values are meaningless
+		// 65536 iterations is a good tradeoff between accuracy/speed
+		// Noise floor -> 0.06 @ 65536 iters
 		final int ITERATIONS = 1 << 16;
-		BufferedImage bimg = new BufferedImage(bits, bits, BufferedImage.TYPE_INT_RGB);
 		// Run the test to gain statistics
-		doAvalancheTest(flipStatistics, diffuser, ITERATIONS, bits);
-		// Write out the image
-		// For each row and column...
-		for (int i = 0; i < bits; i++) {
-			for (int j = 0; j < bits; j++) {
-				// i = input bit flipped, along the x
-				// j = output bit tested, along the y
-				// get the numerator (number of flips)
-				double num = flipStatistics[i][j];
-				// denominator is the number of iterations total
-				double denom = ITERATIONS;
-				// calculate value as a fraction, then scale value from 0-255
-				double val = num/denom * 255;
-				// the output colour is a shade from black (0) to white (255)
-				int ival = (int) val;
-				int col = ival | ival << 8 | ival << 16;
-				// set the pixel
-				bimg.setRGB(i, j, col);
+		doAvalancheTest(counter, diffuser, ThreadLocalRandom.current(), ITERATIONS, bits);
+		return new AvalancheResult(counter.getTotals(), ITERATIONS);
+	}
+	
+	/**
+	 * Perform an avalanche test on the given function for a given number of iterations for several round counts at once,
+	 * storing the statistics for each round count into the given array. The rounds are run once per input, and the difference
+	 * after each round is recorded, so testing 1 to n rounds costs n round evaluations per input rather than 1+2+...+n.
+	 * @param counters the counters that statistics will be added into, one for each round count
+	 * @param diffuser the function under test
+	 * @param inputs source of inputs
+	 * @param iterations number of iterations to run the test for
+	 * @param bits number of bits in the input/output
+	 */
+	private static void doAvalancheRoundsTest(FlipCounter[] counters, RoundDiffuser64 diffuser, LongSupplier inputs, int iterations, int bits) {
+		final int rounds = counters.length;
+		final long[] diffused = new long[rounds];
+		final long[] flipped = new long[rounds];
+		for (int i = 0; i < iterations; i++) {
+			// Start with an integer x and find f(x) for every round count.
+			long starting = inputs.getAsLong();
+			diffuser.diffuseRounds(starting, diffused);
+			// For each of the bit positions, try flipping the bit in that position.
+			for (int bitFlipped = 0; bitFlipped < bits; bitFlipped++) {
+				diffuser.diffuseRounds(flipBit(starting, bitFlipped), flipped);
+				for (int r = 0; r < rounds; r++) {
+					// Determine what bits changed in f(x) after this many rounds when the given bit was flipped.
+					long res = diffused[r] ^ flipped[r];
+					// Add each flipped output bit to the appropriate input/output bit statistic, all in one go.
+					counters[r].add(bitFlipped, 0, res);
+				}
+			}
+			for (FlipCounter counter : counters) {
+				counter.endSample();
 			}
 		}
-		return bimg;
 	}
 	
 	/**
-	 * Test the function for avalanche and return a value describing its deviation from the ideal.
-	 * Values closer to zero mean better avalanching properties.
+	 * Run an avalanche test on the given function for 1 to the given number of rounds in a single pass.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param rounds the highest number of rounds to test
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser64 diffuser, int bits, int rounds) {
+		return testAvalancheRounds(diffuser, bits, rounds, 1 << 16);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds over a given number of random inputs.
+	 * Fewer iterations give a rougher result sooner, which is enough to screen out functions before testing them fully.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param rounds the highest number of rounds to test
+	 * @param iterations number of random inputs to test
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser64 diffuser, int bits, int rounds, int iterations) {
+		final FlipCounter[] counters = new FlipCounter[rounds];
+		for (int r = 0; r < rounds; r++) {
+			counters[r] = new FlipCounter(bits, bits);
+		}
+		// Run the test to gain statistics
+		doAvalancheRoundsTest(counters, diffuser, ThreadLocalRandom.current()::nextInt, iterations, bits);
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), iterations);
+		}
+		return results;
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds over the given inputs. Functions
+	 * tested over the same inputs are compared on the same samples, so the difference between their scores comes from the
+	 * functions alone.
 	 * @param diffuser the function under test
 	 * @param bits number of bits in the input/output
+	 * @param rounds the highest number of rounds to test
+	 * @param inputs the inputs to test, e.g. from {@link #randomInputs(int)}
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser64 diffuser, int bits, int rounds, long[] inputs) {
+		final FlipCounter[] counters = new FlipCounter[rounds];
+		for (int r = 0; r < rounds; r++) {
+			counters[r] = new FlipCounter(bits, bits);
+		}
+		int[] next = { 0 };
+		doAvalancheRoundsTest(counters, diffuser, () -> inputs[next[0]++], inputs.length, bits);
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), inputs.length);
+		}
+		return results;
+	}
+	
+	/**
+	 * Draw random inputs for {@link #testAvalancheRounds(RoundDiffuser64, int, int, long[])}, the same way as the other
+	 * tests here draw theirs.
+	 * @param iterations number of inputs
+	 * @return the inputs
+	 */
+	public static long[] randomInputs(int iterations) {
+		return ThreadLocalRandom.current().ints(iterations).asLongStream().toArray();
+	}
+	
+	/**
+	 * Run an avalanche test on the given function in parallel on the given pool and return the gathered statistics.
+	 * The iterations are split into fixed chunks, each with its own statistics and random stream chosen by the chunk index,
+	 * so the result is the same no matter how many threads the pool has.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param pool the pool to run the test on
+	 * @return the avalanche statistics for this function
+	 */
+	public static AvalancheResult testAvalanche(Diffuser64 diffuser, int bits, ForkJoinPool pool) {
+		final int ITERATIONS = 1 << 16;
+		FlipCounter[] counters = pool.invoke(new AvalancheChunkTask(ITERATIONS, (random, start, iterations) -> {
+			FlipCounter counter = new FlipCounter(bits, bits);
+			doAvalancheTest(counter, diffuser, random, iterations, bits);
+			return new FlipCounter[] { counter };
+		}));
+		return new AvalancheResult(counters[0].getTotals(), ITERATIONS);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds in a single pass, in parallel on the
+	 * given pool. The result is the same no matter how many threads the pool has.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param rounds the highest number of rounds to test
+	 * @param pool the pool to run the test on
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuser64 diffuser, int bits, int rounds, ForkJoinPool pool) {
+		final int ITERATIONS = 1 << 16;
+		FlipCounter[] counters = pool.invoke(new AvalancheChunkTask(ITERATIONS, (random, start, iterations) -> {
+			FlipCounter[] chunkCounters = new FlipCounter[rounds];
+			for (int r = 0; r < rounds; r++) {
+				chunkCounters[r] = new FlipCounter(bits, bits);
+			}
+			doAvalancheRoundsTest(chunkCounters, diffuser, random::nextInt, iterations, bits);
+			return chunkCounters;
+		}));
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), ITERATIONS);
+		}
+		return results;
+	}
+	
+	/**
+	 * Test the function for avalanche like {@link #scoreAvalanche(Diffuser64, int)}, but give up early once the function is
+	 * confidently going to score worse than the bound. Samples are taken in doubling batches, checking against the bound
+	 * after each one, so a function that is much worse than the bound only costs a small part of a full test.
+	 * <br>
+	 * If the test runs to completion, the full score is returned. Otherwise the score estimated so far is returned,
+	 * which is worse than the bound.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param bound the score the function has to beat to be worth testing fully
 	 * @return a value describing the avalanche performance of this function
 	 */
-	public static double scoreAvalanche(Diffuser64 diffuser, int bits) {
-		final int[][] flipStatistics = new int[bits][bits];
+	public static double scoreAvalancheBounded(Diffuser64 diffuser, int bits, double bound) {
+		return scoreAvalancheBounded(diffuser, bits, bound, ThreadLocalRandom.current());
+	}
+	
+	/**
+	 * {@link #scoreAvalancheBounded(Diffuser64, int, double)}, drawing its inputs from the given generator so a test can be
+	 * repeated on the same inputs.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param bound the score the function has to beat to be worth testing fully
+	 * @param random source of the inputs
+	 * @return a value describing the avalanche performance of this function
+	 */
+	static double scoreAvalancheBounded(Diffuser64 diffuser, int bits, double bound, RandomGenerator random) {
+		final GroupedFlipCounter counter = new GroupedFlipCounter(bits, bits);
 		final int ITERATIONS = 1 << 16;
-		// Run the test to gain statistics
-		doAvalancheTest(flipStatistics, diffuser, ITERATIONS, bits);
-		// The ideal is every output bit has a 50% chance of flipping when any input bit is flipped
-		// Therefore, compare the observed values to this ideal 0.5.
-		// Effectively, we want to calculate the Pythagorean distance between two 32x32 value vectors.
-		double sum = 0.0;
-		for (int i = 0; i < bits; i++) {
-			for (int j = 0; j < bits; j++) {
-				// i = bit flipped
-				// j = bit tested
-				double num = flipStatistics[i][j];
-				double denom = ITERATIONS;
-				// Calculate observed value for this input/output position
-				double val = num/denom;
-				// Calculate squared error from ideal 0.5
-				double sqerr = (0.5 - val);
-				sqerr *= sqerr;
-				// add to sum
-				sum += sqerr;
+		// Start with a batch big enough for the estimate to mean something, then double the sample count each time
+		int done = 0;
+		int batch = GroupedFlipCounter.CYCLE;
+		while (done + batch < ITERATIONS) {
+			for (int run = 0; run < batch; run += GroupedFlipCounter.RUN) {
+				doAvalancheTest(counter.nextRun(), diffuser, random, GroupedFlipCounter.RUN, bits);
+			}
+			done += batch;
+			if (counter.isScoreAbove(bound, ITERATIONS)) {
+				return counter.getResult().score();
 			}
+			batch = done;
 		}
-		// Run square root to get final distance
-		return Math.sqrt(sum);
+		// Not rejected, so finish the test
+		for (int run = done; run < ITERATIONS; run += GroupedFlipCounter.RUN) {
+			doAvalancheTest(counter.nextRun(), diffuser, random, GroupedFlipCounter.RUN, bits);
+		}
+		return counter.getResult().score();
+	}
+	
+	/**
+	 * Produce an avalanche graph for the given function.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @return a 64x64 image showing how the bits flip
+	 */
+	public static BufferedImage createAvalancheGraph(Diffuser64 diffuser, int bits) {
+		return testAvalanche(diffuser, bits).graph();
+	}
+	
+	/**
+	 * Test the function for avalanche and return a value describing its deviation from the ideal.
+	 * Values closer to zero mean better avalanching properties.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @return a value describing the avalanche performance of this function
+	 */
+	public static double scoreAvalanche(Diffuser64 diffuser, int bits) {
+		return testAvalanche(diffuser, bits).score();
+	}
+	
+	/**
+	 * Test the function for avalanche in parallel on the given pool and return a value describing its deviation from the ideal.
+	 * Values closer to zero mean better avalanching properties.
+	 * @param diffuser the function under test
+	 * @param bits number of bits in the input/output
+	 * @param pool the pool to run the test on
+	 * @return a value describing the avalanche performance of this function
+	 */
+	public static double scoreAvalanche(Diffuser64 diffuser, int bits, ForkJoinPool pool) {
+		return testAvalanche(diffuser, bits, pool).score();
 	}
 	
 	/**
@@ -0,0 +1,86 @@
+package net.liamw.genrand.util;
+
+import java.util.concurrent.RecursiveTask;
+import java.util.random.RandomGenerator;
+
+/**
+ * Fork/join task that runs an avalanche test split into fixed-size chunks. Each chunk gets its own counters and a random
+ * stream chosen by its chunk index, and the counters are merged once the chunks are done. Neither the chunk layout nor
+ * the streams depend on the pool, so the merged statistics are the same no matter how many threads run the test.
+ */
+class AvalancheChunkTask extends RecursiveTask<FlipCounter[]> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of iterations in each chunk.
+	 */
+	static final int CHUNK_ITERATIONS = 1 << 12;
+	/**
+	 * Seed shared by all chunk generators. Chunks are told apart by stream.
+	 */
+	private static final long SEED_H = 0x3C6EF372FE94F82BL;
+	private static final long SEED_L = 0xA54FF53A5F1D36F1L;
+
+	/**
+	 * The work done by one chunk.
+	 */
+	interface Chunk {
+		/**
+		 * Run part of an avalanche test.
+		 * @param random the random generator for this chunk
+		 * @param start index of the first iteration in this chunk, for tests that walk through every input
+		 * @param iterations number of iterations to run
+		 * @return counters holding the statistics of this chunk
+		 */
+		FlipCounter[] run(RandomGenerator random, int start, int iterations);
+	}
+
+	private final transient Chunk chunk;
+	private final int iterations;
+	private final int firstChunk;
+	private final int lastChunk;
+
+	/**
+	 * Create a task running the given number of iterations in total.
+	 * @param iterations total iterations across all chunks
+	 * @param chunk the work done by each chunk
+	 */
+	AvalancheChunkTask(int iterations, Chunk chunk) {
+		this(chunk, iterations, 0, (iterations + CHUNK_ITERATIONS - 1) / CHUNK_ITERATIONS);
+	}
+
+	private AvalancheChunkTask(Chunk chunk, int iterations, int firstChunk, int lastChunk) {
+		this.chunk = chunk;
+		this.iterations = iterations;
+		this.firstChunk = firstChunk;
+		this.lastChunk = lastChunk;
+	}
+
+	/**
+	 * Create the random generator used by the given chunk.
+	 * @param index chunk index
+	 * @return the generator for that chunk
+	 */
+	static RandomGenerator chunkRandom(int index) {
+		return new LWRand64(SEED_H, SEED_L).setStream(index);
+	}
+
+	@Override
+	protected FlipCounter[] compute() {
+		if (lastChunk - firstChunk == 1) {
+			// Run a single chunk; the last chunk may be short
+			int start = firstChunk * CHUNK_ITERATIONS;
+			return chunk.run(chunkRandom(firstChunk), start, Math.min(CHUNK_ITERATIONS, iterations - start));
+		}
+		// Split the chunks in half, running one half here and the other in the pool
+		int middle = (firstChunk + lastChunk) >>> 1;
+		AvalancheChunkTask left = new AvalancheChunkTask(chunk, iterations, firstChunk, middle);
+		left.fork();
+		FlipCounter[] right = new AvalancheChunkTask(chunk, iterations, middle, lastChunk).compute();
+		FlipCounter[] merged = left.join();
+		for (int i = 0; i < merged.length; i++) {
+			merged[i].addAll(right[i]);
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,116 @@
+package net.liamw.genrand.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The statistics gathered by one avalanche test of a function. Both the avalanche score and the avalanche graph are
+ * derived from the same flip counts, so a function only needs to be tested once to get both.
+ */
+public class AvalancheResult {
+	/**
+	 * Flip counts, indexed by [input bit flipped][output bit tested].
+	 */
+	private final int[][] flipStatistics;
+	/**
+	 * The number of iterations the flip counts were gathered over.
+	 */
+	private final int iterations;
+
+	/**
+	 * Create a result from the given statistics.
+	 * @param flipStatistics the flip counts, indexed by [input bit flipped][output bit tested]
+	 * @param iterations the number of iterations the counts were gathered over
+	 */
+	public AvalancheResult(int[][] flipStatistics, int iterations) {
+		this.flipStatistics = flipStatistics;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Get the flip counts, indexed by [input bit flipped][output bit tested]. The array is not copied.
+	 * @return the flip counts
+	 */
+	public int[][] getFlipStatistics() {
+		return flipStatistics;
+	}
+
+	/**
+	 * Get the number of iterations the flip counts were gathered over.
+	 * @return the number of iterations
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Get the number of input bits tested.
+	 * @return input bit count
+	 */
+	public int getInputBits() {
+		return flipStatistics.length;
+	}
+
+	/**
+	 * Get the number of output bits tested.
+	 * @return output bit count
+	 */
+	public int getOutputBits() {
+		return flipStatistics.length == 0? 0 : flipStatistics[0].length;
+	}
+
+	/**
+	 * Return a value describing the deviation of the tested function from the ideal.
+	 * Values closer to zero mean better avalanching properties.
+	 * @return a value describing the avalanche performance of the function
+	 */
+	public double score() {
+		// The ideal is every output bit has a 50% chance of flipping when any input bit is flipped
+		// Therefore, compare the observed values to this ideal 0.5.
+		// Effectively, we want to calculate the Pythagorean distance between two value vectors.
+		double sum = 0.0;
+		for (int i = 0; i < getInputBits(); i++) {
+			for (int j = 0; j < getOutputBits(); j++) {
+				// i = bit flipped
+				// j = bit tested
+				double num = flipStatistics[i][j];
+				double denom = iterations;
+				// Calculate observed value for this input/output position
+				double val = num/denom;
+				// Calculate squared error from ideal 0.5
+				double sqerr = (0.5 - val);
+				sqerr *= sqerr;
+				// add to sum
+				sum += sqerr;
+			}
+		}
+		// Run square root to get final distance
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Produce an avalanche graph from the flip counts.
+	 * @return an image showing how the bits flip, input bits along the x and output bits along the y
+	 */
+	public BufferedImage graph() {
+		BufferedImage bimg = new BufferedImage(getInputBits(), getOutputBits(), BufferedImage.TYPE_INT_RGB);
+		// For each row and column...
+		for (int i = 0; i < getInputBits(); i++) {
+			for (int j = 0; j < getOutputBits(); j++) {
+				// i = input bit flipped, along the x
+				// j = output bit tested, along the y
+				// get the numerator (number of flips)
+				double num = flipStatistics[i][j];
+				// denominator is the number of iterations total
+				double denom = iterations;
+				// calculate value as a fraction, then scale value from 0-255
+				double val = num/denom * 255;
+				// the output colour is a shade from black (0) to white (255)
+				int ival = (int) val;
+				int col = ival | ival << 8 | ival << 16;
+				// set the pixel
+				bimg.setRGB(i, j, col);
+			}
+		}
+		return bimg;
+	}
+}
@@ -1,10 +1,13 @@
 package net.liamw.genrand.util;
 
 import java.awt.image.BufferedImage;
-import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.random.RandomGenerator;
 
 public class AvalancheVector {
+	
 	/**
 	 * Function interface for bit vector functions.
 	 */
@@ -16,6 +19,44 @@ public class AvalancheVector {
 		 */
 		public BitVector diffuse(BitVector input);
 		
+		/**
+		 * Map a bit value to another bit value, given as 32 bit words laid out as in {@link BitVector}, writing into
+		 * a caller-supplied array. Don't modify the input. Implementations should override this to avoid allocating;
+		 * the default goes through {@link #diffuse(BitVector)}.
+		 * @param input the input words
+		 * @param output array to receive the output words
+		 */
+		public default void diffuse(int[] input, int[] output) {
+			BitVector in = new BitVector(inputSize());
+			in.setWords(input);
+			diffuse(in).getWords(output);
+		}
+		
+		/**
+		 * Get the size of the input in bits.
+		 * @return bit count
+		 */
+		public int inputSize();
+		
+		/**
+		 * Get the size of the output in bits.
+		 * @return bit count
+		 */
+		public int outputSize();
+	}
+	
+	/**
+	 * Function interface for bit vector functions made of repeated rounds, where the output after each round can be recorded.
+	 */
+	public static interface RoundDiffuserVector {
+		/**
+		 * Map a bit value, given as 32 bit words laid out as in {@link BitVector}, through successive rounds, writing
+		 * the value after each round into caller-supplied arrays. Don't modify the input.
+		 * @param input the input words
+		 * @param outputs arrays to receive the output words after 1 to outputs.length rounds
+		 */
+		public void diffuseRounds(int[] input, int[][] outputs);
+		
 		/**
 		 * Get the size of the input in bits.
 		 * @return bit count
@@ -31,62 +72,241 @@ public class AvalancheVector {
 	
 	/**
 	 * Perform an avalanche test on the given function for a given number of iterations and store the statistics into the given array.
-	 * @param flipStatistics the array that statistics will be written into
+	 * @param counter the counter that statistics will be added into
 	 * @param diffuser the function under test
+	 * @param random source of random inputs
 	 * @param iterations number of iterations to run the test for
 	 */
-	private static void doAvalancheTest(int[][] flipStatistics, DiffuserVector diffuser, int iterations) {
-		Random random = ThreadLocalRandom.current();
+	private static void doAvalancheTest(FlipCounter counter, DiffuserVector diffuser, RandomGenerator random, int iterations) {
+		// All state lives in these word arrays, which are reused for every sample so the loop doesn't allocate.
+		final int[] starting = new int[words(diffuser.inputSize())];
+		final int[] diffused = new int[words(diffuser.outputSize())];
+		final int[] flipped = new int[diffused.length];
 		for (int i = 0; i < iterations; i++) {
 			// Start with a random integer x and find f(x).
-			BitVector starting = BitVector.random(random,diffuser.inputSize());
-			BitVector diffused = diffuser.diffuse(starting);
+			randomWords(random, starting);
+			diffuser.diffuse(starting, diffused);
 			// For each of the possible bit positions, try flipping the bit in that position.
 			for (int bitFlipped = 0; bitFlipped < diffuser.inputSize(); bitFlipped++) {
-				// Determine what bits changed in f(x) when the given bit was flipped.
-				BitVector res = testDiffuse(starting, bitFlipped, diffused, diffuser);
-				// Check each bit in the output result to see if it flipped.
-				// Increment the appropriate input/output bit statistic in the array if it did.
-				for (int bitTested = 0; bitTested < diffuser.outputSize(); bitTested++) {
-					if (res.getBitAt(bitTested) != 0) {
-						flipStatistics[bitFlipped][bitTested]++;
-					}
-				}
+				// Flip the bit in place, diffuse, then flip it back for the next bit.
+				starting[bitFlipped >>> 5] ^= 1 << bitFlipped;
+				diffuser.diffuse(starting, flipped);
+				starting[bitFlipped >>> 5] ^= 1 << bitFlipped;
+				// Add each flipped output bit to the appropriate input/output bit statistic, 64 bits at a time.
+				addFlips(counter, bitFlipped, flipped, diffused);
 			}
+			counter.endSample();
 		}
 	}
 	
 	/**
-	 * Produce an avalanche graph for the given function.
+	 * Run an avalanche test on the given function and return the gathered statistics.
+	 * The score and graph can both be derived from the result without running the test again.
 	 * @param diffuser the function under test
-	 * @return a 64x64 image showing how the bits flip
+	 * @return the avalanche statistics for this function
 	 */
-	public static BufferedImage createAvalancheGraph(DiffuserVector diffuser) {
-		final int[][] flipStatistics = new int[diffuser.inputSize()][diffuser.outputSize()];
+	public static AvalancheResult testAvalanche(DiffuserVector diffuser) {
+		final FlipCounter counter = new FlipCounter(diffuser.inputSize(), diffuser.outputSize());
+		// More iterations mean a value closer to the real value, down to a noise floor beyond which values are meaningless
+		// 65536 iterations is a good tradeoff between accuracy/speed
+		// Noise floor -> 0.06 @ 65536 iters
 		final int ITERATIONS = 1 << 16;
-		BufferedImage bimg = new BufferedImage(diffuser.inputSize(),diffuser.outputSize(), BufferedImage.TYPE_INT_RGB);
 		// Run the test to gain statistics
-		doAvalancheTest(flipStatistics, diffuser, ITERATIONS);
-		// Write out the image
-		// For each row and column...
-		for (int i = 0; i < diffuser.inputSize(); i++) {
-			for (int j = 0; j < diffuser.outputSize(); j++) {
-				// i = input bit flipped, along the x
-				// j = output bit tested, along the y
-				// get the numerator (number of flips)
-				double num = flipStatistics[i][j];
-				// denominator is the number of iterations total
-				double denom = ITERATIONS;
-				// calculate value as a fraction, then scale value from 0-255
-				double val = num/denom * 255;
-				// the output colour is a shade from black (0) to white (255)
-				int ival = (int) val;
-				int col = ival | ival << 8 | ival << 16;
-				// set the pixel
-				bimg.setRGB(i, j, col);
+		doAvalancheTest(counter, diffuser, ThreadLocalRandom.current(), ITERATIONS);
+		return new AvalancheResult(counter.getTotals(), ITERATIONS);
+	}
+	
+	/**
+	 * Perform an avalanche test on the given function for a given number of iterations for several round counts at once,
+	 * storing the statistics for each round count into the given array. The rounds are run once per input, and the difference
+	 * after each round is recorded, so testing 1 to n rounds costs n round evaluations per input rather than 1+2+...+n.
+	 * @param counters the counters that statistics will be added into, one for each round count
+	 * @param diffuser the function under test
+	 * @param inputs fills the given words with the next input
+	 * @param iterations number of iterations to run the test for
+	 */
+	private static void doAvalancheRoundsTest(FlipCounter[] counters, RoundDiffuserVector diffuser, Consumer<int[]> inputs, int iterations) {
+		final int rounds = counters.length;
+		// All state lives in these word arrays, which are reused for every sample so the loop doesn't allocate.
+		final int[] starting = new int[words(diffuser.inputSize())];
+		final int[][] diffused = new int[rounds][words(diffuser.outputSize())];
+		final int[][] flipped = new int[rounds][words(diffuser.outputSize())];
+		for (int i = 0; i < iterations; i++) {
+			// Start with an input x and find f(x) for every round count.
+			inputs.accept(starting);
+			diffuser.diffuseRounds(starting, diffused);
+			// For each of the possible bit positions, try flipping the bit in that position.
+			for (int bitFlipped = 0; bitFlipped < diffuser.inputSize(); bitFlipped++) {
+				// Flip the bit in place, diffuse, then flip it back for the next bit.
+				starting[bitFlipped >>> 5] ^= 1 << bitFlipped;
+				diffuser.diffuseRounds(starting, flipped);
+				starting[bitFlipped >>> 5] ^= 1 << bitFlipped;
+				for (int r = 0; r < rounds; r++) {
+					// Add each output bit that changed after this many rounds to the appropriate input/output bit statistic.
+					addFlips(counters[r], bitFlipped, flipped[r], diffused[r]);
+				}
+			}
+			for (FlipCounter counter : counters) {
+				counter.endSample();
 			}
 		}
-		return bimg;
+	}
+	
+	/**
+	 * Get the number of 32 bit words needed to hold a value of the given size.
+	 * @param bits size in bits
+	 * @return word count
+	 */
+	private static int words(int bits) {
+		return (bits + 31) / 32;
+	}
+	
+	/**
+	 * Fill the words with random bits, in the same order as {@link BitVector#random(RandomGenerator, int)}.
+	 * @param random source of random bits
+	 * @param words array to fill
+	 */
+	private static void randomWords(RandomGenerator random, int[] words) {
+		for (int i = 0; i < words.length; i++) {
+			words[i] = random.nextInt();
+		}
+	}
+	
+	/**
+	 * Add the bits that differ between two outputs to a row of the counter.
+	 * @param counter the counter to add to
+	 * @param row the row (input bit flipped) to add to
+	 * @param a the first output words
+	 * @param b the second output words
+	 */
+	private static void addFlips(FlipCounter counter, int row, int[] a, int[] b) {
+		for (int w = 0; w < a.length; w += 2) {
+			long l = (a[w] ^ b[w]) & 0xFFFFFFFFL;
+			long h = (w+1 < a.length)? (a[w+1] ^ b[w+1]) & 0xFFFFFFFFL : 0L;
+			counter.add(row, w / 2, (h << 32) | l);
+		}
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds in a single pass.
+	 * @param diffuser the function under test
+	 * @param rounds the highest number of rounds to test
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuserVector diffuser, int rounds) {
+		return testAvalancheRounds(diffuser, rounds, 1 << 16);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds over a given number of random inputs.
+	 * Fewer iterations give a rougher result sooner, which is enough to screen out functions before testing them fully.
+	 * @param diffuser the function under test
+	 * @param rounds the highest number of rounds to test
+	 * @param iterations number of random inputs to test
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuserVector diffuser, int rounds, int iterations) {
+		final FlipCounter[] counters = new FlipCounter[rounds];
+		for (int r = 0; r < rounds; r++) {
+			counters[r] = new FlipCounter(diffuser.inputSize(), diffuser.outputSize());
+		}
+		// Run the test to gain statistics
+		doAvalancheRoundsTest(counters, diffuser, words -> randomWords(ThreadLocalRandom.current(), words), iterations);
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), iterations);
+		}
+		return results;
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds over the given inputs. Functions
+	 * tested over the same inputs are compared on the same samples, so the difference between their scores comes from the
+	 * functions alone.
+	 * @param diffuser the function under test
+	 * @param rounds the highest number of rounds to test
+	 * @param inputs the words of every input one after another, e.g. from {@link #randomInputs(int, int)}
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuserVector diffuser, int rounds, int[] inputs) {
+		final int length = words(diffuser.inputSize());
+		final int iterations = inputs.length / length;
+		final FlipCounter[] counters = new FlipCounter[rounds];
+		for (int r = 0; r < rounds; r++) {
+			counters[r] = new FlipCounter(diffuser.inputSize(), diffuser.outputSize());
+		}
+		int[] next = { 0 };
+		doAvalancheRoundsTest(counters, diffuser, words -> {
+			System.arraycopy(inputs, next[0], words, 0, length);
+			next[0] += length;
+		}, iterations);
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), iterations);
+		}
+		return results;
+	}
+	
+	/**
+	 * Draw random inputs for {@link #testAvalancheRounds(RoundDiffuserVector, int, int[])}.
+	 * @param bits number of bits in each input
+	 * @param iterations number of inputs
+	 * @return the words of every input one after another
+	 */
+	public static int[] randomInputs(int bits, int iterations) {
+		return ThreadLocalRandom.current().ints((long)words(bits) * iterations).toArray();
+	}
+	
+	/**
+	 * Run an avalanche test on the given function in parallel on the given pool and return the gathered statistics.
+	 * The iterations are split into fixed chunks, each with its own statistics and random stream chosen by the chunk index,
+	 * so the result is the same no matter how many threads the pool has.
+	 * @param diffuser the function under test
+	 * @param pool the pool to run the test on
+	 * @return the avalanche statistics for this function
+	 */
+	public static AvalancheResult testAvalanche(DiffuserVector diffuser, ForkJoinPool pool) {
+		final int ITERATIONS = 1 << 16;
+		FlipCounter[] counters = pool.invoke(new AvalancheChunkTask(ITERATIONS, (random, start, iterations) -> {
+			FlipCounter counter = new FlipCounter(diffuser.inputSize(), diffuser.outputSize());
+			doAvalancheTest(counter, diffuser, random, iterations);
+			return new FlipCounter[] { counter };
+		}));
+		return new AvalancheResult(counters[0].getTotals(), ITERATIONS);
+	}
+	
+	/**
+	 * Run an avalanche test on the given function for 1 to the given number of rounds in a single pass, in parallel on the
+	 * given pool. The result is the same no matter how many threads the pool has.
+	 * @param diffuser the function under test
+	 * @param rounds the highest number of rounds to test
+	 * @param pool the pool to run the test on
+	 * @return the avalanche statistics for each round count, indexed by rounds-1
+	 */
+	public static AvalancheResult[] testAvalancheRounds(RoundDiffuserVector diffuser, int rounds, ForkJoinPool pool) {
+		final int ITERATIONS = 1 << 16;
+		FlipCounter[] counters = pool.invoke(new AvalancheChunkTask(ITERATIONS, (random, start, iterations) -> {
+			FlipCounter[] chunkCounters = new FlipCounter[rounds];
+			for (int r = 0; r < rounds; r++) {
+				chunkCounters[r] = new FlipCounter(diffuser.inputSize(), diffuser.outputSize());
+			}
+			doAvalancheRoundsTest(chunkCounters, diffuser, words -> randomWords(random, words), iterations);
+			return chunkCounters;
+		}));
+		AvalancheResult[] results = new AvalancheResult[rounds];
+		for (int r = 0; r < rounds; r++) {
+			results[r] = new AvalancheResult(counters[r].getTotals(), ITERATIONS);
+		}
+		return results;
+	}
+	
+	/**
+	 * Produce an avalanche graph for the given function.
+	 * @param diffuser the function under test
+	 * @return an image showing how the bits flip
+	 */
+	public static BufferedImage createAvalancheGraph(DiffuserVector diffuser) {
+		return testAvalanche(diffuser).graph();
 	}
 	
 	/**
@@ -96,31 +316,18 @@ public class AvalancheVector {
 	 * @return a value describing the avalanche performance of this function
 	 */
 	public static double scoreAvalanche(DiffuserVector diffuser) {
-		final int[][] flipStatistics = new int[diffuser.inputSize()][diffuser.outputSize()];
-		final int ITERATIONS = 1 << 16;
-		// Run the test to gain statistics
-		doAvalancheTest(flipStatistics, diffuser, ITERATIONS);
-		// The ideal is every output bit has a 50% chance of flipping when any input bit is flipped
-		// Therefore, compare the observed values to this ideal 0.5.
-		// Effectively, we want to calculate the Pythagorean distance between two 32x32 value vectors.
-		double sum = 0.0;
-		for (int i = 0; i < diffuser.inputSize(); i++) {
-			for (int j = 0; j < diffuser.outputSize(); j++) {
-				// i = bit flipped
-				// j = bit tested
-				double num = flipStatistics[i][j];
-				double denom = ITERATIONS;
-				// Calculate observed value for this input/output position
-				double val = num/denom;
-				// Calculate squared error from ideal 0.5
-				double sqerr = (0.5 - val);
-				sqerr *= sqerr;
-				// add to sum
-				sum += sqerr;
-			}
-		}
-		// Run square root to get final distance
-		return Math.sqrt(sum);
+		return testAvalanche(diffuser).score();
+	}
+	
+	/**
+	 * Test the function for avalanche in parallel on the given pool and return a value describing its deviation from the ideal.
+	 * Values closer to zero mean better avalanching properties.
+	 * @param diffuser the function under test
+	 * @param pool the pool to run the test on
+	 * @return a value describing the avalanche performance of this function
+	 */
+	public static double scoreAvalanche(DiffuserVector diffuser, ForkJoinPool pool) {
+		return testAvalanche(diffuser, pool).score();
 	}
 	
 	/**
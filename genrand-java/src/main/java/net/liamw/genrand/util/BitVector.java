@@ -1,6 +1,6 @@
 package net.liamw.genrand.util;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 /**
  * A vector of bits of an arbitrary size.
@@ -56,7 +56,7 @@ public class BitVector {
 	 * @param bits bits in the result
 	 * @return a random bit vector
 	 */
-	public static BitVector random(Random r, int bits) {
+	public static BitVector random(RandomGenerator r, int bits) {
 		BitVector bv = new BitVector(bits);
 		for (int i = 0; i < bv.bits.length; i++) {
 			bv.bits[i] = r.nextInt();
@@ -264,6 +264,43 @@ public class BitVector {
 		bits[idxDiv32] = v;
 	}
 	
+	/**
+	 * Get 64 bits starting from the given index, which must be a multiple of 32. This ignores the logical size and may return
+	 * bits that are otherwise inaccessible normally. Bits past the end of the bit array are zero.
+	 * @param idx bit index, a multiple of 32
+	 * @return 64 bits
+	 */
+	public long get64BitsAt(int idx) {
+		int aidx = indexInArray(idx);
+		long l = bits[aidx] & 0xFFFFFFFFL;
+		long h = (aidx+1 < bits.length)? bits[aidx+1] & 0xFFFFFFFFL : 0L;
+		return (h << 32) | l;
+	}
+	
+	/**
+	 * Get the number of 32 bit words backing this vector.
+	 * @return word count
+	 */
+	public int getWordCount() {
+		return bits.length;
+	}
+	
+	/**
+	 * Copy the backing words of this vector into an array, lowest bits first.
+	 * @param dest array to receive at least {@link #getWordCount()} words
+	 */
+	public void getWords(int[] dest) {
+		System.arraycopy(bits, 0, dest, 0, bits.length);
+	}
+	
+	/**
+	 * Set the backing words of this vector from an array, lowest bits first.
+	 * @param src array holding at least {@link #getWordCount()} words
+	 */
+	public void setWords(int[] src) {
+		System.arraycopy(src, 0, bits, 0, bits.length);
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -2,8 +2,30 @@ package net.liamw.genrand.util;
 
 /**
  * Functions for permuting a counter mod n to another value mod n.
+ * <br>
+ * There are two schemes. The original one cycle-walks a full width mix until the output falls below the limit, which
+ * takes many mix calls when the limit is far below the mix width. The Feistel scheme runs a keyed Feistel network over
+ * exactly as many bits as the limit needs, so a power of two limit always takes one pass of a few rounds. Searches record
+ * which scheme they were started with, so a search resumed from a checkpoint keeps visiting values in the same order.
  */
 public class CounterPermutation {
+	/**
+	 * The original scheme: cycle-walking {@link #mix32(int)} or {@link #mix64(long)}.
+	 */
+	public static final int SCHEME_CYCLE_WALK = 0;
+	/**
+	 * Keyed Feistel network over the bit width of the limit. See {@link #feistel(long, int)}.
+	 */
+	public static final int SCHEME_FEISTEL = 1;
+	
+	/**
+	 * Round keys for the Feistel network, one per round. Changing these changes the order of every search using the
+	 * Feistel scheme, so they must stay fixed.
+	 */
+	private static final long[] FEISTEL_KEYS = {
+		0x38D506988BA5CF97L, 0x1CFF974774D783BBL, 0xD26F6DAD13252AF1L, 0x6057C672DC20E52AL
+	};
+	
 	/**
 	 * Permute v to another value 0..limit-1.
 	 * @param v input
@@ -65,9 +87,81 @@ public class CounterPermutation {
 		return v;
 	}
 	
+	/**
+	 * Permute v within the values that fit in the given number of bits, using a keyed Feistel network. The value is split
+	 * into a left and right half, and each round XORs a keyed hash of one half into the other before swapping them. When
+	 * the bit count is odd the halves differ in size by one bit and swap sizes every round. Every round can be undone, so
+	 * the whole network is a bijection over exactly that many bits.
+	 * @param v input, 0..2^bits-1
+	 * @param bits number of bits, 0 to 64
+	 * @return permuted value, 0..2^bits-1
+	 */
+	public static long feistel(long v, int bits) {
+		int leftBits = bits >>> 1;
+		int rightBits = bits - leftBits;
+		long left = v >>> rightBits;
+		long right = v & mask(rightBits);
+		for (long key : FEISTEL_KEYS) {
+			// Hash the right half with the round key, using the high bits of the product since they depend on every input bit
+			long f = (right ^ key) * 0x9E3779B97F4A7C15L;
+			f ^= f >>> 29;
+			f *= 0xBF58476D1CE4E5B9L;
+			f = (f >>> (64 - leftBits)) & mask(leftBits);
+			// The old right half becomes the left half and the mixed left half becomes the right
+			long newRight = left ^ f;
+			left = right;
+			right = newRight;
+			int swap = leftBits;
+			leftBits = rightBits;
+			rightBits = swap;
+		}
+		return (left << rightBits) | right;
+	}
+	
+	/**
+	 * Get a mask covering the low bits of a value.
+	 * @param bits number of bits, 0 to 64
+	 * @return mask with that many low bits set
+	 */
+	private static long mask(int bits) {
+		return bits == 64? -1L : (1L << bits) - 1;
+	}
+	
+	/**
+	 * Permute v to another value 0..limit-1 with a Feistel network over the bit width of the limit. When the limit is a
+	 * power of two this is a single pass; otherwise the network is cycle-walked, which takes less than two passes on average
+	 * because at least half the values are in range.
+	 * @param v input, 0..limit-1
+	 * @param limit bound, at least 1
+	 * @return permuted value
+	 */
+	public static long permuteFeistel(long v, long limit) {
+		final int bits = 64 - Long.numberOfLeadingZeros(limit - 1);
+		long output = v;
+		do {
+			output = feistel(output, bits);
+		} while (Long.compareUnsigned(output, limit) >= 0);
+		return output;
+	}
+	
+	/**
+	 * Permute v to another value 0..limit-1 using the given scheme.
+	 * @param v input
+	 * @param limit bound
+	 * @param scheme {@link #SCHEME_CYCLE_WALK} or {@link #SCHEME_FEISTEL}
+	 * @return permuted value
+	 */
+	public static long permute(long v, long limit, int scheme) {
+		switch (scheme) {
+			case SCHEME_CYCLE_WALK: return permute(v, limit);
+			case SCHEME_FEISTEL: return permuteFeistel(v, limit);
+			default: throw new IllegalArgumentException("unknown permutation scheme " + scheme);
+		}
+	}
+	
 	/**
 	 * Permute v to another value 0..limit-1, using a different mix function
-	 * based on the limit.
+	 * based on the limit. This is the {@link #SCHEME_CYCLE_WALK} scheme.
 	 * @param v input
 	 * @param limit bound
 	 * @return permuted value
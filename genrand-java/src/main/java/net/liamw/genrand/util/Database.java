@@ -5,10 +5,13 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
@@ -18,6 +21,7 @@ import javax.imageio.ImageIO;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.jackson.JsonComponent;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -27,9 +31,14 @@ import org.springframework.web.bind.annotation.PathVariable;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
 import net.liamw.genrand.function.Mix32;
 import net.liamw.genrand.function.Mix64;
 import net.liamw.genrand.function.arx.ARXMix;
+import net.liamw.genrand.function.arx.ARXMixInfo;
+import net.liamw.genrand.function.arx.ARXMixTypes;
 import net.liamw.genrand.function.arx.MixARX32x2;
 
 /**
@@ -202,6 +211,7 @@ public class Database {
 		private final String avImage2;
 		private final String avImage3;
 		private final String avImage4;
+		private final long classSize;
 		
 		/**
 		 * Construct a mix entry, setting all values.
@@ -215,9 +225,10 @@ public class Database {
 		 * @param avImage2 two round avalanche graph
 		 * @param avImage3 three round avalanche graph
 		 * @param avImage4 four round avalanche graph
+		 * @param classSize number of equivalent definitions this entry stands for
 		 */
 		public ARXMixEntry(String type, long definition, double avScore1, double avScore2, double avScore3,
-				double avScore4, String avImage1, String avImage2, String avImage3, String avImage4) {
+				double avScore4, String avImage1, String avImage2, String avImage3, String avImage4, long classSize) {
 			this.type = type;
 			this.definition = definition;
 			this.avScore1 = avScore1;
@@ -228,6 +239,7 @@ public class Database {
 			this.avImage2 = avImage2;
 			this.avImage3 = avImage3;
 			this.avImage4 = avImage4;
+			this.classSize = classSize;
 		}
 		
 		/**
@@ -248,7 +260,8 @@ public class Database {
 			String avImage2 = mapper.getString("avImage2");
 			String avImage3 = mapper.getString("avImage3");
 			String avImage4 = mapper.getString("avImage4");
-			return new ARXMixEntry(id, definition, avScore1, avScore2, avScore3, avScore4, avImage1, avImage2, avImage3, avImage4);
+			long classSize = mapper.getLong("classSize");
+			return new ARXMixEntry(id, definition, avScore1, avScore2, avScore3, avScore4, avImage1, avImage2, avImage3, avImage4, classSize);
 		}
 		
 		/**
@@ -311,20 +324,46 @@ public class Database {
 		public final String getAvImage4() {
 			return avImage4;
 		}
+		/**
+		 * @return the number of equivalent definitions this entry stands for
+		 */
+		public final long getClassSize() {
+			return classSize;
+		}
 	}
 	
 	/**
-	 * Return a zero/one-element list containing an ARX mix with the given type and definition.
+	 * Return a zero/one-element list containing an ARX mix with the given type and definition. Types in the score store are
+	 * looked up there, and only go to the database for mixes with avalanche graphs.
 	 * @param type type to query
 	 * @param def definition to query
 	 */
 	public List<ARXMixEntry> getARXByDefinition(String type, long def) {
+		if (scoreStore.covers(type)) {
+			ARXScoreStore.Scores scores = scoreStore.get(type, def);
+			if (scores == null) return List.of();
+			if (!scores.images()) {
+				return List.of(new ARXMixEntry(type, def, scores.avScore1(), scores.avScore2(), scores.avScore3(), scores.avScore4(),
+						null, null, null, null, scores.classSize()));
+			}
+		}
 		return database.query("SELECT * FROM mixarx WHERE type = ? AND definition = ?", pss -> {
 			pss.setString(1, type);
 			pss.setLong(2, def);
 		}, ARXMixEntry::fromDatabaseRowMapper);
 	}
 	
+	/**
+	 * Return true if an ARX definition is known to be done, either fully tested or screened out. Only types in the score
+	 * store are known about; for the rest this is always false, and enumerating them again is left to INSERT OR IGNORE.
+	 * @param type type to query
+	 * @param def definition to query
+	 * @return true if the definition is done
+	 */
+	public boolean isARXDone(String type, long def) {
+		return scoreStore.isDone(type, def);
+	}
+	
 	/**
 	 * Return the number of ARX mixes with the given type.
 	 * @param type type to query
@@ -424,6 +463,10 @@ public class Database {
 	 * The root path of the image store.
 	 */
 	public static final Path IMAGE_PATH = Paths.get("./images/");
+	/**
+	 * The root path of the score store.
+	 */
+	public static final Path SCORE_PATH = Paths.get("./scores/");
 	
 	/**
 	 * Spring's reference to the database.
@@ -435,6 +478,38 @@ public class Database {
 	 */
 	@Autowired
 	private TransactionTemplate dbTransaction;
+	/**
+	 * Buffer that ARX results wait in to be written in batches, created once the database is set up.
+	 */
+	private ARXWriteBuffer writeBuffer;
+	/**
+	 * Scores of the ARX types that are small enough to keep indexed by definition.
+	 */
+	private final ARXScoreStore scoreStore = new ARXScoreStore(SCORE_PATH);
+	
+	/**
+	 * Create the buffer ARX results are written through.
+	 */
+	@PostConstruct
+	public void open() {
+		writeBuffer = new ARXWriteBuffer(this);
+	}
+	
+	/**
+	 * Write any ARX results still waiting in the buffer, and the score store's files, before the database goes away.
+	 */
+	@PreDestroy
+	public void close() {
+		writeBuffer.close();
+		scoreStore.force();
+	}
+	
+	/**
+	 * Write any ARX results still waiting in the buffer now.
+	 */
+	public void flush() {
+		writeBuffer.flush();
+	}
 	
 	/**
 	 * Create the initial tables.
@@ -476,6 +551,21 @@ public class Database {
 					avImage2 TEXT,
 					avImage3 TEXT,
 					avImage4 TEXT,
+					classSize INTEGER NOT NULL DEFAULT 1,
+					PRIMARY KEY (type,definition)
+				)
+				""");
+		// Mixes from before equivalent definitions were skipped each stand for only themselves
+		List<String> mixColumns = database.query("PRAGMA table_info(mixarx)", (rs, rowNum) -> rs.getString("name"));
+		if (!mixColumns.contains("classSize")) {
+			database.execute("ALTER TABLE mixarx ADD COLUMN classSize INTEGER NOT NULL DEFAULT 1");
+		}
+		// ARX definitions that were screened out before a full test, kept so they aren't tested again
+		database.execute("""
+				CREATE TABLE IF NOT EXISTS mixarxscreened (
+					type TEXT NOT NULL,
+					definition INTEGER NOT NULL,
+					screenScore REAL NOT NULL,
 					PRIMARY KEY (type,definition)
 				)
 				""");
@@ -483,9 +573,25 @@ public class Database {
 		database.execute("""
 				CREATE TABLE IF NOT EXISTS arxsearch (
 					type TEXT NOT NULL PRIMARY KEY,
-					checkpoint INTEGER NOT NULL
+					checkpoint INTEGER NOT NULL,
+					permutation INTEGER NOT NULL DEFAULT 0
 				)
 				""");
+		// Ranges of the search that have been finished beyond the checkpoint, which is the point up to which everything has finished
+		database.execute("""
+				CREATE TABLE IF NOT EXISTS arxsearchrange (
+					type TEXT NOT NULL,
+					rangeStart INTEGER NOT NULL,
+					rangeEnd INTEGER NOT NULL,
+					PRIMARY KEY (type,rangeStart)
+				)
+				""");
+		// Searches from before the permutation column was added were all made with the original cycle-walking scheme,
+		// which is what the column defaults to
+		List<String> searchColumns = database.query("PRAGMA table_info(arxsearch)", (rs, rowNum) -> rs.getString("name"));
+		if (!searchColumns.contains("permutation")) {
+			database.execute("ALTER TABLE arxsearch ADD COLUMN permutation INTEGER NOT NULL DEFAULT 0");
+		}
 	}
 	
 	/**
@@ -510,9 +616,10 @@ public class Database {
 		int operatorCount = mix.oplen();
 		String sourceCode = mix.toString();
 		// calculate avalanche
-		double avalancheScore = Avalanche32.scoreAvalanche(mix,32);
+		AvalancheResult result = Avalanche32.testAvalanche(mix,32);
+		double avalancheScore = result.score();
 		// make avalanche image and write it out
-		BufferedImage avalancheImage = Avalanche32.createAvalancheGraph(mix,32);
+		BufferedImage avalancheImage = result.graph();
 		long snowflake = putImage(avalancheImage);
 		if (snowflake == 0) return; // image write failed
 		// make and write the database entry
@@ -548,9 +655,10 @@ public class Database {
 		int operatorCount = mix.oplen();
 		String sourceCode = mix.toString();
 		// calculate avalanche
-		double avalancheScore = Avalanche64.scoreAvalanche(mix,64);
+		AvalancheResult result = Avalanche64.testAvalanche(mix,64);
+		double avalancheScore = result.score();
 		// make avalanche image and write it out
-		BufferedImage avalancheImage = Avalanche64.createAvalancheGraph(mix,64);
+		BufferedImage avalancheImage = result.graph();
 		long snowflake = putImage(avalancheImage);
 		if (snowflake == 0) return; // image write failed
 		// make and write the database entry
@@ -566,67 +674,242 @@ public class Database {
 	
 	/**
 	 * Write a generated mix function into the database and execute postAction in a transaction. postAction may be null if there is no need to
-	 * do anything in a transaction with the writing of the mix function.
+	 * do anything in a transaction with the writing of the mix function. The write is buffered; see
+	 * {@link #submit(ARXMix, AvalancheResult[], boolean, Consumer)}.
 	 * @param mix mix to write
 	 * @param postAction action to execute
 	 */
 	public void submit(ARXMix<?> mix, Consumer<Database> postAction) {
+		// test avalanche for 1 to 4 rounds in one pass - scores and graphs both come from the same test
+		submit(mix, mix.avalancheRounds(4), postAction);
+	}
+	
+	/**
+	 * Write a generated mix function into the database along with avalanche results that have already been gathered for it,
+	 * such as from {@link ARXMix#avalancheRounds(ARXMixInfo, long[], int)}, and execute postAction in a transaction.
+	 * @param mix mix to write
+	 * @param results avalanche results for the mix for 1 to 4 rounds
+	 * @param postAction action to execute, or null
+	 */
+	public void submit(ARXMix<?> mix, AvalancheResult[] results, Consumer<Database> postAction) {
+		submit(mix, results, true, postAction);
+	}
+	
+	/**
+	 * Write a generated mix function into the database along with avalanche results that have already been gathered for it,
+	 * making its avalanche graphs only if asked to, and execute postAction in a transaction. Mixes without graphs have null
+	 * image references, the same as when writing a graph fails.
+	 * <br>
+	 * The mix is buffered along with the results of every other generator thread and written a little later, in one
+	 * transaction for the whole batch, with postAction executed in that transaction after the mix is written. A mix that is
+	 * already in the database is left as it is.
+	 * @param mix mix to write
+	 * @param results avalanche results for the mix for 1 to 4 rounds
+	 * @param images true to make and store the avalanche graphs
+	 * @param postAction action to execute, or null
+	 */
+	public void submit(ARXMix<?> mix, AvalancheResult[] results, boolean images, Consumer<Database> postAction) {
+		writeBuffer.addMix(mixRow(mix, results, images), postAction);
+	}
+	
+	/**
+	 * Make the row a mix is written as, making its avalanche graphs if asked to.
+	 * @param mix the mix
+	 * @param results avalanche results for the mix for 1 to 4 rounds
+	 * @param images true to make and store the avalanche graphs
+	 * @return the row
+	 */
+	private ARXWriteBuffer.MixRow mixRow(ARXMix<?> mix, AvalancheResult[] results, boolean images) {
 		// pack into long value
 		long definition = mix.pack();
-		// score avalanche functions for 1 to 4 rounds
-		double av1 = mix.score(1);
+		// number of equivalent definitions this one stands for
+		long classSize = mix.getInfo().getClassSize(definition);
+		AvalancheResult result1 = results[0];
+		AvalancheResult result2 = results[1];
+		AvalancheResult result3 = results[2];
+		AvalancheResult result4 = results[3];
+		double av1 = result1.score();
 //		System.out.printf("1 round... %f\n",av1);
-		double av2 = mix.score(2);
+		double av2 = result2.score();
 //		System.out.printf("2 round... %f\n",av2);
-		double av3 = mix.score(3);
+		double av3 = result3.score();
 //		System.out.printf("3 round... %f\n",av3);
-		double av4 = mix.score(4);
+		double av4 = result4.score();
 //		System.out.printf("4 round... %f\n",av4);
 		// make avalanche graphs for the same - if any fail, they'll be zero. This is fine. It'll be made null later.
-		long avImageSnowflake1 = putImage(mix.graph(1));
-		long avImageSnowflake2 = putImage(mix.graph(2));
-		long avImageSnowflake3 = putImage(mix.graph(3));
-		long avImageSnowflake4 = putImage(mix.graph(4));
+		long avImageSnowflake1 = images? putImage(result1.graph()) : 0;
+		long avImageSnowflake2 = images? putImage(result2.graph()) : 0;
+		long avImageSnowflake3 = images? putImage(result3.graph()) : 0;
+		long avImageSnowflake4 = images? putImage(result4.graph()) : 0;
 //		System.out.printf("Images done...\n");
-		// Write out into database
+		return new ARXWriteBuffer.MixRow(mix.getInfo(), definition,
+				new double[] {av1, av2, av3, av4},
+				new long[] {avImageSnowflake1, avImageSnowflake2, avImageSnowflake3, avImageSnowflake4},
+				classSize);
+	}
+	
+	/**
+	 * Start collecting the results of a range of an ARX search, to be written along with the range.
+	 * @return the collector, for use by one thread
+	 */
+	public RangeResults collectRange() {
+		return new RangeResults();
+	}
+	
+	/**
+	 * The results of one range of an ARX search, held until the range is finished and then buffered together with it, so
+	 * the range is recorded in the same transaction as everything found in it. If that transaction fails, the range goes
+	 * unrecorded along with its results and is enumerated again on the next start; no other range is affected.
+	 */
+	public final class RangeResults {
+		/**
+		 * Mixes found so far.
+		 */
+		private List<ARXWriteBuffer.MixRow> mixes = new ArrayList<>();
+		/**
+		 * Definitions screened out so far.
+		 */
+		private List<ARXWriteBuffer.ScreenedRow> screened = new ArrayList<>();
+		
+		private RangeResults() {}
+		
+		/**
+		 * Take a mix along with avalanche results that have already been gathered for it, making its avalanche graphs only
+		 * if asked to, as {@link Database#submit(ARXMix, AvalancheResult[], boolean, Consumer)} does.
+		 * @param mix the mix
+		 * @param results avalanche results for the mix for 1 to 4 rounds
+		 * @param images true to make and store the avalanche graphs
+		 */
+		public void submit(ARXMix<?> mix, AvalancheResult[] results, boolean images) {
+			mixes.add(mixRow(mix, results, images));
+		}
+		
+		/**
+		 * Take a mix found by a worker process, with its avalanche graphs already made as PNG files.
+		 * @param type mix type
+		 * @param definition packed definition
+		 * @param scores avalanche scores for 1 to 4 rounds
+		 * @param images avalanche graphs for 1 to 4 rounds as PNG files, or null if the mix has none
+		 */
+		public void submitRemote(ARXMixInfo<?> type, long definition, double[] scores, byte[][] images) {
+			long[] snowflakes = new long[4];
+			if (images != null) {
+				for (int r = 0; r < 4; r++) {
+					snowflakes[r] = putImage(images[r]);
+				}
+			}
+			mixes.add(new ARXWriteBuffer.MixRow(type, definition, scores.clone(), snowflakes, type.getClassSize(definition)));
+		}
+		
+		/**
+		 * Take definitions that were screened out before a full test, with just their screening scores. Definitions that
+		 * are already recorded are left as they are.
+		 * @param type mix type
+		 * @param definitions packed definitions
+		 * @param screenScores the screening score of each definition
+		 */
+		public void submitScreened(String type, long[] definitions, double[] screenScores) {
+			for (int i = 0; i < definitions.length; i++) {
+				screened.add(new ARXWriteBuffer.ScreenedRow(type, definitions[i], screenScores[i]));
+			}
+		}
+		
+		/**
+		 * Buffer everything taken so far along with the range it was found in; see {@link Database#completeRange(String, long, long)}.
+		 * Ranges that finish one after another are merged before being recorded. The collector is then empty, ready for
+		 * the next range.
+		 * @param ident mix type
+		 * @param start first value of the range
+		 * @param end value the range stops before
+		 */
+		public void submitRange(String ident, long start, long end) {
+			writeBuffer.addRange(mixes, screened, end > start? new ARXWriteBuffer.Range(ident, start, end) : null);
+			mixes = new ArrayList<>();
+			screened = new ArrayList<>();
+		}
+	}
+	
+	/**
+	 * Write a batch of buffered ARX results in one transaction: the mixes, then the screened out definitions, then the
+	 * finished ranges, then the actions. If the transaction fails none of it is written and the exception is rethrown, for
+	 * the buffer to try the batch again or drop it.
+	 * @param mixes mixes to write
+	 * @param screened screened out definitions to write
+	 * @param ranges finished ranges to record
+	 * @param actions actions to execute afterwards
+	 * @throws DataAccessException if the batch couldn't be written
+	 */
+	void writeBatch(List<ARXWriteBuffer.MixRow> mixes, List<ARXWriteBuffer.ScreenedRow> screened, List<ARXWriteBuffer.Range> ranges, List<Consumer<Database>> actions) {
 		try {
 			dbTransaction.executeWithoutResult(status -> {
-				database.update("INSERT INTO mixarx (type,definition,avScore1,avScore2,avScore3,avScore4,avImage1,avImage2,avImage3,avImage4) VALUES (?,?,?,?,?,?,?,?,?,?)", pss -> {
-					pss.setString(1,mix.getInfo().getDatabaseTag());
-					pss.setLong(2,definition);
-					
-					pss.setDouble(3,av1);
-					pss.setDouble(4,av2);
-					pss.setDouble(5,av3);
-					pss.setDouble(6,av4);
-					
-					if (avImageSnowflake1 == 0) {
-						pss.setNull(7,Types.VARCHAR);
-					} else {
-						pss.setString(7,String.format("%016X",avImageSnowflake1));
-					}
-					if (avImageSnowflake2 == 0) {
-						pss.setNull(8,Types.VARCHAR);
-					} else {
-						pss.setString(8,String.format("%016X",avImageSnowflake2));
-					}
-					if (avImageSnowflake3 == 0) {
-						pss.setNull(9,Types.VARCHAR);
-					} else {
-						pss.setString(9,String.format("%016X",avImageSnowflake3));
-					}
-					if (avImageSnowflake4 == 0) {
-						pss.setNull(10,Types.VARCHAR);
-					} else {
-						pss.setString(10,String.format("%016X",avImageSnowflake4));
-					}
-				});
-				if (postAction != null) postAction.accept(this);
+				if (!mixes.isEmpty()) {
+					database.batchUpdate("INSERT OR IGNORE INTO mixarx (type,definition,avScore1,avScore2,avScore3,avScore4,avImage1,avImage2,avImage3,avImage4,classSize) VALUES (?,?,?,?,?,?,?,?,?,?,?)", new BatchPreparedStatementSetter() {
+						@Override
+						public void setValues(PreparedStatement pss, int i) throws SQLException {
+							ARXWriteBuffer.MixRow row = mixes.get(i);
+							pss.setString(1,row.type().getDatabaseTag());
+							pss.setLong(2,row.definition());
+							for (int r = 0; r < 4; r++) {
+								pss.setDouble(3 + r,row.scores()[r]);
+							}
+							// images that failed or weren't made are zero
+							for (int r = 0; r < 4; r++) {
+								if (row.images()[r] == 0) {
+									pss.setNull(7 + r,Types.VARCHAR);
+								} else {
+									pss.setString(7 + r,String.format("%016X",row.images()[r]));
+								}
+							}
+							pss.setLong(11,row.classSize());
+						}
+						
+						@Override
+						public int getBatchSize() {
+							return mixes.size();
+						}
+					});
+				}
+				if (!screened.isEmpty()) {
+					database.batchUpdate("INSERT OR IGNORE INTO mixarxscreened (type,definition,screenScore) VALUES (?,?,?)", new BatchPreparedStatementSetter() {
+						@Override
+						public void setValues(PreparedStatement pss, int i) throws SQLException {
+							ARXWriteBuffer.ScreenedRow row = screened.get(i);
+							pss.setString(1,row.type());
+							pss.setLong(2,row.definition());
+							pss.setDouble(3,row.screenScore());
+						}
+						
+						@Override
+						public int getBatchSize() {
+							return screened.size();
+						}
+					});
+				}
+				for (ARXWriteBuffer.Range range : ranges) {
+					completeRange(range.ident(), range.start(), range.end());
+				}
+				for (Consumer<Database> action : actions) {
+					action.accept(this);
+				}
 			});
 		} catch (DataAccessException ex) {
-			System.out.println("Insertion into database failed for type " + definition);
-			ex.printStackTrace(System.out);
+			System.out.println("Insertion into database failed for a batch of " + mixes.size() + " mixes and " + screened.size() + " screened definitions");
+			throw ex;
+		}
+		// The score store is written once the batch is committed, so it never has a definition the database doesn't; after
+		// a crash in between, the definitions aren't done as far as the store knows and are tested and written again
+		for (ARXWriteBuffer.MixRow row : mixes) {
+			if (!ARXScoreStore.isDense(row.type())) continue;
+			scoreStore.create(row.type(), fill -> fillScoreStore(row.type(), fill));
+			scoreStore.put(row.type().getDatabaseTag(), row.definition(), row.scores(), row.classSize(), row.images()[0] != 0);
 		}
+		for (ARXWriteBuffer.ScreenedRow row : screened) {
+			ARXMixInfo<?> type = ARXMixTypes.forTag(row.type());
+			if (type == null || !ARXScoreStore.isDense(type)) continue;
+			scoreStore.create(type, fill -> fillScoreStore(type, fill));
+			scoreStore.putScreened(row.type(), row.definition());
+		}
+		scoreStore.force();
 	}
 	
 	/**
@@ -646,6 +929,22 @@ public class Database {
 		return snowflake;
 	}
 	
+	/**
+	 * Put an image that is already a PNG file into the image store and return a snowflake ID. If writing fails, zero is
+	 * returned.
+	 * @param png the PNG file
+	 * @return the snowflake ID to reference the image with
+	 */
+	private static long putImage(byte[] png) {
+		long snowflake = Snowflake.generate();
+		try {
+			Files.write(snowflakeToPath(snowflake), png);
+		} catch (IOException ex) {
+			return 0;
+		}
+		return snowflake;
+	}
+	
 	/**
 	 * Convert a snowflake to an image path.
 	 * @param snowflake value to convert
@@ -674,6 +973,29 @@ public class Database {
 		return (int)(v & 0xFFFL);
 	}
 	
+	/**
+	 * Copy the mixes and screened out definitions of a type that are already in the database into its newly created score
+	 * store file.
+	 * @param type the type
+	 * @param fill takes what is in the database
+	 */
+	private void fillScoreStore(ARXMixInfo<?> type, ARXScoreStore.Fill fill) {
+		final String tag = type.getDatabaseTag();
+		database.query("SELECT definition, avScore1, avScore2, avScore3, avScore4, avImage1, classSize FROM mixarx WHERE type = ?", pss -> pss.setString(1,tag), rse -> {
+			while (rse.next()) {
+				double[] scores = {rse.getDouble(2), rse.getDouble(3), rse.getDouble(4), rse.getDouble(5)};
+				fill.put(rse.getLong(1), scores, rse.getLong(7), rse.getString(6) != null);
+			}
+			return null;
+		});
+		database.query("SELECT definition FROM mixarxscreened WHERE type = ?", pss -> pss.setString(1,tag), rse -> {
+			while (rse.next()) {
+				fill.putScreened(rse.getLong(1));
+			}
+			return null;
+		});
+	}
+	
 	/**
 	 * Return the checkpoint value for the mix generator of this type to start from.
 	 * @param ident mix type
@@ -690,7 +1012,23 @@ public class Database {
 	}
 	
 	/**
-	 * Set the checkpoint value for the mix generator of this type to start from.
+	 * Return the counter permutation scheme the mix generator of this type uses, from {@link CounterPermutation}.
+	 * A search that was started with one scheme has to keep using it for the checkpoint to mean anything, so the scheme is
+	 * stored alongside the checkpoint. Searches that haven't started yet use {@link CounterPermutation#SCHEME_FEISTEL}.
+	 * @param ident mix type
+	 * @return the permutation scheme
+	 */
+	public int getPermutationScheme(String ident) {
+		return database.query("SELECT permutation FROM arxsearch WHERE type = ?", pss -> pss.setString(1,ident), rse -> {
+			boolean hasRow = rse.next();
+			if (!hasRow) return CounterPermutation.SCHEME_FEISTEL;
+			return rse.getInt(1);
+		});
+	}
+	
+	/**
+	 * Set the checkpoint value for the mix generator of this type to start from. The first checkpoint of a search also
+	 * records that it uses {@link CounterPermutation#SCHEME_FEISTEL}; see {@link #getPermutationScheme(String)}.
 	 * @param ident mix type
 	 * @param value the checkpoint value to start at
 	 */
@@ -698,66 +1036,153 @@ public class Database {
 		// Don't allow values < 1
 		if (value < 1) return;
 		
+		// Insert the checkpoint, or update it if it's already set, in one statement
+		database.update("""
+				INSERT INTO arxsearch (type,checkpoint,permutation) VALUES (?,?,?)
+				ON CONFLICT (type) DO UPDATE SET checkpoint = excluded.checkpoint
+				""", pss -> {
+			pss.setString(1, ident);
+			pss.setLong(2, value);
+			pss.setInt(3, CounterPermutation.SCHEME_FEISTEL);
+		});
+	}
+	
+	/**
+	 * Record that a range of the search of this type has been finished, in any order. The checkpoint stays the point up to
+	 * which everything has been finished, and moves up whenever the range joins on to it, taking in every kept range it then
+	 * reaches; other ranges are kept, merged with any they touch or overlap, until the gap before them is filled. Call this in
+	 * the same transaction as the writes for the range so that a crash loses neither the writes nor the record of them.
+	 * @param ident mix type
+	 * @param start first value of the range
+	 * @param end value the range stops before
+	 */
+	public void completeRange(String ident, long start, long end) {
+		if (end <= start) return;
 		dbTransaction.executeWithoutResult(status -> {
-			// Check to see if checkpoint is set
-			long originalValue = getCheckpoint(ident);
-			if (originalValue == 0) {
-				// Value not set. Needs to insert value.
-				database.update("INSERT INTO arxsearch (type,checkpoint) VALUES (?,?)", pss -> {
-					pss.setString(1, ident);
-					pss.setLong(2, value);
-				});
-//				System.out.println("Inserted value");
+			long from = start;
+			long to = end;
+			// Merge with every finished range that touches or overlaps this one, until the merged range touches no more
+			List<long[]> touching;
+			while (!(touching = takeRanges(ident, from, to)).isEmpty()) {
+				for (long[] range : touching) {
+					from = Math.min(from, range[0]);
+					to = Math.max(to, range[1]);
+				}
+			}
+			long checkpoint = getCheckpoint(ident);
+			if (from <= checkpoint) {
+				// The range joins on to the checkpoint, so it moves up to the end of it and then past every finished range
+				// that starts at or before it
+				long moved = Math.max(checkpoint, to);
+				List<long[]> reached;
+				while (!(reached = takeRanges(ident, Long.MIN_VALUE, moved)).isEmpty()) {
+					for (long[] range : reached) {
+						moved = Math.max(moved, range[1]);
+					}
+				}
+				if (moved > checkpoint) setCheckpoint(ident, moved);
 			} else {
-				// Value is set. Update instead.
-				database.update("UPDATE arxsearch SET checkpoint = ? WHERE type = ?", pss -> {
-					pss.setLong(1, value);
-					pss.setString(2, ident);
+				final long rangeStart = from;
+				final long rangeEnd = to;
+				database.update("INSERT INTO arxsearchrange (type,rangeStart,rangeEnd) VALUES (?,?,?)", pss -> {
+					pss.setString(1, ident);
+					pss.setLong(2, rangeStart);
+					pss.setLong(3, rangeEnd);
 				});
-//				System.out.println("Set value");
 			}
 		});
 	}
 	
+	/**
+	 * Remove and return the finished ranges of this type that touch or overlap the given range.
+	 * @param ident mix type
+	 * @param from first value of the range
+	 * @param to value the range stops before
+	 * @return the start and end of each range removed
+	 */
+	private List<long[]> takeRanges(String ident, long from, long to) {
+		List<long[]> ranges = database.query("SELECT rangeStart, rangeEnd FROM arxsearchrange WHERE type = ? AND rangeStart <= ? AND rangeEnd >= ?", pss -> {
+			pss.setString(1, ident);
+			pss.setLong(2, to);
+			pss.setLong(3, from);
+		}, (rs, rowNum) -> new long[] {rs.getLong(1), rs.getLong(2)});
+		if (!ranges.isEmpty()) {
+			database.update("DELETE FROM arxsearchrange WHERE type = ? AND rangeStart <= ? AND rangeEnd >= ?", pss -> {
+				pss.setString(1, ident);
+				pss.setLong(2, to);
+				pss.setLong(3, from);
+			});
+		}
+		return ranges;
+	}
+	
+	/**
+	 * Return the ranges of the search of this type that have been finished beyond the checkpoint; see
+	 * {@link #completeRange(String, long, long)}. No two of the ranges touch.
+	 * @param ident mix type
+	 * @return the end of each range, keyed by its start
+	 */
+	public TreeMap<Long, Long> getCompletedRanges(String ident) {
+		return database.query("SELECT rangeStart, rangeEnd FROM arxsearchrange WHERE type = ?", pss -> pss.setString(1,ident), rse -> {
+			TreeMap<Long, Long> ranges = new TreeMap<>();
+			while (rse.next()) {
+				ranges.put(rse.getLong(1), rse.getLong(2));
+			}
+			return ranges;
+		});
+	}
+	
 	/**
 	 * Clear all mixes and images with the given ARX mix type.
 	 * @param type type to clear
 	 */
 	public void clearARXTable(String type) {
+		// Results still in the buffer would otherwise be written after the clear
+		writeBuffer.flush();
+		scoreStore.delete(type);
 		List<ARXMixEntry> list = database.query("SELECT * FROM mixarx WHERE type = ?", pss -> {
 			pss.setString(1, type);
 		}, ARXMixEntry::fromDatabaseRowMapper);
 		for (ARXMixEntry mix : list) {
-			try {
-				Path p1 = snowflakeToPath(Long.parseLong(mix.getAvImage1(),16));
-				System.out.println("Deleting " + p1);
-				Files.delete(p1);
-			} catch (IOException e) {
-				e.printStackTrace();
+			// Mixes that were screened out of having graphs made have no images
+			if (mix.getAvImage1() != null) {
+				try {
+					Path p1 = snowflakeToPath(Long.parseLong(mix.getAvImage1(),16));
+					System.out.println("Deleting " + p1);
+					Files.delete(p1);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 			
-			try {
-				Path p2 = snowflakeToPath(Long.parseLong(mix.getAvImage2(),16));
-				System.out.println("Deleting " + p2);
-				Files.delete(p2);
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (mix.getAvImage2() != null) {
+				try {
+					Path p2 = snowflakeToPath(Long.parseLong(mix.getAvImage2(),16));
+					System.out.println("Deleting " + p2);
+					Files.delete(p2);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 			
-			try {
-				Path p3 = snowflakeToPath(Long.parseLong(mix.getAvImage3(),16));
-				System.out.println("Deleting " + p3);
-				Files.delete(p3);
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (mix.getAvImage3() != null) {
+				try {
+					Path p3 = snowflakeToPath(Long.parseLong(mix.getAvImage3(),16));
+					System.out.println("Deleting " + p3);
+					Files.delete(p3);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 			
-			try {
-				Path p4 = snowflakeToPath(Long.parseLong(mix.getAvImage4(),16));
-				System.out.println("Deleting " + p4);
-				Files.delete(p4);
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (mix.getAvImage4() != null) {
+				try {
+					Path p4 = snowflakeToPath(Long.parseLong(mix.getAvImage4(),16));
+					System.out.println("Deleting " + p4);
+					Files.delete(p4);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 		System.out.println("Clearing " + type);
@@ -765,7 +1190,13 @@ public class Database {
 		database.update("DELETE FROM mixarx WHERE type = ?", pss -> {
 			pss.setString(1, type);
 		});
+		database.update("DELETE FROM mixarxscreened WHERE type = ?", pss -> {
+			pss.setString(1, type);
+		});
 		System.out.println("Resetting checkpoint");
+		database.update("DELETE FROM arxsearchrange WHERE type = ?", pss -> {
+			pss.setString(1, type);
+		});
 		database.update("DELETE FROM arxsearch WHERE type = ?", pss -> {
 			pss.setString(1, type);
 		});
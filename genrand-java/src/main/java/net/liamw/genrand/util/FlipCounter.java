@@ -0,0 +1,143 @@
+package net.liamw.genrand.util;
+
+/**
+ * Accumulator for avalanche flip counts using bit-sliced (vertical) counters.
+ * <br>
+ * Each row holds one counter per column. Rather than storing each counter as an integer, the counters for 64 columns are
+ * stored as a set of bit planes, where plane k holds bit k of all 64 counters. Adding a 64 bit difference word to
+ * 64 counters at once is then a ripple of half adders across the planes: a few bitwise operations instead of 64 bit tests
+ * and increments. The narrow counters are flushed into a wide int matrix before they can overflow.
+ * <br>
+ * All counters live in one flat array, with the eight planes for a row and word next to each other, so each add touches
+ * a single 64 byte cache line and a sample walks through memory in order instead of hopping between row arrays.
+ */
+public class FlipCounter {
+	/**
+	 * Number of bit planes per counter word.
+	 */
+	private static final int PLANES = 8;
+	/**
+	 * Number of adds a counter can take before it has to be flushed.
+	 */
+	private static final int MAX_PENDING = (1 << PLANES) - 1;
+
+	/**
+	 * Number of rows (input bits).
+	 */
+	private final int rows;
+	/**
+	 * Number of columns (output bits).
+	 */
+	private final int columns;
+	/**
+	 * Number of 64 bit words needed to cover the columns.
+	 */
+	private final int words;
+	/**
+	 * Bit planes, indexed by [(row * words + word) * PLANES + plane].
+	 */
+	private final long[] planes;
+	/**
+	 * Flushed counts, indexed by [row * columns + column].
+	 */
+	private final int[] totals;
+	/**
+	 * Number of samples added since the last flush.
+	 */
+	private int pending;
+
+	/**
+	 * Create a counter with the given dimensions, all counts zero.
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 */
+	public FlipCounter(int rows, int columns) {
+		this.rows = rows;
+		this.columns = columns;
+		this.words = (columns + 63) / 64;
+		this.planes = new long[rows * words * PLANES];
+		this.totals = new int[rows * columns];
+	}
+
+	/**
+	 * Add the set bits of a word into the counters of a row. Bit j of the value counts towards column word*64+j.
+	 * Bits past the last column are ignored. Each row and word may only be added to once per sample;
+	 * see {@link #endSample()}.
+	 * @param row the row to add to
+	 * @param word which group of 64 columns the value covers
+	 * @param value the bits to add
+	 */
+	public void add(int row, int word, long value) {
+		long[] p = planes;
+		int base = (row * words + word) * PLANES;
+		long carry = value;
+		// Half adder ripple: each plane keeps the sum bit, and the carry moves up to the next plane.
+		// Always run through every plane; stopping once the carry is zero costs more in mispredicted branches than it saves.
+		for (int k = base; k < base + PLANES; k++) {
+			long sum = p[k] ^ carry;
+			carry = p[k] & carry;
+			p[k] = sum;
+		}
+	}
+
+	/**
+	 * Mark the end of a sample. Counters are flushed to the wide totals when they are about to overflow.
+	 */
+	public void endSample() {
+		pending++;
+		if (pending == MAX_PENDING) {
+			flush();
+		}
+	}
+
+	/**
+	 * Move the bit-sliced counts into the wide totals and clear the planes.
+	 */
+	private void flush() {
+		long[] p = planes;
+		for (int row = 0; row < rows; row++) {
+			for (int word = 0; word < words; word++) {
+				int base = (row * words + word) * PLANES;
+				int firstColumn = word * 64;
+				int totalBase = row * columns + firstColumn;
+				for (int k = 0; k < PLANES; k++) {
+					// Each set bit in plane k is worth 2^k flips in its column
+					long plane = p[base + k];
+					while (plane != 0) {
+						int j = Long.numberOfTrailingZeros(plane);
+						plane &= plane - 1;
+						if (firstColumn + j < columns) {
+							totals[totalBase + j] += 1 << k;
+						}
+					}
+					p[base + k] = 0;
+				}
+			}
+		}
+		pending = 0;
+	}
+
+	/**
+	 * Add all counts from another counter with the same dimensions into this one.
+	 * @param other the counter to add
+	 */
+	public void addAll(FlipCounter other) {
+		other.flush();
+		for (int i = 0; i < totals.length; i++) {
+			totals[i] += other.totals[i];
+		}
+	}
+
+	/**
+	 * Flush outstanding counts and return a copy of the totals, indexed by [row][column].
+	 * @return the flip counts
+	 */
+	public int[][] getTotals() {
+		flush();
+		int[][] matrix = new int[rows][columns];
+		for (int row = 0; row < rows; row++) {
+			System.arraycopy(totals, row * columns, matrix[row], 0, columns);
+		}
+		return matrix;
+	}
+}
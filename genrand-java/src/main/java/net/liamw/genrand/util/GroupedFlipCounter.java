@@ -0,0 +1,160 @@
+package net.liamw.genrand.util;
+
+/**
+ * Flip counts for a sampled avalanche test, kept in separate groups of samples so that a partial test can measure how
+ * much its score may still move and give up on a function that is confidently going to score worse than a bound.
+ * <br>
+ * The flip rates of a function are far from independent: one input often decides many output bits at once, so the
+ * errors of many cells rise and fall together. The spread of the groups' rates measures that correlation instead of
+ * assuming it away. Samples go to the groups in turn, in runs of {@link #RUN} samples, so every group holds the same
+ * number of samples whenever the sample count is a multiple of {@link #CYCLE}, and each run is counted by a plain
+ * {@link FlipCounter}.
+ */
+public class GroupedFlipCounter {
+	/**
+	 * Number of groups the samples are split between.
+	 */
+	private static final int GROUPS = 16;
+	/**
+	 * Number of samples added to one group before moving to the next.
+	 */
+	public static final int RUN = 64;
+	/**
+	 * Number of samples it takes to add one run to every group. Checks against a bound should fall on a multiple of this.
+	 */
+	public static final int CYCLE = GROUPS * RUN;
+	/**
+	 * How many standard deviations the estimated score has to be past a bound before {@link #isScoreAbove(double, int)}
+	 * accepts that it really is past the bound. The deviation is itself estimated from only {@link #GROUPS} groups, so
+	 * this is well past the usual 3.
+	 */
+	private static final double REJECT_Z = 5.0;
+
+	/**
+	 * Number of rows (input bits).
+	 */
+	private final int rows;
+	/**
+	 * Number of columns (output bits).
+	 */
+	private final int columns;
+	/**
+	 * Counters of each group.
+	 */
+	private final FlipCounter[] groups;
+	/**
+	 * Number of samples handed out so far.
+	 */
+	private int samples;
+
+	/**
+	 * Create a counter with the given dimensions, all counts zero.
+	 * @param rows number of rows (input bits)
+	 * @param columns number of columns (output bits)
+	 */
+	public GroupedFlipCounter(int rows, int columns) {
+		this.rows = rows;
+		this.columns = columns;
+		groups = new FlipCounter[GROUPS];
+		for (int g = 0; g < GROUPS; g++) {
+			groups[g] = new FlipCounter(rows, columns);
+		}
+	}
+
+	/**
+	 * Get the counter the next {@link #RUN} samples are to be added to. Exactly that many samples must be added to it
+	 * before this is called again.
+	 * @return the counter of the group whose turn it is
+	 */
+	public FlipCounter nextRun() {
+		final FlipCounter group = groups[(samples / RUN) % GROUPS];
+		samples += RUN;
+		return group;
+	}
+
+	/**
+	 * Get the result over every sample added so far.
+	 * @return the flip counts of all groups together
+	 */
+	public AvalancheResult getResult() {
+		final FlipCounter all = new FlipCounter(rows, columns);
+		for (FlipCounter group : groups) {
+			all.addAll(group);
+		}
+		return new AvalancheResult(all.getTotals(), samples);
+	}
+
+	/**
+	 * Decide whether the score the function would get from a test over the given number of samples is worse than the
+	 * bound. This lets a test stop early on a function that is clearly not going to beat the bound.
+	 * <br>
+	 * With d the deviation of each flip rate from 0.5 and e its sampling noise, the squared score is the sum of
+	 * (d + e)^2. The noise floor, the sum of the variances of e, is swapped for the full test's to estimate the squared
+	 * score expected after the full test, and that has to exceed the squared bound by {@link #REJECT_Z} standard
+	 * deviations. The deviation has a term 4 d'Cd from the noise's covariance C and d, and a term 2 tr(C^2) from the
+	 * noise alone; C is estimated from the spread of the groups' flip rates. The part of the full test already run is
+	 * counted as if it could still change, so the test is conservative.
+	 * @param bound the score to compare against
+	 * @param fullSamples the number of samples of the full test
+	 * @return true if the full test is confidently expected to score worse than the bound
+	 */
+	public boolean isScoreAbove(double bound, int fullSamples) {
+		final int[][][] counts = new int[GROUPS][][];
+		for (int g = 0; g < GROUPS; g++) {
+			counts[g] = groups[g].getTotals();
+		}
+		final int cells = rows * columns;
+		final int perGroup = samples / GROUPS;
+		// Overall flip rate of each cell, and each group's difference from it
+		final double[] rate = new double[cells];
+		final double[][] spread = new double[GROUPS][cells];
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < columns; j++) {
+				long sum = 0;
+				for (int g = 0; g < GROUPS; g++) {
+					sum += counts[g][i][j];
+				}
+				rate[i * columns + j] = (double) sum / samples;
+			}
+		}
+		for (int g = 0; g < GROUPS; g++) {
+			for (int i = 0; i < rows; i++) {
+				for (int j = 0; j < columns; j++) {
+					spread[g][i * columns + j] = (double) counts[g][i][j] / perGroup - rate[i * columns + j];
+				}
+			}
+		}
+		double squared = 0.0;
+		double binomial = 0.0;
+		for (double p : rate) {
+			squared += (p - 0.5) * (p - 0.5);
+			binomial += p * (1.0 - p);
+		}
+		// Part of the squared score that isn't noise, and the squared score expected after the full test
+		final double signal = Math.max(0.0, squared - binomial / samples);
+		final double expected = signal + binomial / fullSamples;
+		// The covariance of the overall rates is that of a group's rates over the number of groups
+		final double scale = 1.0 / ((double) GROUPS * (GROUPS - 1));
+		double linear = 0.0;
+		for (int g = 0; g < GROUPS; g++) {
+			double dot = 0.0;
+			for (int c = 0; c < cells; c++) {
+				dot += (rate[c] - 0.5) * spread[g][c];
+			}
+			linear += dot * dot;
+		}
+		double noise = 0.0;
+		for (int g = 0; g < GROUPS; g++) {
+			for (int h = g; h < GROUPS; h++) {
+				double dot = 0.0;
+				for (int c = 0; c < cells; c++) {
+					dot += spread[g][c] * spread[h][c];
+				}
+				// Each pair of different groups appears twice in the sum
+				noise += (g == h? 1.0 : 2.0) * dot * dot;
+			}
+		}
+		final double deviation = Math.sqrt(4.0 * scale * linear + 2.0 * scale * scale * noise);
+		return expected - REJECT_Z * deviation > bound * bound;
+	}
+}
@@ -0,0 +1,130 @@
+package net.liamw.genrand.function.arx;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import net.liamw.genrand.util.Avalanche32;
+import net.liamw.genrand.util.AvalancheResult;
+
+/**
+ * Tests that the classes of equivalent ARX definitions have the sizes the canonicalizer says, and that their members
+ * avalanche alike.
+ */
+class ARXCanonicalizerTests {
+	@Test
+	void classSizesMatch8x2() {
+		checkClassSizes(MixARX8x2.INFO);
+	}
+
+	@Test
+	void classSizesMatch8x3() {
+		checkClassSizes(MixARX8x3.INFO);
+	}
+
+	@Test
+	void membersAvalancheAlike8x2() {
+		// 16 bits are tested over every input
+		checkMembersAlike(MixARX8x2.INFO, 6, mix -> mix.avalancheRounds(4));
+	}
+
+	@Test
+	void membersAvalancheAlike8x3() {
+		// Every 24 bit input takes 43 s a definition, so take every input whose terms each have at most two bits set.
+		// Rotating terms maps that set onto itself, so the flips counted over it are permuted between members just like
+		// the flips counted over every input.
+		final List<Integer> words = new ArrayList<>();
+		for (int w = 0; w < 256; w++) {
+			if (Integer.bitCount(w) <= 2) words.add(w);
+		}
+		final int[] inputs = new int[words.size() * words.size() * words.size()];
+		int n = 0;
+		for (int a : words) {
+			for (int b : words) {
+				for (int c : words) {
+					inputs[n++] = (a << 16) | (b << 8) | c;
+				}
+			}
+		}
+		checkMembersAlike(MixARX8x3.INFO, 2, mix -> Avalanche32.testAvalancheRounds(mix, 24, 4, inputs));
+	}
+
+	/**
+	 * Group every definition of a type by its representative, then check that each class has as many members as
+	 * {@link ARXCanonicalizer#getClassSize(ARXMixInfo, long)} gives for each of them.
+	 * @param type the type to check
+	 */
+	private static void checkClassSizes(ARXMixInfo<?> type) {
+		final int definitions = 1 << type.getDefinitionBits();
+		// Classes have at most wordBits^(terms-1) members, which fits in a byte for 8 bit terms
+		final byte[] members = new byte[definitions];
+		for (int d = 0; d < definitions; d++) {
+			long c = type.canonicalize(d);
+			assertTrue(c <= d, "representative " + c + " of " + d + " isn't the smallest");
+			members[(int) c]++;
+		}
+		for (int d = 0; d < definitions; d++) {
+			if (members[d] != 0) {
+				assertEquals(d, type.canonicalize(d), "representative " + d + " isn't its own representative");
+				assertEquals(type.getClassSize(d), members[d] & 0xFF, "members of " + d);
+			}
+		}
+	}
+
+	/**
+	 * Test every member of a few classes and check that they all have the same flip counts, in some order, and score.
+	 * @param <T> the type to check
+	 * @param type the type to check
+	 * @param count number of classes to test
+	 * @param test the avalanche test to run on each member
+	 */
+	private static <T extends ARXMix<T>> void checkMembersAlike(ARXMixInfo<T> type, int count, Function<T, AvalancheResult[]> test) {
+		final int definitions = 1 << type.getDefinitionBits();
+		// Spread the classes tested over the definitions, only taking classes that have more than one member
+		final Map<Long, List<Long>> classes = new LinkedHashMap<>();
+		final int step = definitions / count;
+		for (int d = step / 2; d < definitions && classes.size() < count; d += step) {
+			long c = type.canonicalize(d);
+			while (type.getClassSize(c) == 1) {
+				c = type.canonicalize(++d);
+			}
+			classes.put(c, new ArrayList<>());
+		}
+		for (int d = 0; d < definitions; d++) {
+			List<Long> members = classes.get(type.canonicalize(d));
+			if (members != null) members.add((long) d);
+		}
+		for (Map.Entry<Long, List<Long>> e : classes.entrySet()) {
+			assertEquals(type.getClassSize(e.getKey()), e.getValue().size());
+			final AvalancheResult[] expected = test.apply(type.unpack(e.getKey()));
+			for (long member : e.getValue()) {
+				final AvalancheResult[] actual = test.apply(type.unpack(member));
+				for (int r = 0; r < expected.length; r++) {
+					String what = "round " + (r + 1) + " of " + member + ", in the class of " + e.getKey();
+					assertArrayEquals(sortedFlips(expected[r]), sortedFlips(actual[r]), what);
+					assertEquals(expected[r].score(), actual[r].score(), 1e-9, what);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get every flip count of a result, sorted.
+	 * @param result the result
+	 * @return its flip counts
+	 */
+	private static int[] sortedFlips(AvalancheResult result) {
+		int[] flips = Arrays.stream(result.getFlipStatistics()).flatMapToInt(Arrays::stream).toArray();
+		Arrays.sort(flips);
+		return flips;
+	}
+}
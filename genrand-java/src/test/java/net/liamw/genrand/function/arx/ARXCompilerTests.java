@@ -0,0 +1,91 @@
+package net.liamw.genrand.function.arx;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+import net.liamw.genrand.util.Avalanche32;
+import net.liamw.genrand.util.Avalanche32.RoundDiffuser;
+import net.liamw.genrand.util.Avalanche64;
+import net.liamw.genrand.util.Avalanche64.RoundDiffuser64;
+import net.liamw.genrand.util.AvalancheVector.RoundDiffuserVector;
+
+/**
+ * Tests that compiled ARX kernels give the same outputs as the mixes they are compiled from.
+ */
+class ARXCompilerTests {
+	private static final int DEFINITIONS = 16;
+	private static final int INPUTS = 64;
+	private static final int ROUNDS = 4;
+
+	@Test
+	void kernelsMatchMixes() {
+		final SplittableRandom random = new SplittableRandom(0x5EED);
+		for (ARXMixInfo<?> type : ARXMixTypes.ALL) {
+			final int bits = type.getWordBits() * type.getTerms();
+			final long limit = 1L << type.getDefinitionBits();
+			for (int d = 0; d < DEFINITIONS; d++) {
+				// Cover all adds and all XORs as well as random definitions
+				final long definition = d == 0? 0 : d == 1? limit - 1 : random.nextLong(limit);
+				final String what = type.getDatabaseTag() + " definition " + definition;
+				if (bits <= Avalanche32.BITS) {
+					checkSame(ARXCompiler.compile32(type, definition), (RoundDiffuser) type.unpack(definition), random, what);
+				} else if (bits <= Avalanche64.BITS) {
+					checkSame(ARXCompiler.compile64(type, definition), (RoundDiffuser64) type.unpack(definition), random, what);
+				} else {
+					checkSame(ARXCompiler.compileVector(type, definition), (RoundDiffuserVector) type.unpack(definition), random, what);
+				}
+			}
+		}
+	}
+
+	@Test
+	void compilingForTheWrongWidthFails() {
+		assertThrows(IllegalArgumentException.class, () -> ARXCompiler.compile32(MixARX32x2.INFO, 0));
+		assertThrows(IllegalArgumentException.class, () -> ARXCompiler.compile64(MixARX8x4.INFO, 0));
+		assertThrows(IllegalArgumentException.class, () -> ARXCompiler.compile64(MixARX32x3.INFO, 0));
+		assertThrows(IllegalArgumentException.class, () -> ARXCompiler.compileVector(MixARX16x4.INFO, 0));
+	}
+
+	private static void checkSame(RoundDiffuser kernel, RoundDiffuser mix, SplittableRandom random, String what) {
+		final int[] expected = new int[ROUNDS];
+		final int[] actual = new int[ROUNDS];
+		for (int i = 0; i < INPUTS; i++) {
+			final int input = random.nextInt();
+			mix.diffuseRounds(input, expected);
+			kernel.diffuseRounds(input, actual);
+			assertArrayEquals(expected, actual, what);
+		}
+	}
+
+	private static void checkSame(RoundDiffuser64 kernel, RoundDiffuser64 mix, SplittableRandom random, String what) {
+		final long[] expected = new long[ROUNDS];
+		final long[] actual = new long[ROUNDS];
+		for (int i = 0; i < INPUTS; i++) {
+			final long input = random.nextLong();
+			mix.diffuseRounds(input, expected);
+			kernel.diffuseRounds(input, actual);
+			assertArrayEquals(expected, actual, what);
+		}
+	}
+
+	private static void checkSame(RoundDiffuserVector kernel, RoundDiffuserVector mix, SplittableRandom random, String what) {
+		final int words = (mix.inputSize() + 31) / 32;
+		final int[] input = new int[words];
+		final int[][] expected = new int[ROUNDS][words];
+		final int[][] actual = new int[ROUNDS][words];
+		for (int i = 0; i < INPUTS; i++) {
+			for (int w = 0; w < words; w++) {
+				input[w] = random.nextInt();
+			}
+			mix.diffuseRounds(input, expected);
+			kernel.diffuseRounds(input, actual);
+			for (int r = 0; r < ROUNDS; r++) {
+				assertArrayEquals(expected[r], actual[r], what + " after " + (r + 1) + " rounds");
+			}
+		}
+	}
+}
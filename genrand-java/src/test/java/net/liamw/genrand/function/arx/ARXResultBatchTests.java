@@ -0,0 +1,91 @@
+package net.liamw.genrand.function.arx;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import net.liamw.genrand.util.AvalancheResult;
+
+/**
+ * Tests of the binary form a worker sends its results to the coordinator in.
+ */
+class ARXResultBatchTests {
+	@Test
+	void roundTripWithGraphs() throws IOException {
+		final MixARX8x2 mix = MixARX8x2.unpack(0x1234);
+		final AvalancheResult[] results = mix.avalancheRounds(4);
+		final ARXResultBatch batch = new ARXResultBatch("8x2", 100, 356);
+		batch.submit(mix, results, true);
+		batch.submitScreened("8x2", new long[] {7, 9}, new double[] {12.5, 30.25});
+
+		final ARXResultBatch read = ARXResultBatch.read(new ByteArrayInputStream(batch.toBytes()));
+		assertEquals("8x2", read.getType());
+		assertEquals(100, read.getStart());
+		assertEquals(356, read.getEnd());
+		assertEquals(1, read.getMixes().size());
+		final ARXResultBatch.Mix got = read.getMixes().get(0);
+		assertEquals(mix.pack(), got.definition());
+		for (int r = 0; r < 4; r++) {
+			assertEquals(results[r].score(), got.scores()[r]);
+			assertArrayEquals(batch.getMixes().get(0).images()[r], got.images()[r], "graph " + (r + 1));
+			// The graphs are still PNG files of the right size
+			assertEquals(results[r].graph().getWidth(), ImageIO.read(new ByteArrayInputStream(got.images()[r])).getWidth());
+		}
+		assertArrayEquals(new long[] {7, 9}, read.getScreened());
+		assertArrayEquals(new double[] {12.5, 30.25}, read.getScreenScores());
+	}
+
+	@Test
+	void roundTripWithoutGraphs() throws IOException {
+		final ARXResultBatch batch = new ARXResultBatch("16x2", 0, 1L << 32);
+		for (long definition : new long[] {0, 5, (1L << 32) - 1}) {
+			MixARX16x2 mix = MixARX16x2.unpack(definition);
+			batch.submit(mix, mix.avalancheRounds(4), false);
+		}
+
+		final ARXResultBatch read = ARXResultBatch.read(new ByteArrayInputStream(batch.toBytes()));
+		assertEquals(1L << 32, read.getEnd());
+		assertEquals(3, read.getMixes().size());
+		for (int i = 0; i < 3; i++) {
+			ARXResultBatch.Mix sent = batch.getMixes().get(i);
+			ARXResultBatch.Mix got = read.getMixes().get(i);
+			assertEquals(sent.definition(), got.definition());
+			assertArrayEquals(sent.scores(), got.scores());
+			assertNull(got.images());
+		}
+		assertEquals(0, read.getScreened().length);
+	}
+
+	@Test
+	void truncatedBatchesFail() {
+		final MixARX8x2 mix = MixARX8x2.unpack(0x0F0F);
+		final ARXResultBatch batch = new ARXResultBatch("8x2", 0, 256);
+		batch.submit(mix, mix.avalancheRounds(4), true);
+		batch.submit(mix, mix.avalancheRounds(4), false);
+		batch.submitScreened("8x2", new long[] {1}, new double[] {2.0});
+		final byte[] bytes = batch.toBytes();
+		assertNotNull(batch.getMixes().get(0).images());
+		// Every cut through the header, the scores and the screened definitions, and a spread of cuts through the graphs
+		for (int length = 0; length < bytes.length; length += length < 64 || length > bytes.length - 64? 1 : 37) {
+			final byte[] cut = Arrays.copyOf(bytes, length);
+			assertThrows(IOException.class, () -> ARXResultBatch.read(new ByteArrayInputStream(cut)), "cut at " + length);
+		}
+	}
+
+	@Test
+	void otherDataFails() {
+		final byte[] bytes = new ARXResultBatch("8x2", 0, 256).toBytes();
+		bytes[3] = 0x02;
+		assertThrows(IOException.class, () -> ARXResultBatch.read(new ByteArrayInputStream(bytes)));
+	}
+}
@@ -0,0 +1,109 @@
+package net.liamw.genrand.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import net.liamw.genrand.util.Avalanche32.Diffuser;
+import net.liamw.genrand.util.Avalanche64.Diffuser64;
+
+/**
+ * Tests that stopping an avalanche test early against a bound never gives up on a function whose full score beats the
+ * bound. The sampled tests are run on seeded inputs, so each function sees the same inputs with and without the bound.
+ */
+class AvalancheBoundedTests {
+	/**
+	 * Number of functions of each width tested.
+	 */
+	private static final int FUNCTIONS = 24;
+
+	@Test
+	void functionsUnderTheBoundAreNeverRejected32() {
+		final SplittableRandom random = new SplittableRandom(0xB0B32);
+		for (int f = 0; f < FUNCTIONS; f++) {
+			final Diffuser diffuser = multiplyXorshift32(random, f % 4 + 1);
+			final long seed = random.nextLong();
+			final double full = Avalanche32.scoreAvalancheBounded(diffuser, 32, Double.POSITIVE_INFINITY, new SplittableRandom(seed)::nextInt);
+			// Just above the full score is the hardest bound not to reject at
+			for (double bound : new double[] { Math.nextUp(full), full * 1.01, full * 2 }) {
+				assertEquals(full, Avalanche32.scoreAvalancheBounded(diffuser, 32, bound, new SplittableRandom(seed)::nextInt),
+						"function " + f + " with a bound of " + bound);
+			}
+		}
+	}
+
+	@Test
+	void functionsUnderTheBoundAreNeverRejected64() {
+		final SplittableRandom random = new SplittableRandom(0xB0B64);
+		for (int f = 0; f < FUNCTIONS; f++) {
+			final Diffuser64 diffuser = multiplyXorshift64(random, f % 4 + 1);
+			final long seed = random.nextLong();
+			final double full = Avalanche64.scoreAvalancheBounded(diffuser, 64, Double.POSITIVE_INFINITY, new SplittableRandom(seed));
+			for (double bound : new double[] { Math.nextUp(full), full * 1.01, full * 2 }) {
+				assertEquals(full, Avalanche64.scoreAvalancheBounded(diffuser, 64, bound, new SplittableRandom(seed)),
+						"function " + f + " with a bound of " + bound);
+			}
+		}
+	}
+
+	@Test
+	void exhaustiveWidthsAlwaysGetTheirExactScore() {
+		final Diffuser diffuser = x -> (x * 0x9E37) & 0xFFFF;
+		assertEquals(Avalanche32.scoreAvalanche(diffuser, 16), Avalanche32.scoreAvalancheBounded(diffuser, 16, 0.0));
+	}
+
+	@Test
+	void functionsFarOverTheBoundStopEarly() {
+		// One multiply only carries upwards, so it is far from a good score
+		final AtomicLong calls = new AtomicLong();
+		final Diffuser64 diffuser = x -> {
+			calls.incrementAndGet();
+			return x * 0x9E3779B97F4A7C15L;
+		};
+		final double full = Avalanche64.scoreAvalancheBounded(diffuser, 64, Double.POSITIVE_INFINITY, new SplittableRandom(1));
+		final long fullCalls = calls.getAndSet(0);
+		final double stopped = Avalanche64.scoreAvalancheBounded(diffuser, 64, full / 4, new SplittableRandom(1));
+		assertTrue(stopped > full / 4, "score " + stopped + " should be worse than the bound");
+		assertTrue(calls.get() < fullCalls / 8, calls.get() + " calls out of " + fullCalls);
+	}
+
+	/**
+	 * Make a 32 bit function of rounds of an xorshift and a multiply, with random constants.
+	 * @param random source of the constants
+	 * @param rounds number of rounds
+	 * @return the function
+	 */
+	private static Diffuser multiplyXorshift32(SplittableRandom random, int rounds) {
+		final int[] shifts = random.ints(rounds, 1, 32).toArray();
+		final int[] multipliers = random.ints(rounds).map(m -> m | 1).toArray();
+		return x -> {
+			for (int r = 0; r < rounds; r++) {
+				x ^= x >>> shifts[r];
+				x *= multipliers[r];
+			}
+			return x;
+		};
+	}
+
+	/**
+	 * Make a 64 bit function of rounds of an xorshift and a multiply, with random constants.
+	 * @param random source of the constants
+	 * @param rounds number of rounds
+	 * @return the function
+	 */
+	private static Diffuser64 multiplyXorshift64(SplittableRandom random, int rounds) {
+		final int[] shifts = random.ints(rounds, 1, 64).toArray();
+		final long[] multipliers = random.longs(rounds).map(m -> m | 1).toArray();
+		return x -> {
+			for (int r = 0; r < rounds; r++) {
+				x ^= x >>> shifts[r];
+				x *= multipliers[r];
+			}
+			return x;
+		};
+	}
+}
@@ -0,0 +1,68 @@
+package net.liamw.genrand.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the counter permutations that decide the order ARX searches visit definitions in.
+ */
+class CounterPermutationTests {
+	@Test
+	void feistelIsABijectionOnSmallWidths() {
+		for (int bits : new int[] { 0, 1, 2, 3, 7, 8, 13, 16 }) {
+			long size = 1L << bits;
+			BitSet seen = new BitSet((int) size);
+			for (long v = 0; v < size; v++) {
+				long p = CounterPermutation.feistel(v, bits);
+				assertTrue(p >= 0 && p < size, "feistel(" + v + ", " + bits + ") = " + p);
+				assertFalse(seen.get((int) p), "feistel(" + v + ", " + bits + ") repeats " + p);
+				seen.set((int) p);
+			}
+		}
+	}
+
+	@Test
+	void permuteFeistelStaysWithinTheLimit() {
+		for (long limit : new long[] { 1, 3, 5, 100, 1000, 4097 }) {
+			BitSet seen = new BitSet((int) limit);
+			for (long v = 0; v < limit; v++) {
+				long p = CounterPermutation.permuteFeistel(v, limit);
+				assertTrue(p >= 0 && p < limit, "permuteFeistel(" + v + ", " + limit + ") = " + p);
+				assertFalse(seen.get((int) p), "permuteFeistel(" + v + ", " + limit + ") repeats " + p);
+				seen.set((int) p);
+			}
+		}
+		// Wider than an int, and not a power of two
+		long limit = 3L << 40;
+		for (long v = limit - 1000; v < limit; v++) {
+			long p = CounterPermutation.permuteFeistel(v, limit);
+			assertTrue(p >= 0 && p < limit, "permuteFeistel(" + v + ", " + limit + ") = " + p);
+		}
+	}
+
+	@Test
+	void feistelOrderIsFixed() {
+		// Searches resume from checkpoints, so the order they visit values in must never change
+		assertEquals(8548116649173477289L, CounterPermutation.feistel(0, 64));
+		assertEquals(-2178863230956646365L, CounterPermutation.feistel(0x0123456789ABCDEFL, 64));
+		assertEquals(743742, CounterPermutation.feistel(12345, 20));
+		assertEquals(53, CounterPermutation.feistel(77, 7));
+		assertEquals(1, CounterPermutation.feistel(1, 1));
+		assertEquals(726, CounterPermutation.permuteFeistel(123, 1000));
+		assertEquals(956259708632L, CounterPermutation.permuteFeistel(1L << 40, 3L << 40));
+	}
+
+	@Test
+	void permuteDispatchesOnTheScheme() {
+		assertEquals(CounterPermutation.permute(123, 1000), CounterPermutation.permute(123, 1000, CounterPermutation.SCHEME_CYCLE_WALK));
+		assertEquals(473, CounterPermutation.permute(123, 1000, CounterPermutation.SCHEME_CYCLE_WALK));
+		assertEquals(726, CounterPermutation.permute(123, 1000, CounterPermutation.SCHEME_FEISTEL));
+		assertThrows(IllegalArgumentException.class, () -> CounterPermutation.permute(123, 1000, 2));
+	}
+}
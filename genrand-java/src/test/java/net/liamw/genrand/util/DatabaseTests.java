@@ -0,0 +1,128 @@
+package net.liamw.genrand.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Tests of how finished ranges of an ARX search are recorded, against an in-memory database.
+ */
+class DatabaseTests {
+	private static final String TYPE = "8x2";
+
+	private SingleConnectionDataSource dataSource;
+	private Database database;
+
+	@BeforeEach
+	void setUp() {
+		// An in-memory database only lasts as long as its connection, so every statement has to share one
+		dataSource = new SingleConnectionDataSource("jdbc:sqlite::memory:", true);
+		database = new Database();
+		ReflectionTestUtils.setField(database, "database", new JdbcTemplate(dataSource));
+		ReflectionTestUtils.setField(database, "dbTransaction", new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+		database.checkAndInitTables();
+	}
+
+	@AfterEach
+	void tearDown() {
+		dataSource.destroy();
+	}
+
+	@Test
+	void rangesInOrderMoveTheCheckpoint() {
+		database.completeRange(TYPE, 0, 10);
+		database.completeRange(TYPE, 10, 25);
+		assertEquals(25, database.getCheckpoint(TYPE));
+		assertTrue(database.getCompletedRanges(TYPE).isEmpty());
+	}
+
+	@Test
+	void rangesOutOfOrderWaitForTheGap() {
+		database.completeRange(TYPE, 20, 30);
+		assertEquals(0, database.getCheckpoint(TYPE));
+		assertEquals(Map.of(20L, 30L), database.getCompletedRanges(TYPE));
+		// Filling the gap moves the checkpoint past the waiting range
+		database.completeRange(TYPE, 0, 20);
+		assertEquals(30, database.getCheckpoint(TYPE));
+		assertTrue(database.getCompletedRanges(TYPE).isEmpty());
+	}
+
+	@Test
+	void touchingRangesMerge() {
+		database.completeRange(TYPE, 0, 5);
+		database.completeRange(TYPE, 10, 20);
+		database.completeRange(TYPE, 30, 40);
+		database.completeRange(TYPE, 20, 30);
+		assertEquals(5, database.getCheckpoint(TYPE));
+		assertEquals(Map.of(10L, 40L), database.getCompletedRanges(TYPE));
+		database.completeRange(TYPE, 40, 50);
+		database.completeRange(TYPE, 60, 70);
+		TreeMap<Long, Long> expected = new TreeMap<>(Map.of(10L, 50L, 60L, 70L));
+		assertEquals(expected, database.getCompletedRanges(TYPE));
+		database.completeRange(TYPE, 5, 10);
+		assertEquals(50, database.getCheckpoint(TYPE));
+		assertEquals(Map.of(60L, 70L), database.getCompletedRanges(TYPE));
+	}
+
+	@Test
+	void overlappingRangesMerge() {
+		database.completeRange(TYPE, 10, 20);
+		database.completeRange(TYPE, 30, 40);
+		database.completeRange(TYPE, 50, 60);
+		// Overlaps the first two and reaches into the gap before the third
+		database.completeRange(TYPE, 15, 35);
+		assertEquals(new TreeMap<>(Map.of(10L, 40L, 50L, 60L)), database.getCompletedRanges(TYPE));
+		// Inside one range and overlapping the start of another
+		database.completeRange(TYPE, 12, 18);
+		database.completeRange(TYPE, 45, 55);
+		assertEquals(new TreeMap<>(Map.of(10L, 40L, 45L, 60L)), database.getCompletedRanges(TYPE));
+		// Overlapping the checkpoint's gap and the first range takes the checkpoint past both
+		database.completeRange(TYPE, 0, 12);
+		assertEquals(40, database.getCheckpoint(TYPE));
+		assertEquals(Map.of(45L, 60L), database.getCompletedRanges(TYPE));
+	}
+
+	@Test
+	void movingTheCheckpointAbsorbsRangesItReaches() {
+		// Ranges overlapping or behind the checkpoint, which merging never leaves but an older database may have
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		database.completeRange(TYPE, 0, 20);
+		jdbc.update("INSERT INTO arxsearchrange (type,rangeStart,rangeEnd) VALUES (?,?,?)", TYPE, 5, 15);
+		jdbc.update("INSERT INTO arxsearchrange (type,rangeStart,rangeEnd) VALUES (?,?,?)", TYPE, 18, 25);
+		jdbc.update("INSERT INTO arxsearchrange (type,rangeStart,rangeEnd) VALUES (?,?,?)", TYPE, 40, 50);
+		database.completeRange(TYPE, 25, 30);
+		assertEquals(30, database.getCheckpoint(TYPE));
+		assertEquals(Map.of(40L, 50L), database.getCompletedRanges(TYPE));
+	}
+
+	@Test
+	void rangesBehindTheCheckpointChangeNothing() {
+		database.completeRange(TYPE, 0, 30);
+		database.completeRange(TYPE, 5, 15);
+		database.completeRange(TYPE, 20, 30);
+		database.completeRange(TYPE, 7, 7);
+		assertEquals(30, database.getCheckpoint(TYPE));
+		assertTrue(database.getCompletedRanges(TYPE).isEmpty());
+	}
+
+	@Test
+	void typesAreKeptApart() {
+		database.completeRange(TYPE, 0, 10);
+		database.completeRange("16x2", 10, 20);
+		assertEquals(10, database.getCheckpoint(TYPE));
+		assertTrue(database.getCompletedRanges(TYPE).isEmpty());
+		assertEquals(0, database.getCheckpoint("16x2"));
+		assertEquals(Map.of(10L, 20L), database.getCompletedRanges("16x2"));
+	}
+}
@@ -0,0 +1,99 @@
+package net.liamw.genrand.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the bit-sliced flip counter against a plain counter that adds up each bit on its own.
+ */
+class FlipCounterTests {
+	/**
+	 * Sample counts around the 255 adds a counter takes before it is flushed.
+	 */
+	private static final int[] SAMPLES = { 0, 1, 254, 255, 256, 509, 510, 511, 1000 };
+
+	@Test
+	void randomWordsMatchPlainCounts() {
+		final SplittableRandom random = new SplittableRandom(0xF11B);
+		for (int[] size : new int[][] { { 1, 1 }, { 3, 64 }, { 5, 65 }, { 7, 130 }, { 32, 32 }, { 64, 64 } }) {
+			for (int samples : SAMPLES) {
+				check(size[0], size[1], samples, random, false);
+			}
+		}
+	}
+
+	@Test
+	void fullWordsRippleThroughEveryPlane() {
+		// Every add carries into every plane once the counters reach 255, the most they hold before a flush
+		for (int samples : SAMPLES) {
+			check(3, 100, samples, null, false);
+		}
+	}
+
+	@Test
+	void totalsTakenPartWayKeepCounting() {
+		final SplittableRandom random = new SplittableRandom(0xF11C);
+		for (int samples : SAMPLES) {
+			check(4, 70, samples, random, true);
+		}
+	}
+
+	@Test
+	void addAllSumsCounters() {
+		final SplittableRandom random = new SplittableRandom(0xF11D);
+		final FlipCounter a = new FlipCounter(2, 80);
+		final FlipCounter b = new FlipCounter(2, 80);
+		final int[][] expected = new int[2][80];
+		addSamples(a, expected, 300, random);
+		addSamples(b, expected, 700, random);
+		a.addAll(b);
+		assertArrayEquals(expected, a.getTotals());
+	}
+
+	/**
+	 * Add samples to a flip counter and a plain counter and check they agree.
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param samples number of samples
+	 * @param random source of the words, or null to add every bit of every word
+	 * @param peek true to also take the totals after every 100 samples
+	 */
+	private static void check(int rows, int columns, int samples, SplittableRandom random, boolean peek) {
+		final FlipCounter counter = new FlipCounter(rows, columns);
+		final int[][] expected = new int[rows][columns];
+		for (int s = 0; s < samples; s++) {
+			addSamples(counter, expected, 1, random);
+			if (peek && s % 100 == 99) {
+				assertArrayEquals(expected, counter.getTotals(), rows + "x" + columns + " after " + (s + 1) + " samples");
+			}
+		}
+		assertArrayEquals(expected, counter.getTotals(), rows + "x" + columns + " after " + samples + " samples");
+	}
+
+	/**
+	 * Add samples of one word per row and group of 64 columns to a flip counter, and count each bit that is in a column
+	 * into the plain counts.
+	 * @param counter the flip counter
+	 * @param expected the plain counts
+	 * @param samples number of samples
+	 * @param random source of the words, or null to add every bit of every word
+	 */
+	private static void addSamples(FlipCounter counter, int[][] expected, int samples, SplittableRandom random) {
+		final int columns = expected[0].length;
+		for (int s = 0; s < samples; s++) {
+			for (int row = 0; row < expected.length; row++) {
+				for (int word = 0; word * 64 < columns; word++) {
+					final long value = random == null? -1L : random.nextLong();
+					counter.add(row, word, value);
+					for (int j = 0; j < 64 && word * 64 + j < columns; j++) {
+						expected[row][word * 64 + j] += (int) (value >>> j) & 1;
+					}
+				}
+			}
+			counter.endSample();
+		}
+	}
+}